@@ -0,0 +1,128 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.benchmark;
+
+import eu.beautifulcode.eig.structure.Fabric;
+import eu.beautifulcode.eig.structure.Face;
+import eu.beautifulcode.eig.structure.Interval;
+import eu.beautifulcode.eig.structure.Joint;
+import eu.beautifulcode.eig.structure.TensegritySphereFactory;
+import eu.beautifulcode.eig.structure.Tetra;
+import eu.beautifulcode.eig.structure.Vertebra;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removing what touches a batch of joints from spheres of about ten thousand and a hundred
+ * thousand intervals.  Each iteration gets a fresh sphere and removes from it once, either by
+ * looking at everything for each joint the way the fabric used to, or by leaving it to the index.
+ * Both are timed from adding the transformation until it has been executed.
+ *
+ * The scanning path removes only the intervals, faces, tetras and vertebras it finds and leaves the
+ * joints where they are, because removing a joint sets off the indexed cascade as well and the
+ * scan would then be timed together with what it is compared to.  The indexed path removes the
+ * joints and lets the fabric find the rest, so it does that little bit more work.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class CascadeBenchmark {
+    private static final int REMOVE_EVERY = 50;
+
+    @Param({"8", "26"})
+    int frequency;
+
+    private Fabric fabric;
+    private List<Joint> doomed = new ArrayList<Joint>();
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        fabric = new TensegritySphereFactory(null).createSphere(frequency, 1);
+        doomed.clear();
+        for (int walk = 0; walk < fabric.getJoints().size(); walk += REMOVE_EVERY) {
+            doomed.add(fabric.getJoints().get(walk));
+        }
+        warmUpIndex();
+    }
+
+    @Benchmark
+    public int scanned() {
+        fabric.addTransformation(new Fabric.Transformation() {
+            public void transform(Fabric fabric) {
+                Fabric.Modifications mods = fabric.getMods();
+                for (Joint joint : doomed) {
+                    for (Interval interval : fabric.getIntervals()) {
+                        if (interval.getRole() != Interval.Role.GONE && interval.contains(joint)) {
+                            mods.getIntervalMod().remove(interval);
+                        }
+                    }
+                    for (Face face : fabric.getFaces()) {
+                        if (face.getJoints().contains(joint)) {
+                            mods.getFaceMod().remove(face);
+                        }
+                    }
+                    for (Tetra tetra : fabric.getTetras()) {
+                        if (tetra.getJoints().contains(joint)) {
+                            mods.getTetraMod().remove(tetra);
+                        }
+                    }
+                    for (Vertebra vertebra : fabric.getVertebras()) {
+                        if (vertebra.getJoints().contains(joint)) {
+                            mods.getVertebraMod().remove(vertebra);
+                        }
+                    }
+                }
+            }
+        });
+        fabric.executeTransformations(null);
+        return fabric.getIntervals().size();
+    }
+
+    @Benchmark
+    public int indexed() {
+        fabric.addTransformation(new Fabric.Transformation() {
+            public void transform(Fabric fabric) {
+                for (Joint joint : doomed) {
+                    fabric.getMods().getJointMod().remove(joint);
+                }
+            }
+        });
+        fabric.executeTransformations(null);
+        return fabric.getIntervals().size();
+    }
+
+    // === the rest is private
+
+    /**
+     * The factory fills the lists of a sphere directly, so the fabric builds its index the first
+     * time it is asked which intervals touch a joint.  Asking once here keeps that out of the timing
+     * of both paths, which only have to keep the index up to date.
+     */
+
+    private void warmUpIndex() {
+        fabric.getIntervals(doomed.get(0));
+    }
+}
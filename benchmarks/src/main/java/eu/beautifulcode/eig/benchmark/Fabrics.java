@@ -0,0 +1,47 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.benchmark;
+
+import eu.beautifulcode.eig.structure.Fabric;
+import eu.beautifulcode.eig.structure.TensegritySphereFactory;
+import eu.beautifulcode.eig.structure.Vertebra;
+import eu.beautifulcode.eig.transform.GrowVertebra;
+
+/**
+ * The fabrics that the benchmarks work on, in sizes that grow roughly fourfold per step
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public enum Fabrics {
+
+    SPHERE {
+        public Fabric create(int size) {
+            return new TensegritySphereFactory(null).createSphere(size * 2, 1);
+        }
+    },
+
+    TUBE {
+        public Fabric create(int size) {
+            Fabric fabric = new Fabric(null);
+            GrowVertebra grow = new GrowVertebra(TUBE_GIRTH);
+            fabric.addTransformation(grow);
+            fabric.executeTransformations(null);
+            Vertebra vertebra = grow.getVertebra();
+            for (int walk = 1; walk < size * size * 2; walk++) {
+                grow = new GrowVertebra(vertebra, false, true);
+                fabric.addTransformation(grow);
+                fabric.executeTransformations(null);
+                vertebra = grow.getVertebra();
+            }
+            return fabric;
+        }
+    };
+
+    private static final int TUBE_GIRTH = 20;
+
+    public abstract Fabric create(int size);
+}
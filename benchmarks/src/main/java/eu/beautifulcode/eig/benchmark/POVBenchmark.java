@@ -0,0 +1,88 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.benchmark;
+
+import eu.beautifulcode.eig.jogl.PointOfView;
+import eu.beautifulcode.eig.povray.POVScriptGenerator;
+import eu.beautifulcode.eig.structure.Fabric;
+import eu.beautifulcode.eig.structure.FabricSnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Taking a snapshot and writing one POV-Ray frame from it.  The characters go nowhere, so this
+ * measures formatting rather than the disk.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class POVBenchmark {
+
+    @Param({"SPHERE", "TUBE"})
+    Fabrics shape;
+
+    @Param({"1", "2", "4", "8"})
+    int size;
+
+    private Fabric fabric;
+    private FabricSnapshot snapshot;
+    private POVScriptGenerator generator;
+    private Discard discard = new Discard();
+    private PrintWriter out = new PrintWriter(discard);
+
+    @Setup
+    public void setUp() {
+        fabric = shape.create(size);
+        snapshot = fabric.createSnapshot();
+        generator = new POVScriptGenerator(new File(System.getProperty("java.io.tmpdir")), new PointOfView(10));
+    }
+
+    @Benchmark
+    public FabricSnapshot snapshot() {
+        return fabric.createSnapshot();
+    }
+
+    @Benchmark
+    public long write() {
+        generator.write(snapshot, out);
+        out.flush();
+        return discard.count;
+    }
+
+    private static class Discard extends Writer {
+        long count;
+
+        public void write(char[] chars, int offset, int length) {
+            count += length;
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.benchmark;
+
+import eu.beautifulcode.eig.structure.ArrayPhysics;
+import eu.beautifulcode.eig.structure.Fabric;
+import eu.beautifulcode.eig.structure.Physics;
+import eu.beautifulcode.eig.structure.VerticalPhysicsConstraints;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ticks per second of the physics, one tick per invocation, so the score reads directly as ticks/sec.
+ *
+ * Sleeping is switched off on purpose, both for the whole fabric and for its regions, because a
+ * settled fabric would make every tick return at once and the scores would measure nothing.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhysicsBenchmark {
+
+    @Param({"SPHERE", "TUBE"})
+    Fabrics shape;
+
+    @Param({"1", "2", "4", "8"})
+    int size;
+
+    @Param({"OBJECT", "ARRAY"})
+    String engine;
+
+    private Fabric fabric;
+    private Physics physics;
+
+    @Setup
+    public void setUp() {
+        fabric = shape.create(size);
+        if ("ARRAY".equals(engine)) {
+            ArrayPhysics arrayPhysics = new ArrayPhysics(new VerticalPhysicsConstraints());
+            arrayPhysics.setRegionSleep(false);
+            physics = arrayPhysics;
+        }
+        else {
+            physics = new Physics(new VerticalPhysicsConstraints());
+        }
+        physics.setIterations(1);
+        physics.setSettleSpeed(0);
+    }
+
+    @Benchmark
+    public long tick() {
+        physics.transform(fabric);
+        return fabric.getAge();
+    }
+}
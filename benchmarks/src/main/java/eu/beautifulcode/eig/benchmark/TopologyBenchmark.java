@@ -0,0 +1,57 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.benchmark;
+
+import eu.beautifulcode.eig.structure.Fabric;
+import eu.beautifulcode.eig.structure.Joint;
+import eu.beautifulcode.eig.structure.Who;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the sheath map, which visits every joint and every interval
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopologyBenchmark {
+
+    @Param({"SPHERE", "TUBE"})
+    Fabrics shape;
+
+    @Param({"1", "2", "4", "8"})
+    int size;
+
+    private Fabric fabric;
+
+    @Setup
+    public void setUp() {
+        fabric = shape.create(size);
+    }
+
+    @Benchmark
+    public Map<Who, Joint.Sheath> sheathMap() {
+        return fabric.createSheathMap();
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.batch;
+
+import eu.beautifulcode.eig.structure.AdaptiveIntegrator;
+import eu.beautifulcode.eig.structure.ArrayPhysics;
+import eu.beautifulcode.eig.structure.EulerIntegrator;
+import eu.beautifulcode.eig.structure.Fablob;
+import eu.beautifulcode.eig.structure.Fabric;
+import eu.beautifulcode.eig.structure.FabricMetrics;
+import eu.beautifulcode.eig.structure.Interval;
+import eu.beautifulcode.eig.structure.Physics;
+import eu.beautifulcode.eig.structure.PhysicsValue;
+import eu.beautifulcode.eig.structure.StaticSolver;
+import eu.beautifulcode.eig.structure.TrajectoryWriter;
+import eu.beautifulcode.eig.structure.VerticalPhysicsConstraints;
+import eu.beautifulcode.eig.transform.SessionCheckpoint;
+import eu.beautifulcode.eig.transform.TubeGrower;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run the physics of a fabric as fast as possible without any display, so that
+ * simulations can be run on machines with no graphics at all.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class BatchRunner {
+    private static final Logger LOG = Logger.getLogger(BatchRunner.class);
+    private static final int DEFAULT_ITERATIONS = 50;
+    private static final int DEFAULT_KEYFRAMES = 100;
+    private static final long DEFAULT_CHECKPOINT_INTERVAL = 10000;
+    private Physics physics;
+    private int iterations = DEFAULT_ITERATIONS;
+    private long reportInterval = 10000;
+    private TrajectoryWriter trajectory;
+    private File checkpointFile;
+    private long checkpointInterval;
+    private VerticalPhysicsConstraints constraints;
+    private ExecutorService checkpointWriter;
+    private Future<?> checkpointWriting;
+
+    public BatchRunner(Physics physics) {
+        this.physics = physics;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public void setReportInterval(long reportInterval) {
+        this.reportInterval = reportInterval;
+    }
+
+    /**
+     * Record a frame after every batch of iterations.
+     *
+     * @param trajectory where to record, or null
+     */
+
+    public void setTrajectory(TrajectoryWriter trajectory) {
+        this.trajectory = trajectory;
+    }
+
+    /**
+     * Every so many ticks, capture the session between two batches and write it to a file on
+     * another thread, while the physics carries on.
+     *
+     * @param file where to keep the latest checkpoint
+     * @param interval how many ticks apart
+     * @param constraints whose values belong to the session
+     */
+
+    public void setCheckpoint(File file, long interval, VerticalPhysicsConstraints constraints) {
+        this.checkpointFile = file;
+        this.checkpointInterval = interval;
+        this.constraints = constraints;
+        if (checkpointWriter == null) {
+            checkpointWriter = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    /**
+     * Wait for the last checkpoint to be written, and let its thread go.
+     *
+     * @throws InterruptedException if the wait was interrupted
+     */
+
+    public void finishCheckpoints() throws InterruptedException {
+        if (checkpointWriter != null) {
+            checkpointWriter.shutdown();
+            checkpointWriter.awaitTermination(1, TimeUnit.MINUTES);
+            checkpointWriter = null;
+        }
+    }
+
+    /**
+     * Run the physics for a number of ticks, meanwhile growing the tube if there is a grower.
+     * Stops early if the fabric settles, since nothing more would happen.
+     *
+     * @param fabric what to run
+     * @param ticks how many iterations of the physics
+     * @param tubeGrower optional, consulted between batches of iterations
+     * @return the same fabric, with all pending transformations executed
+     */
+
+    public Fabric run(Fabric fabric, long ticks, TubeGrower tubeGrower) {
+        long start = System.currentTimeMillis();
+        long startAge = fabric.getAge();
+        long endAge = fabric.getAge() + ticks;
+        long nextReport = fabric.getAge() + reportInterval;
+        long nextCheckpoint = fabric.getAge() + checkpointInterval;
+        while (fabric.getAge() < endAge) {
+            if (tubeGrower != null) {
+                tubeGrower.grow(fabric);
+            }
+            if (physics.isAsleep(fabric)) {
+                LOG.info(String.format("settled at age %d", fabric.getAge()));
+                break;
+            }
+            physics.setIterations((int) Math.min(iterations, endAge - fabric.getAge()));
+            fabric.executeTransformations(physics);
+            record(fabric);
+            if (checkpointFile != null && fabric.getAge() >= nextCheckpoint) {
+                checkpoint(fabric, tubeGrower);
+                nextCheckpoint = fabric.getAge() + checkpointInterval;
+            }
+            if (fabric.getAge() >= nextReport && fabric.getAge() < endAge) {
+                report(fabric, start, startAge);
+                nextReport += reportInterval;
+            }
+        }
+        fabric.executeTransformations(null);
+        report(fabric, start, startAge);
+        return fabric;
+    }
+
+    public static Fabric load(File file) throws IOException {
+        return Fablob.map(file).createFabric(null);
+    }
+
+    public static void save(Fabric fabric, File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            new Fablob(fabric).write(out);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void checkpoint(Fabric fabric, TubeGrower tubeGrower) {
+        if (checkpointWriting != null && !checkpointWriting.isDone()) {
+            LOG.warn(String.format("age %d, skipping a checkpoint since the last one is still being written", fabric.getAge()));
+            return;
+        }
+        final SessionCheckpoint checkpoint = SessionCheckpoint.capture(fabric, constraints, tubeGrower);
+        final long age = fabric.getAge();
+        checkpointWriting = checkpointWriter.submit(new Runnable() {
+            public void run() {
+                try {
+                    checkpoint.write(checkpointFile);
+                    LOG.info(String.format("age %d, checkpoint written to %s", age, checkpointFile));
+                }
+                catch (IOException e) {
+                    LOG.error("Couldn't write the checkpoint", e);
+                }
+            }
+        });
+    }
+
+    private void record(Fabric fabric) {
+        if (trajectory != null) {
+            try {
+                trajectory.record(fabric);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Couldn't record the trajectory", e);
+            }
+        }
+    }
+
+    private void report(Fabric fabric, long start, long startAge) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        LOG.info(String.format(
+                "age %d, %d joints, %d intervals, %d ms, %.1f ticks/sec",
+                fabric.getAge(), fabric.getJoints().size(), fabric.getIntervals().size(),
+                elapsed, (fabric.getAge() - startAge) * 1000.0 / elapsed
+        ));
+    }
+
+    private static void usage() {
+        System.out.println("usage: BatchRunner [options]");
+        System.out.println("  -in <file>           start from a saved fablob");
+        System.out.println("  -resume <file>       carry on from a session checkpoint");
+        System.out.println("  -girth <n>           or grow a tube with this many bars around (default 20)");
+        System.out.println("  -length <n>          and this many vertebrae (default 60)");
+        System.out.println("  -straight            no zigzag between vertebrae");
+        System.out.println("  -klein               join the ends of the tube when it is grown");
+        System.out.println("  -span <ROLE>=<ideal> ideal span for a role of interval");
+        System.out.println("  -<physics>=<value>   airDrag, airGravity, landDrag, landGravity, elasticFactor");
+        System.out.println("  -ticks <n>           how long to run (default 100000)");
+        System.out.println("  -iterations <n>      ticks between transformations (default " + DEFAULT_ITERATIONS + ")");
+        System.out.println("  -threads <n>         physics threads (default all processors)");
+        System.out.println("  -settle <speed>      stop when no joint moves faster (default " + Physics.DEFAULT_SETTLE_SPEED + ", 0 never stops)");
+        System.out.println("  -regions             let settled vertebrae sleep while the rest moves on");
+        System.out.println("  -step <h>            time step of each tick (default 1)");
+        System.out.println("  -adaptive            divide ticks into smaller steps while stresses ring");
+        System.out.println("  -solve               afterwards solve directly for the shape at rest");
+        System.out.println("  -metrics <n>         log where the time goes, averaged over every n batches");
+        System.out.println("  -record <file>       append a frame to a trajectory after every batch of iterations");
+        System.out.println("  -keyframes <n>       frames from one whole fablob in the trajectory to the next (default " + DEFAULT_KEYFRAMES + ")");
+        System.out.println("  -quantize <p>,<s>    record joints to within p times the radius and stresses to within s");
+        System.out.println("  -checkpoint <file>   keep a session checkpoint up to date while running");
+        System.out.println("  -every <n>           ticks between checkpoints (default " + DEFAULT_CHECKPOINT_INTERVAL + ")");
+        System.out.println("  -out <file>          where to save the resulting fablob");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File in = null;
+        File resume = null;
+        File checkpoint = null;
+        long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+        List<String> physicsSettings = new ArrayList<String>();
+        File out = null;
+        File record = null;
+        int keyframes = DEFAULT_KEYFRAMES;
+        double[] quantization = null;
+        int girth = 20;
+        int length = 60;
+        boolean zigzag = true;
+        boolean klein = false;
+        long ticks = 100000;
+        int iterations = DEFAULT_ITERATIONS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double settleSpeed = Physics.DEFAULT_SETTLE_SPEED;
+        boolean regionSleep = false;
+        double timeStep = 1;
+        boolean adaptive = false;
+        boolean solve = false;
+        int metricsInterval = 0;
+        Map<Interval.Role, Physics.Value> spanMap = new TreeMap<Interval.Role, Physics.Value>();
+        VerticalPhysicsConstraints constraints = new VerticalPhysicsConstraints();
+        try {
+            for (int walk = 0; walk < args.length; walk++) {
+                String arg = args[walk];
+                if (arg.equals("-in")) {
+                    in = new File(args[++walk]);
+                }
+                else if (arg.equals("-out")) {
+                    out = new File(args[++walk]);
+                }
+                else if (arg.equals("-resume")) {
+                    resume = new File(args[++walk]);
+                }
+                else if (arg.equals("-checkpoint")) {
+                    checkpoint = new File(args[++walk]);
+                }
+                else if (arg.equals("-every")) {
+                    checkpointInterval = Long.parseLong(args[++walk]);
+                }
+                else if (arg.equals("-record")) {
+                    record = new File(args[++walk]);
+                }
+                else if (arg.equals("-keyframes")) {
+                    keyframes = Integer.parseInt(args[++walk]);
+                }
+                else if (arg.equals("-quantize")) {
+                    String[] errors = args[++walk].split(",");
+                    quantization = new double[]{Double.parseDouble(errors[0]), Double.parseDouble(errors[1])};
+                }
+                else if (arg.equals("-girth")) {
+                    girth = Integer.parseInt(args[++walk]);
+                }
+                else if (arg.equals("-length")) {
+                    length = Integer.parseInt(args[++walk]);
+                }
+                else if (arg.equals("-straight")) {
+                    zigzag = false;
+                }
+                else if (arg.equals("-klein")) {
+                    klein = true;
+                }
+                else if (arg.equals("-ticks")) {
+                    ticks = Long.parseLong(args[++walk]);
+                }
+                else if (arg.equals("-iterations")) {
+                    iterations = Integer.parseInt(args[++walk]);
+                }
+                else if (arg.equals("-threads")) {
+                    threads = Integer.parseInt(args[++walk]);
+                }
+                else if (arg.equals("-settle")) {
+                    settleSpeed = Double.parseDouble(args[++walk]);
+                }
+                else if (arg.equals("-regions")) {
+                    regionSleep = true;
+                }
+                else if (arg.equals("-step")) {
+                    timeStep = Double.parseDouble(args[++walk]);
+                }
+                else if (arg.equals("-adaptive")) {
+                    adaptive = true;
+                }
+                else if (arg.equals("-solve")) {
+                    solve = true;
+                }
+                else if (arg.equals("-metrics")) {
+                    metricsInterval = Integer.parseInt(args[++walk]);
+                }
+                else if (arg.equals("-span")) {
+                    String[] roleValue = args[++walk].split("=");
+                    Interval.Role role = Interval.Role.valueOf(roleValue[0].toUpperCase());
+                    spanMap.put(role, new PhysicsValue(role.toString(), Double.parseDouble(roleValue[1])));
+                }
+                else if (arg.startsWith("-") && arg.contains("=")) {
+                    setPhysicsValue(constraints, arg.substring(1));
+                    physicsSettings.add(arg.substring(1));
+                }
+                else {
+                    throw new IllegalArgumentException(arg);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            usage();
+            System.exit(1);
+        }
+        ArrayPhysics physics = new ArrayPhysics(constraints);
+        physics.setThreads(threads);
+        physics.setSettleSpeed(settleSpeed);
+        physics.setRegionSleep(regionSleep);
+        ArrayPhysics.Integrator integrator = new EulerIntegrator(timeStep);
+        physics.setIntegrator(adaptive ? new AdaptiveIntegrator(integrator) : integrator);
+        BatchRunner runner = new BatchRunner(physics);
+        runner.setIterations(iterations);
+        Fabric fabric;
+        TubeGrower tubeGrower = null;
+        if (resume != null) {
+            SessionCheckpoint restored = SessionCheckpoint.read(resume);
+            fabric = restored.getFabric();
+            tubeGrower = restored.getTubeGrower();
+            restored.applyPhysicsValues(constraints);
+            for (String setting : physicsSettings) {
+                setPhysicsValue(constraints, setting);
+            }
+            LOG.info(String.format("Resumed at age %d from %s", fabric.getAge(), resume));
+        }
+        else if (in != null) {
+            fabric = load(in);
+        }
+        else {
+            tubeGrower = new TubeGrower(girth, length, zigzag);
+            tubeGrower.setSpanMap(spanMap);
+            tubeGrower.setKleinify(klein);
+            fabric = tubeGrower.createFabric();
+        }
+        if (metricsInterval > 0) {
+            FabricMetrics metrics = new FabricMetrics();
+            metrics.setLogInterval(metricsInterval);
+            fabric.setMetrics(metrics);
+        }
+        TrajectoryWriter trajectory = null;
+        if (record != null) {
+            trajectory = new TrajectoryWriter(record, keyframes);
+            if (quantization != null) {
+                trajectory.setQuantization(quantization[0], quantization[1]);
+            }
+            runner.setTrajectory(trajectory);
+        }
+        if (checkpoint != null) {
+            runner.setCheckpoint(checkpoint, checkpointInterval, constraints);
+        }
+        runner.run(fabric, ticks, tubeGrower);
+        runner.finishCheckpoints();
+        if (trajectory != null) {
+            trajectory.close();
+            LOG.info("Recorded to " + record);
+        }
+        if (solve) {
+            if (fabric.isAnySpanActive()) {
+                LOG.warn("Spans are still changing, the solution will not last");
+            }
+            new StaticSolver(constraints).solve(fabric);
+        }
+        if (out != null) {
+            save(fabric, out);
+            LOG.info("Saved to " + out);
+        }
+        physics.setThreads(1);
+    }
+
+    private static void setPhysicsValue(VerticalPhysicsConstraints constraints, String nameValue) {
+        String[] parts = nameValue.split("=");
+        for (PhysicsValue value : constraints.getPhysicsValues()) {
+            if (value.getName().equals(parts[0])) {
+                value.set(Double.parseDouble(parts[1]));
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No physics value " + parts[0]);
+    }
+}
@@ -4,23 +4,27 @@
  */
 package eu.beautifulcode.eig.gui;
 
-import eu.beautifulcode.eig.jogl.EllipsoidPainter;
+import eu.beautifulcode.eig.jogl.BarPainter;
 import eu.beautifulcode.eig.jogl.Floor;
 import eu.beautifulcode.eig.jogl.GLRenderer;
 import eu.beautifulcode.eig.jogl.GLViewPlatform;
+import eu.beautifulcode.eig.jogl.HeadsUp;
 import eu.beautifulcode.eig.jogl.IntervalLabelPainter;
 import eu.beautifulcode.eig.jogl.LinePainter;
+import eu.beautifulcode.eig.jogl.MetricsHeadsUp;
 import eu.beautifulcode.eig.jogl.PointOfView;
 import eu.beautifulcode.eig.povray.POVScriptGenerator;
+import eu.beautifulcode.eig.structure.ArrayPhysics;
 import eu.beautifulcode.eig.structure.Fabric;
+import eu.beautifulcode.eig.structure.FabricMetrics;
+import eu.beautifulcode.eig.structure.FabricSnapshot;
 import eu.beautifulcode.eig.structure.Interval;
+import eu.beautifulcode.eig.structure.MidpointGrid;
 import eu.beautifulcode.eig.structure.Physics;
 import eu.beautifulcode.eig.structure.Span;
-import eu.beautifulcode.eig.structure.Vertebra;
 import eu.beautifulcode.eig.structure.VerticalPhysicsConstraints;
 import eu.beautifulcode.eig.transform.AboveFloor;
-import eu.beautifulcode.eig.transform.ConnectVertebra;
-import eu.beautifulcode.eig.transform.GrowVertebra;
+import eu.beautifulcode.eig.transform.TubeGrower;
 import org.apache.log4j.Logger;
 
 import javax.media.opengl.GL;
@@ -81,14 +85,15 @@ public class TensegrityKlein extends Frame {
     private static final float LIGHT_POSITION[] = {1f, 0.1f, 2f, 0.5f};
     private Logger log = Logger.getLogger(getClass());
     private VerticalPhysicsConstraints verticalPhysicsConstraints = new VerticalPhysicsConstraints();
-    private Physics physics = new Physics(verticalPhysicsConstraints);
+    private ArrayPhysics physics = new ArrayPhysics(verticalPhysicsConstraints);
     private GLCanvas canvas;
     private Floor floor = new Floor();
     private PointOfView pointOfView = new PointOfView(10);
     private Map<Interval.Role, Physics.Value> spanMap = new TreeMap<Interval.Role, Physics.Value>();
     private boolean[] roleVisible = new boolean[Interval.Role.values().length];
     private Queue<Runnable> jobs = new ConcurrentLinkedQueue<Runnable>();
-    private Positioner positioner = new Positioner(jobs, pointOfView);
+    private Queue<Runnable> viewJobs = new ConcurrentLinkedQueue<Runnable>();
+    private Positioner positioner = new Positioner(viewJobs, pointOfView);
     private DefaultBoundedRangeModel timeModel = new DefaultBoundedRangeModel();
     private DoubleRangeModel gravityModel = new DoubleRangeModel(verticalPhysicsConstraints.getAirGravity(), 100);
     private DoubleRangeModel dragModel = new DoubleRangeModel(verticalPhysicsConstraints.getAirDrag(), 10);
@@ -102,9 +107,12 @@ public class TensegrityKlein extends Frame {
     private IntervalFamily cross = new IntervalFamily(Interval.Role.CROSS, 1, 2);
     private JCheckBox zigzagBox = new JCheckBox("Zigzag", true);
     private POVScriptGenerator povScriptGenerator = new POVScriptGenerator(new File("POV"), pointOfView);
+    private FabricMetrics metrics = new FabricMetrics();
+    private GLViewPlatform viewPlatform;
+    private boolean metricsVisible;
 
-    private Fabric fabric;
-    private boolean running = true;
+    private volatile Fabric fabric;
+    private volatile boolean running = true;
     private boolean physicsActive = true;
     private int step;
 
@@ -127,12 +135,14 @@ public class TensegrityKlein extends Frame {
         super("Tensegrity Demo");
 //        floor.setMiddle(pointOfView.getFocus());
         spanMap.put(Interval.Role.SCAFFOLD, new IdealLength(Interval.Role.SCAFFOLD, 1.3));
+        physics.setThreads(Runtime.getRuntime().availableProcessors());
+        physics.setRegionSleep(true);
         GLProfile glprofile = GLProfile.getDefault();
         GLCapabilities glcapabilities = new GLCapabilities( glprofile );
         canvas = new GLCanvas(glcapabilities);
         canvas.setFocusable(true);
         Arrays.fill(roleVisible, true);
-        GLViewPlatform viewPlatform = new GLViewPlatform(new Renderer(), pointOfView, 1, 180);
+        viewPlatform = new GLViewPlatform(new Renderer(), pointOfView, 1, 180);
         canvas.addGLEventListener(viewPlatform);
         canvas.requestFocus();
         canvas.addKeyListener(new KeyHandler());
@@ -145,6 +155,9 @@ public class TensegrityKlein extends Frame {
         Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
         setSize(screenSize.width, screenSize.height);
         wireUp();
+        Thread simulation = new Thread(new Simulation(), "simulation");
+        simulation.setDaemon(true);
+        simulation.start();
     }
 
     private JPanel createControlPanel() {
@@ -199,10 +212,7 @@ public class TensegrityKlein extends Frame {
         createButton("Kleinify", p, gbc, new Runnable() {
             @Override
             public void run() {
-                fabric.addTransformation(new RingRemover());
-                Vertebra vertebraA = fabric.getVertebras().get(fabric.getVertebras().size() - 1);
-                Vertebra vertebraB = fabric.getVertebras().get(0);
-                fabric.addTransformation(new ConnectVertebra(vertebraA, vertebraB, true));
+                TubeGrower.kleinify(fabric);
             }
         }
         );
@@ -220,17 +230,17 @@ public class TensegrityKlein extends Frame {
         gbc.fill = GridBagConstraints.HORIZONTAL;
         gbc.gridy = 0;
         gbc.weightx = 1;
-        createButton("Snapshot", p, gbc, new Runnable() {
+        createButton("Snapshot", p, gbc, viewJobs, new Runnable() {
             public void run() {
                 povScriptGenerator.recordImage();
             }
         });
-        createButton("Record", p, gbc, new Runnable() {
+        createButton("Record", p, gbc, viewJobs, new Runnable() {
             public void run() {
                 povScriptGenerator.startMovie();
             }
         });
-        createButton("Stop", p, gbc, new Runnable() {
+        createButton("Stop", p, gbc, viewJobs, new Runnable() {
             public void run() {
                 povScriptGenerator.endMovie();
             }
@@ -238,11 +248,15 @@ public class TensegrityKlein extends Frame {
         return p;
     }
 
-    private void createButton(String name, JPanel p, GridBagConstraints gbc, final Runnable job) {
+    private void createButton(String name, JPanel p, GridBagConstraints gbc, Runnable job) {
+        createButton(name, p, gbc, jobs, job);
+    }
+
+    private void createButton(String name, JPanel p, GridBagConstraints gbc, final Queue<Runnable> queue, final Runnable job) {
         JButton button = new JButton(name);
         button.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent event) {
-                jobs.add(job);
+                queue.add(job);
             }
         });
         gbc.gridy++;
@@ -412,46 +426,30 @@ public class TensegrityKlein extends Frame {
 
         @Override
         public void run() {
-            fabric = new Fabric(null);
-            GrowVertebra growVertebra = new GrowVertebra(girth);
-            growVertebra.setSpanMap(spanMap);
-            fabric.addTransformation(growVertebra);
-            fabric.addTransformation(new AboveFloor(0));
-            fabric.executeTransformations(physics);
-            if (length > 1) {
-                new TubeGrower(length - 1, zigzag).start();
+            TubeGrower tubeGrower = new TubeGrower(girth, length, zigzag);
+            tubeGrower.setSpanMap(spanMap);
+            Fabric fresh = tubeGrower.createFabric();
+            fresh.setPublishSnapshots(true);
+            fresh.setMetrics(metrics);
+            fresh.executeTransformations(physics);
+            fabric = fresh;
+            if (!tubeGrower.isFinished()) {
+                new GrowthTimer(tubeGrower).start();
             }
         }
     }
 
-    private class TubeGrower implements Runnable, ActionListener {
-        private int length;
-        private boolean kleinify;
-        private boolean zigzag;
+    private class GrowthTimer implements Runnable, ActionListener {
+        private TubeGrower tubeGrower;
         private Timer timer = new Timer(100, this);
 
-        private TubeGrower(int length, boolean zigzag) {
-            this.length = length;
-            this.kleinify = false;
-            this.zigzag = zigzag;
+        private GrowthTimer(TubeGrower tubeGrower) {
+            this.tubeGrower = tubeGrower;
         }
 
         public void run() {
-            if (!fabric.isAnySpanActive()) {
-                Vertebra vertebra = fabric.getVertebras().get(fabric.getVertebras().size() - 1);
-                GrowVertebra growVertebra = new GrowVertebra(vertebra, false, zigzag); // false => omega
-                growVertebra.setSpanMap(spanMap);
-                fabric.addTransformation(growVertebra);
-                length--;
-                if (length <= 0) {
-                    if (kleinify) {
-                        fabric.addTransformation(new RingRemover());
-                        Vertebra vertebraA = fabric.getVertebras().get(fabric.getVertebras().size() - 1);
-                        Vertebra vertebraB = fabric.getVertebras().get(0);
-                        fabric.addTransformation(new ConnectVertebra(vertebraA, vertebraB, true));
-                    }
-                    timer.stop();
-                }
+            if (tubeGrower.grow(fabric)) {
+                timer.stop();
             }
         }
 
@@ -467,64 +465,110 @@ public class TensegrityKlein extends Frame {
 
     private class Renderer implements GLRenderer {
         private StressRange stressRange = new StressRange();
-        private EllipsoidPainter ellipsoidPainter = new EllipsoidPainter(stressRange);
+        private BarPainter barPainter = new BarPainter(stressRange);
         private LinePainter linePainter = new LinePainter(stressRange);
         private IntervalLabelPainter intervalLabelPainter = new IntervalLabelPainter(pointOfView);
+        private FabricSnapshot labelSnapshot;
+        private MidpointGrid.Visitor labelVisitor = new MidpointGrid.Visitor() {
+            public void visit(int interval) {
+                if (roleVisible[labelSnapshot.getRole(interval).ordinal()]) {
+                    intervalLabelPainter.visit(labelSnapshot, interval);
+                }
+            }
+        };
         private DecimalFormat formatter = new DecimalFormat("00000");
         private int frameNumber;
 
         public void init(GL2 gl) {
-            ellipsoidPainter.setWidth(0.01);
+            barPainter.setWidth(0.01);
             intervalLabelPainter.setFeature(IntervalLabelPainter.Feature.ROLE);
         }
 
+        public void dispose(GL2 gl) {
+            barPainter.dispose(gl);
+            linePainter.dispose(gl);
+        }
+
         public void display(GL2 gl, int width, int height) {
             gl.glLightfv(GL2.GL_LIGHT0, GL2.GL_POSITION, LIGHT_POSITION, 0);
             Fabric f = fabric;
+            FabricSnapshot snapshot = f == null ? null : f.getSnapshot();
             if (f != null) {
-                renderFabric(gl, f);
+                boolean labels = intervalLabelPainter.getFeature() != IntervalLabelPainter.Feature.NOTHING;
+                f.setMidpointCellSize(labels ? IntervalLabelPainter.NEAR_DISTANCE / 2 : 0);
+            }
+            if (snapshot != null) {
+                renderFabric(gl, snapshot);
             }
-            while (!jobs.isEmpty()) {
-                jobs.remove().run();
+            while (!viewJobs.isEmpty()) {
+                viewJobs.remove().run();
             }
             floor.display(gl);
-            povScriptGenerator.startFrame();
-            povScriptGenerator.visit(fabric);
-            povScriptGenerator.endFrame();
+            if (snapshot != null) {
+                povScriptGenerator.startFrame();
+                povScriptGenerator.visit(snapshot);
+                povScriptGenerator.endFrame();
+            }
             positioner.run();
         }
 
-        void renderFabric(GL2 gl, Fabric fab) {
-            if (physicsActive || step > 0) {
-                fab.executeTransformations(physics);
-                if (step > 0) {
-                    step--;
-                }
-            }
-            ellipsoidPainter.preVisit(gl);
-            for (Interval interval : fab.getIntervals()) {
-                switch (interval.getRole()) {
+        void renderFabric(GL2 gl, FabricSnapshot snapshot) {
+            barPainter.preVisit(gl);
+            for (int walk = 0; walk < snapshot.getIntervalCount(); walk++) {
+                Interval.Role role = snapshot.getRole(walk);
+                switch (role) {
                     case BAR:
                     case SPRING:
                     case SCAFFOLD:
-                        if (roleVisible[interval.getRole().ordinal()]) {
-                            interval.getUnit(true);
-                            ellipsoidPainter.visit(interval);
+                        if (roleVisible[role.ordinal()]) {
+                            barPainter.visit(snapshot, walk);
                         }
                         break;
                 }
             }
+            barPainter.postVisit(gl);
             linePainter.preVisit(gl);
-            for (Interval interval : fab.getIntervals()) {
-                if (roleVisible[interval.getRole().ordinal()]) {
-                    linePainter.visit(interval);
+            for (int walk = 0; walk < snapshot.getIntervalCount(); walk++) {
+                if (roleVisible[snapshot.getRole(walk).ordinal()]) {
+                    linePainter.visit(snapshot, walk);
                 }
             }
             linePainter.postVisit(gl);
-            intervalLabelPainter.preVisit(gl);
-            for (Interval interval : fab.getIntervals()) {
-                if (roleVisible[interval.getRole().ordinal()]) {
-                    intervalLabelPainter.visit(interval);
+            MidpointGrid midpointGrid = snapshot.getMidpointGrid();
+            if (midpointGrid != null && intervalLabelPainter.getFeature() != IntervalLabelPainter.Feature.NOTHING) {
+                intervalLabelPainter.preVisit(gl);
+                labelSnapshot = snapshot;
+                midpointGrid.visitInView(
+                        pointOfView.getEye(), pointOfView.getGaze(), viewPlatform.getViewAngle(),
+                        IntervalLabelPainter.NEAR_DISTANCE, labelVisitor
+                );
+            }
+        }
+    }
+
+    /**
+     * Runs the jobs and the physics on its own thread, as fast as it can.  The renderer only ever
+     * sees the snapshots that the fabric publishes, so the two never touch the same objects.
+     */
+
+    private class Simulation implements Runnable {
+        public void run() {
+            while (running) {
+                while (!jobs.isEmpty()) {
+                    jobs.remove().run();
+                }
+                Fabric f = fabric;
+                if (f != null && step > 0) {
+                    f.wake();
+                }
+                if (f != null && (physicsActive || step > 0) && !physics.isAsleep(f)) {
+                    f.executeTransformations(physics);
+                    if (step > 0) {
+                        step--;
+                    }
+                }
+                else {
+                    pause(delay);
                 }
             }
         }
@@ -548,31 +592,42 @@ public class TensegrityKlein extends Frame {
         public void keyPressed(KeyEvent event) {
             switch (event.getKeyCode()) {
                 case KeyEvent.VK_S:
-                    step++;
+                    jobs.add(new Runnable() {
+                        public void run() {
+                            step++;
+                        }
+                    });
+                    break;
+                case KeyEvent.VK_M:
+                    viewJobs.add(new Runnable() {
+                        public void run() {
+                            metricsVisible = !metricsVisible;
+                            if (metricsVisible) {
+                                viewPlatform.getHeadsUp().set(HeadsUp.Pos.BOTTOM_LEFT, new MetricsHeadsUp(metrics).getLines());
+                            }
+                            else {
+                                viewPlatform.getHeadsUp().set(HeadsUp.Pos.BOTTOM_LEFT);
+                            }
+                        }
+                    });
                     break;
                 case KeyEvent.VK_C:
-                    log.info(String.format("Joints %d", fabric.getJoints().size()));
-                    for (Interval.Role role : Interval.Role.values()) {
-                        List<Interval> intervals = fabric.getIntervals(role);
-                        if (!intervals.isEmpty()) {
-                            log.info(String.format("%s %d", role, intervals.size()));
+                    jobs.add(new Runnable() {
+                        public void run() {
+                            log.info(String.format("Joints %d", fabric.getJoints().size()));
+                            for (Interval.Role role : Interval.Role.values()) {
+                                List<Interval> intervals = fabric.getIntervals(role);
+                                if (!intervals.isEmpty()) {
+                                    log.info(String.format("%s %d", role, intervals.size()));
+                                }
+                            }
                         }
-                    }
+                    });
                     break;
             }
         }
     }
 
-    private class RingRemover implements Fabric.Transformation {
-        public void transform(Fabric fabric) {
-            for (Interval interval : fabric.getIntervals()) {
-                if (interval.getRole() == Interval.Role.SCAFFOLD) {
-                    fabric.getMods().getIntervalMod().remove(interval);
-                }
-            }
-        }
-    }
-
     private class IdealLength implements Physics.Value {
         private Interval.Role role;
         private double value;
@@ -595,6 +650,7 @@ public class TensegrityKlein extends Frame {
                             interval.getSpan().setIdeal(IdealLength.this.value, 0);
                         }
                     }
+                    fabric.wake();
 
                 }
             });
@@ -616,13 +672,34 @@ public class TensegrityKlein extends Frame {
     static long delay = 10;
 
     public static void main(String[] args) {
-        TensegrityKlein tensegrityKlein = new TensegrityKlein();
+        final TensegrityKlein tensegrityKlein = new TensegrityKlein();
         pause(100);
         tensegrityKlein.setVisible(true);
         while (tensegrityKlein.running) {
             pause(delay);
             tensegrityKlein.iterate();
         }
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() {
+                    tensegrityKlein.dispose(); // the canvas goes too, which lets the renderer clean up
+                }
+            });
+        }
+        catch (Exception e) {
+            tensegrityKlein.log.warn("Unable to close the window", e);
+        }
+        try {
+            tensegrityKlein.povScriptGenerator.awaitWritten();
+        }
+        catch (IOException e) {
+            tensegrityKlein.log.error("POV-Ray scripts were not completely written", e);
+            System.exit(1);
+        }
+        catch (InterruptedException e) {
+            tensegrityKlein.log.error("Interrupted while writing POV-Ray scripts", e);
+            System.exit(1);
+        }
         System.exit(0);
     }
 }
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+package eu.beautifulcode.eig.jogl;
+
+import com.jogamp.common.nio.Buffers;
+import eu.beautifulcode.eig.math.Arrow;
+import eu.beautifulcode.eig.structure.FabricSnapshot;
+import eu.beautifulcode.eig.structure.Interval;
+import eu.beautifulcode.eig.structure.Span;
+import org.apache.log4j.Logger;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GL3;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import static javax.media.opengl.GL2.*;
+
+/**
+ * Paint intervals as ellipsoids colored by their stress, all of them at once.  The visits only
+ * collect where each bar is, which way it points, how long it is and what color it should have,
+ * and postVisit hands the lot to the card in one buffer to be drawn with a single instanced call
+ * on one sphere mesh.
+ *
+ * When the context cannot draw instances, which needs GL 3.3 or at least the instanced arrays,
+ * the same collected bars are drawn one by one from a display list which is made only once.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class BarPainter {
+    private static final Logger LOG = Logger.getLogger(BarPainter.class);
+    public static final double DEFAULT_WIDTH = 0.05;
+    private static final double MINIMUM_SPAN = 0.01;
+    private static final double RADIANS_TO_DEGREES = 180 / Math.PI;
+    private static final int SLICES = 7, STACKS = 7;
+    private static final int FLOATS_PER_BAR = 10;
+    private static final int POSITION = 0, MIDPOINT = 1, UNIT = 2, SPAN = 3, COLOR = 4;
+    private static float SHININESS = -1000.0f;
+    private Tint SPECULAR = new Tint(Tint.BLACK, Tint.WHITE, 0.6f);
+    private Arrow intervalLocation = new Arrow();
+    private Arrow intervalUnit = new Arrow();
+    private float[] color = new float[4];
+    private double width = DEFAULT_WIDTH;
+    private Span.StressRange range;
+    private FloatBuffer bars = Buffers.newDirectFloatBuffer(FLOATS_PER_BAR * 256);
+    private boolean initialized, instanced;
+    private int program, widthUniform, sphereBuffer, indexBuffer, barBuffer, indexCount;
+    private int glSphere;
+
+    public BarPainter(Span.StressRange range) {
+        this.range = range;
+        color[3] = 1;
+    }
+
+    public Span.StressRange getRange() {
+        return range;
+    }
+
+    public void setWidth(double width) {
+        this.width = width;
+    }
+
+    public boolean isInstanced() {
+        return instanced;
+    }
+
+    public void preVisit(GL2 gl) {
+        if (!initialized) {
+            init(gl);
+        }
+        bars.clear();
+    }
+
+    public void visit(Interval interval) {
+        interval.getLocation(intervalLocation);
+        add(intervalLocation, interval.getUnit(false), interval.getSpan().getActual(), interval.getSpan().getStress(range));
+    }
+
+    public void visit(FabricSnapshot snapshot, int interval) {
+        snapshot.getMidpoint(interval, intervalLocation);
+        snapshot.getUnit(interval, intervalUnit);
+        add(intervalLocation, intervalUnit, snapshot.getActual(interval), snapshot.getStress(interval, range));
+    }
+
+    public void postVisit(GL2 gl) {
+        bars.flip();
+        int count = bars.remaining() / FLOATS_PER_BAR;
+        if (count == 0) {
+            return;
+        }
+        gl.glMaterialfv(GL.GL_FRONT, GL_SPECULAR, SPECULAR.getFloatArray(), 0);
+        gl.glMaterialf(GL.GL_FRONT, GL_SHININESS, SHININESS);
+        gl.glEnable(GL_LIGHTING);
+        if (instanced) {
+            drawInstanced(gl, count);
+        }
+        else {
+            drawOneByOne(gl, count);
+        }
+    }
+
+    /**
+     * Give back what was made on the card, for when the context goes away.
+     *
+     * @param gl the graphics context
+     */
+
+    public void dispose(GL2 gl) {
+        if (!initialized) {
+            return;
+        }
+        if (instanced) {
+            gl.glDeleteBuffers(3, new int[]{sphereBuffer, indexBuffer, barBuffer}, 0);
+            gl.glDeleteProgram(program);
+        }
+        else {
+            gl.glDeleteLists(glSphere, 1);
+        }
+        initialized = false;
+    }
+
+    // === the rest is private
+
+    private void init(GL2 gl) {
+        instanced = gl.isGL3() && gl.isFunctionAvailable("glVertexAttribDivisor") && gl.isFunctionAvailable("glDrawElementsInstanced");
+        if (instanced) {
+            program = createProgram(gl);
+            instanced = program != 0;
+        }
+        if (instanced) {
+            createBuffers(gl);
+        }
+        else {
+            LOG.info("Painting bars one by one, this context cannot draw instances");
+            glSphere = gl.glGenLists(1);
+            gl.glNewList(glSphere, GL_COMPILE);
+            gl.glBegin(GL_TRIANGLES);
+            ShortBuffer indexes = sphereIndexes();
+            FloatBuffer sphere = sphereVertexes();
+            while (indexes.hasRemaining()) {
+                int index = indexes.get() * 3;
+                gl.glNormal3f(sphere.get(index), sphere.get(index + 1), sphere.get(index + 2));
+                gl.glVertex3f(sphere.get(index), sphere.get(index + 1), sphere.get(index + 2));
+            }
+            gl.glEnd();
+            gl.glEndList();
+        }
+        initialized = true;
+    }
+
+    private void add(Arrow location, Arrow unit, double span, double stress) {
+        if (span < MINIMUM_SPAN) {
+            return;
+        }
+        if (bars.remaining() < FLOATS_PER_BAR) {
+            FloatBuffer bigger = Buffers.newDirectFloatBuffer(bars.capacity() * 2);
+            bars.flip();
+            bigger.put(bars);
+            bars = bigger;
+        }
+        bars.put((float) location.x).put((float) location.y).put((float) location.z);
+        bars.put((float) unit.x).put((float) unit.y).put((float) unit.z);
+        bars.put((float) span);
+        bars.put(adjust(1 - stress)).put(0.4f).put(adjust(stress));
+    }
+
+    private void drawInstanced(GL2 gl, int count) {
+        GL3 gl3 = gl.getGL3();
+        gl.glUseProgram(program);
+        gl.glUniform1f(widthUniform, (float) width);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, sphereBuffer);
+        gl.glEnableVertexAttribArray(POSITION);
+        gl.glVertexAttribPointer(POSITION, 3, GL.GL_FLOAT, false, 0, 0);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, barBuffer);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) bars.capacity() * Buffers.SIZEOF_FLOAT, null, GL2.GL_STREAM_DRAW);
+        gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, (long) bars.remaining() * Buffers.SIZEOF_FLOAT, bars);
+        int stride = FLOATS_PER_BAR * Buffers.SIZEOF_FLOAT;
+        instanceAttribute(gl, gl3, MIDPOINT, 3, stride, 0);
+        instanceAttribute(gl, gl3, UNIT, 3, stride, 3);
+        instanceAttribute(gl, gl3, SPAN, 1, stride, 6);
+        instanceAttribute(gl, gl3, COLOR, 3, stride, 7);
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+        gl.glDrawElementsInstanced(GL.GL_TRIANGLES, indexCount, GL.GL_UNSIGNED_SHORT, 0, count);
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+        for (int attribute = MIDPOINT; attribute <= COLOR; attribute++) {
+            gl3.glVertexAttribDivisor(attribute, 0);
+            gl.glDisableVertexAttribArray(attribute);
+        }
+        gl.glDisableVertexAttribArray(POSITION);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        gl.glUseProgram(0);
+    }
+
+    private static void instanceAttribute(GL2 gl, GL3 gl3, int attribute, int size, int stride, int offset) {
+        gl.glEnableVertexAttribArray(attribute);
+        gl.glVertexAttribPointer(attribute, size, GL.GL_FLOAT, false, stride, (long) offset * Buffers.SIZEOF_FLOAT);
+        gl3.glVertexAttribDivisor(attribute, 1);
+    }
+
+    private void drawOneByOne(GL2 gl, int count) {
+        for (int walk = 0; walk < count; walk++) {
+            int bar = walk * FLOATS_PER_BAR;
+            float unitX = bars.get(bar + 3), unitY = bars.get(bar + 4), unitZ = bars.get(bar + 5);
+            float span = bars.get(bar + 6);
+            color[0] = bars.get(bar + 7);
+            color[1] = bars.get(bar + 8);
+            color[2] = bars.get(bar + 9);
+            gl.glMaterialfv(GL.GL_FRONT, GL_AMBIENT_AND_DIFFUSE, color, 0);
+            gl.glPushMatrix();
+            gl.glTranslatef(bars.get(bar), bars.get(bar + 1), bars.get(bar + 2));
+            gl.glRotated(RADIANS_TO_DEGREES * Math.acos(unitZ), -unitY, unitX, 0);
+            gl.glScaled(span * width, span * width, span / 2);
+            gl.glCallList(glSphere);
+            gl.glPopMatrix();
+        }
+    }
+
+    private void createBuffers(GL2 gl) {
+        int[] buffers = new int[3];
+        gl.glGenBuffers(3, buffers, 0);
+        sphereBuffer = buffers[0];
+        indexBuffer = buffers[1];
+        barBuffer = buffers[2];
+        FloatBuffer sphere = sphereVertexes();
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, sphereBuffer);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) sphere.remaining() * Buffers.SIZEOF_FLOAT, sphere, GL.GL_STATIC_DRAW);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        ShortBuffer indexes = sphereIndexes();
+        indexCount = indexes.remaining();
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+        gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, (long) indexCount * Buffers.SIZEOF_SHORT, indexes, GL.GL_STATIC_DRAW);
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * @return the program, or zero if the shaders would not compile or link
+     */
+
+    private int createProgram(GL2 gl) {
+        int vertexShader = compile(gl, GL2.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = compile(gl, GL2.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        if (vertexShader == 0 || fragmentShader == 0) {
+            return 0;
+        }
+        int created = gl.glCreateProgram();
+        gl.glAttachShader(created, vertexShader);
+        gl.glAttachShader(created, fragmentShader);
+        gl.glBindAttribLocation(created, POSITION, "position");
+        gl.glBindAttribLocation(created, MIDPOINT, "midpoint");
+        gl.glBindAttribLocation(created, UNIT, "unit");
+        gl.glBindAttribLocation(created, SPAN, "span");
+        gl.glBindAttribLocation(created, COLOR, "color");
+        gl.glLinkProgram(created);
+        gl.glDeleteShader(vertexShader);
+        gl.glDeleteShader(fragmentShader);
+        int[] status = new int[1];
+        gl.glGetProgramiv(created, GL2.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            LOG.warn("Bar shaders would not link");
+            gl.glDeleteProgram(created);
+            return 0;
+        }
+        widthUniform = gl.glGetUniformLocation(created, "width");
+        return created;
+    }
+
+    private static int compile(GL2 gl, int type, String source) {
+        int shader = gl.glCreateShader(type);
+        gl.glShaderSource(shader, 1, new String[]{source}, new int[]{source.length()}, 0);
+        gl.glCompileShader(shader);
+        int[] status = new int[1];
+        gl.glGetShaderiv(shader, GL2.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            LOG.warn("Bar shader would not compile");
+            gl.glDeleteShader(shader);
+            return 0;
+        }
+        return shader;
+    }
+
+    /**
+     * @return points on the unit sphere, which are their own normals, from pole to pole
+     */
+
+    private static FloatBuffer sphereVertexes() {
+        FloatBuffer sphere = Buffers.newDirectFloatBuffer((STACKS + 1) * (SLICES + 1) * 3);
+        for (int stack = 0; stack <= STACKS; stack++) {
+            double latitude = Math.PI * stack / STACKS;
+            for (int slice = 0; slice <= SLICES; slice++) {
+                double longitude = 2 * Math.PI * slice / SLICES;
+                sphere.put((float) (Math.sin(latitude) * Math.cos(longitude)));
+                sphere.put((float) (Math.sin(latitude) * Math.sin(longitude)));
+                sphere.put((float) Math.cos(latitude));
+            }
+        }
+        sphere.flip();
+        return sphere;
+    }
+
+    private static ShortBuffer sphereIndexes() {
+        ShortBuffer indexes = Buffers.newDirectShortBuffer(STACKS * SLICES * 6);
+        for (int stack = 0; stack < STACKS; stack++) {
+            for (int slice = 0; slice < SLICES; slice++) {
+                short here = (short) (stack * (SLICES + 1) + slice);
+                short below = (short) (here + SLICES + 1);
+                indexes.put(here).put(below).put((short) (here + 1));
+                indexes.put((short) (here + 1)).put(below).put((short) (below + 1));
+            }
+        }
+        indexes.flip();
+        return indexes;
+    }
+
+    private static float adjust(double value) {
+        return (float) (0.1 + value * 0.9);
+    }
+
+    private static final String VERTEX_SHADER =
+            "#version 130\n" +
+            "in vec3 position;\n" +
+            "in vec3 midpoint;\n" +
+            "in vec3 unit;\n" +
+            "in float span;\n" +
+            "in vec3 color;\n" +
+            "uniform float width;\n" +
+            "out vec3 normal;\n" +
+            "out vec3 eye;\n" +
+            "out vec3 tint;\n" +
+            "void main() {\n" +
+            "    vec3 helper = abs(unit.z) < 0.9 ? vec3(0.0, 0.0, 1.0) : vec3(1.0, 0.0, 0.0);\n" +
+            "    vec3 across = normalize(cross(helper, unit));\n" +
+            "    mat3 turn = mat3(across, cross(unit, across), unit);\n" +
+            "    vec3 scale = vec3(span * width, span * width, span / 2.0);\n" +
+            "    vec4 world = vec4(midpoint + turn * (position * scale), 1.0);\n" +
+            "    gl_Position = gl_ModelViewProjectionMatrix * world;\n" +
+            "    eye = (gl_ModelViewMatrix * world).xyz;\n" +
+            "    normal = normalize(gl_NormalMatrix * (turn * (position / scale)));\n" +
+            "    tint = color;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "#version 130\n" +
+            "in vec3 normal;\n" +
+            "in vec3 eye;\n" +
+            "in vec3 tint;\n" +
+            "out vec4 fragment;\n" +
+            "void main() {\n" +
+            "    vec3 light = normalize(gl_LightSource[0].position.xyz - eye * gl_LightSource[0].position.w);\n" +
+            "    float diffuse = max(dot(normalize(normal), light), 0.0);\n" +
+            "    vec3 ambient = gl_LightModel.ambient.rgb * tint;\n" +
+            "    fragment = vec4(ambient + diffuse * tint, 1.0);\n" +
+            "}\n";
+}
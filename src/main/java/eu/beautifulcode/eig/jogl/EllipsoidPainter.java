@@ -5,6 +5,7 @@
 package eu.beautifulcode.eig.jogl;
 
 import eu.beautifulcode.eig.math.Arrow;
+import eu.beautifulcode.eig.structure.FabricSnapshot;
 import eu.beautifulcode.eig.structure.Interval;
 import eu.beautifulcode.eig.structure.Span;
 
@@ -29,6 +30,7 @@ public class EllipsoidPainter {
     private Tint AMBIENT_AND_DIFFUSE = new Tint(Tint.BLACK, Tint.WHITE, 0.6f);
     private Tint SPECULAR = new Tint(Tint.BLACK, Tint.WHITE, 0.6f);
     private Arrow intervalLocation = new Arrow();
+    private Arrow intervalUnit = new Arrow();
     private double width = DEFAULT_WIDTH;
     private GLU glu = new GLU();
     private GL2 gl;
@@ -52,23 +54,41 @@ public class EllipsoidPainter {
         gl.glMaterialfv(GL.GL_FRONT, GL_SPECULAR, SPECULAR.getFloatArray(), 0);
         gl.glMaterialf(GL.GL_FRONT, GL_SHININESS, SHININESS);
         gl.glEnable(GL_LIGHTING);
-        glSphere = gl.glGenLists(1);
-        gl.glNewList(glSphere, GL_COMPILE);
-        GLUquadric quadric = glu.gluNewQuadric();
-        glu.gluSphere(quadric,1,7,7);
-        gl.glEndList();
+        if (glSphere == 0) {
+            glSphere = gl.glGenLists(1);
+            gl.glNewList(glSphere, GL_COMPILE);
+            GLUquadric quadric = glu.gluNewQuadric();
+            glu.gluSphere(quadric,1,7,7);
+            glu.gluDeleteQuadric(quadric);
+            gl.glEndList();
+        }
+    }
+
+    public void dispose(GL2 gl) {
+        if (glSphere != 0) {
+            gl.glDeleteLists(glSphere, 1);
+            glSphere = 0;
+        }
     }
 
     public void visit(Interval interval) {
         interval.getLocation(intervalLocation);
-        Arrow unit = interval.getUnit(false);
-        double span = interval.getSpan().getActual();
+        paint(intervalLocation, interval.getUnit(false), interval.getSpan().getActual());
+    }
+
+    public void visit(FabricSnapshot snapshot, int interval) {
+        snapshot.getMidpoint(interval, intervalLocation);
+        snapshot.getUnit(interval, intervalUnit);
+        paint(intervalLocation, intervalUnit, snapshot.getActual(interval));
+    }
+
+    private void paint(Arrow location, Arrow unit, double span) {
         if (span < MINIMUM_SPAN) {
             return;
         }
         gl.glMaterialfv(GL.GL_FRONT, GL_AMBIENT_AND_DIFFUSE, AMBIENT_AND_DIFFUSE.getFloatArray(), 0);
         gl.glPushMatrix();
-        gl.glTranslated(intervalLocation.x, intervalLocation.y, intervalLocation.z);
+        gl.glTranslated(location.x, location.y, location.z);
         gl.glRotated(RADIANS_TO_DEGREES * Math.acos(unit.z), -unit.y, unit.x, 0);
         gl.glScaled(span* width, span* width, span/2);
         gl.glCallList(glSphere);
@@ -26,6 +26,7 @@ import static javax.media.opengl.GL2.*;
 
 public class FabricPainter {
     private TextureTrianglePainter painter = new TextureTrianglePainter("/TriangleTexture.png");
+    private LineBuffer lineBuffer = new LineBuffer();
     private Span.StressRange stressRange;
 
     public FabricPainter(Span.StressRange stressRange) {
@@ -43,23 +44,19 @@ public class FabricPainter {
     public void paintLines(Fabric fabric, GL2 gl, Tint tint) {
         gl.glDisable(GL_LIGHTING);
         gl.glDisable(GL_TEXTURE_2D);
-        gl.glBegin(GL_LINES);
+        float[] color = tint != null ? tint.getFloatArray() : null;
         for (Interval interval : fabric.getIntervals()) {
-            if (tint != null) {
-                gl.glColor3fv(tint.getFloatArray(), 0);
+            Arrow alpha = interval.get(false).getLocation();
+            Arrow omega = interval.get(true).getLocation();
+            if (color != null) {
+                lineBuffer.add(alpha.x, alpha.y, alpha.z, omega.x, omega.y, omega.z, color[0], color[1], color[2]);
             }
             else {
                 float redness = (float) interval.getSpan().getStress(stressRange);
-                gl.glColor3f(redness, 0.4f, 1 - redness);
+                lineBuffer.add(alpha.x, alpha.y, alpha.z, omega.x, omega.y, omega.z, redness, 0.4f, 1 - redness);
             }
-            paintVertex(gl, interval.get(false).getLocation());
-            paintVertex(gl, interval.get(true).getLocation());
         }
-        gl.glEnd();
-    }
-
-    private void paintVertex(GL2 gl, Arrow location) {
-        gl.glVertex3d(location.x, location.y, location.z);
+        lineBuffer.draw(gl);
     }
 
     private void paintFace(Face face, GL2 gl) {
@@ -33,4 +33,12 @@ public interface GLRenderer {
 
     void display(GL2 gl, int width, int height);
 
+    /**
+     * Give back whatever was made on the card, because the context is going away.
+     *
+     * @param gl the graphics context
+     */
+
+    void dispose(GL2 gl);
+
 }
@@ -91,7 +91,7 @@ public class GLViewPlatform implements GLEventListener, Mouse3d.PickRaySource {
 
     @Override
     public void dispose(GLAutoDrawable glAutoDrawable) {
-
+        renderer.dispose((GL2) glAutoDrawable.getGL());
     }
 
     public final void display(GLAutoDrawable glAutoDrawable) {
@@ -147,6 +147,15 @@ public class GLViewPlatform implements GLEventListener, Mouse3d.PickRaySource {
         gl.glLoadIdentity();
     }
 
+    /**
+     * @return the half angle in radians of the narrowest cone around the gaze which holds the
+     * whole view frustum, for deciding what can't possibly be seen
+     */
+
+    public double getViewAngle() {
+        return Math.atan(Math.sqrt(right * right + top * top) / frustumNear);
+    }
+
     public final void displayChanged(GLAutoDrawable drawable, boolean b, boolean b1) {
     }
 
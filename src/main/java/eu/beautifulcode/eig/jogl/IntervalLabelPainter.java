@@ -4,6 +4,7 @@ import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 
 import eu.beautifulcode.eig.math.Arrow;
+import eu.beautifulcode.eig.structure.FabricSnapshot;
 import eu.beautifulcode.eig.structure.Interval;
 
 import java.text.DecimalFormat;
@@ -15,6 +16,7 @@ import java.text.DecimalFormat;
  */
 
 public class IntervalLabelPainter {
+    public static final double NEAR_DISTANCE = 3;
     private static final DecimalFormat FORMAT = new DecimalFormat(" 000 ");
     private PointOfView pointOfView;
     private TextureFont textureFont = new TextureFont();
@@ -45,13 +47,27 @@ public class IntervalLabelPainter {
 
     public void visit(Interval interval) {
         interval.getLocation(location);
+        if (isNear()) {
+            showLabel(feature.tagger.getLabel(interval));
+        }
+    }
+
+    public void visit(FabricSnapshot snapshot, int interval) {
+        snapshot.getMidpoint(interval, location);
+        if (isNear()) {
+            showLabel(feature.tagger.getLabel(snapshot, interval));
+        }
+    }
+
+    private boolean isNear() {
         measure.sub(pointOfView.getEye(), location);
         double distance = measure.normalize();
-        if (distance < 3) {
+        if (distance < NEAR_DISTANCE) {
             measure.scale(0.05);
             location.add(measure);
-            showLabel(feature.tagger.getLabel(interval));
+            return true;
         }
+        return false;
     }
 
     private void showLabel(String label) {
@@ -64,6 +80,8 @@ public class IntervalLabelPainter {
 
     private interface Tagger {
         String getLabel(Interval interval);
+
+        String getLabel(FabricSnapshot snapshot, int interval);
     }
 
     public enum Feature implements Tagger {
@@ -74,18 +92,30 @@ public class IntervalLabelPainter {
             public String getLabel(Interval interval) {
                 return FORMAT.format(interval.getSpan().getActual() * 1000);
             }
+
+            public String getLabel(FabricSnapshot snapshot, int interval) {
+                return FORMAT.format(snapshot.getActual(interval) * 1000);
+            }
         }),
 
         IDEAL(new Tagger() {
             public String getLabel(Interval interval) {
                 return FORMAT.format(interval.getSpan().getCurrentIdeal() * 1000);
             }
+
+            public String getLabel(FabricSnapshot snapshot, int interval) {
+                return FORMAT.format(snapshot.getIdeal(interval) * 1000);
+            }
         }),
 
         STRESS(new Tagger() {
             public String getLabel(Interval interval) {
                 return FORMAT.format(interval.getSpan().getStress() * 100000.0);
             }
+
+            public String getLabel(FabricSnapshot snapshot, int interval) {
+                return FORMAT.format(snapshot.getStress(interval) * 100000.0);
+            }
         }),
 
         ROLE(new Tagger() {
@@ -97,6 +127,10 @@ public class IntervalLabelPainter {
                     return "?";
                 }
             }
+
+            public String getLabel(FabricSnapshot snapshot, int interval) {
+                return snapshot.getRole(interval).toString();
+            }
         });
 
         private Tagger tagger;
@@ -109,6 +143,10 @@ public class IntervalLabelPainter {
             return tagger.getLabel(interval);
         }
 
+        public String getLabel(FabricSnapshot snapshot, int interval) {
+            return tagger.getLabel(snapshot, interval);
+        }
+
     }
 
 }
\ No newline at end of file
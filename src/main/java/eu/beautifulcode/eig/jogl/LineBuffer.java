@@ -0,0 +1,76 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+package eu.beautifulcode.eig.jogl;
+
+import com.jogamp.common.nio.Buffers;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import java.nio.FloatBuffer;
+
+import static javax.media.opengl.fixedfunc.GLPointerFunc.GL_COLOR_ARRAY;
+import static javax.media.opengl.fixedfunc.GLPointerFunc.GL_VERTEX_ARRAY;
+
+/**
+ * Colored lines gathered into one direct buffer, with the color and the location of each end
+ * side by side, which is streamed to the card and drawn with a single call.  Every draw gives the
+ * vertex buffer new storage before filling it, so the card never has to wait for the lines of the
+ * frame before to be finished.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+class LineBuffer {
+    private static final int FLOATS_PER_VERTEX = 6;
+    private static final int STRIDE = FLOATS_PER_VERTEX * Buffers.SIZEOF_FLOAT;
+    private FloatBuffer lines = Buffers.newDirectFloatBuffer(FLOATS_PER_VERTEX * 2 * 256);
+    private int vertexBuffer;
+
+    void clear() {
+        lines.clear();
+    }
+
+    void add(double alphaX, double alphaY, double alphaZ, double omegaX, double omegaY, double omegaZ, float red, float green, float blue) {
+        if (lines.remaining() < FLOATS_PER_VERTEX * 2) {
+            FloatBuffer bigger = Buffers.newDirectFloatBuffer(lines.capacity() * 2);
+            lines.flip();
+            bigger.put(lines);
+            lines = bigger;
+        }
+        lines.put(red).put(green).put(blue).put((float) alphaX).put((float) alphaY).put((float) alphaZ);
+        lines.put(red).put(green).put(blue).put((float) omegaX).put((float) omegaY).put((float) omegaZ);
+    }
+
+    void draw(GL2 gl) {
+        lines.flip();
+        int vertexCount = lines.remaining() / FLOATS_PER_VERTEX;
+        if (vertexCount > 0) {
+            if (vertexBuffer == 0) {
+                int[] buffers = new int[1];
+                gl.glGenBuffers(1, buffers, 0);
+                vertexBuffer = buffers[0];
+            }
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBuffer);
+            gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) lines.capacity() * Buffers.SIZEOF_FLOAT, null, GL2.GL_STREAM_DRAW);
+            gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, (long) lines.remaining() * Buffers.SIZEOF_FLOAT, lines);
+            gl.glEnableClientState(GL_COLOR_ARRAY);
+            gl.glEnableClientState(GL_VERTEX_ARRAY);
+            gl.glColorPointer(3, GL.GL_FLOAT, STRIDE, 0);
+            gl.glVertexPointer(3, GL.GL_FLOAT, STRIDE, 3 * Buffers.SIZEOF_FLOAT);
+            gl.glDrawArrays(GL.GL_LINES, 0, vertexCount);
+            gl.glDisableClientState(GL_VERTEX_ARRAY);
+            gl.glDisableClientState(GL_COLOR_ARRAY);
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        }
+        lines.clear();
+    }
+
+    void dispose(GL2 gl) {
+        if (vertexBuffer != 0) {
+            gl.glDeleteBuffers(1, new int[]{vertexBuffer}, 0);
+            vertexBuffer = 0;
+        }
+    }
+}
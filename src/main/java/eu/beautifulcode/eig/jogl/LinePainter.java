@@ -8,6 +8,7 @@ import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 
 import eu.beautifulcode.eig.math.Arrow;
+import eu.beautifulcode.eig.structure.FabricSnapshot;
 import eu.beautifulcode.eig.structure.Interval;
 import eu.beautifulcode.eig.structure.Span;
 
@@ -21,7 +22,7 @@ import static javax.media.opengl.GL2.*;
  */
 
 public class LinePainter {
-    private GL2 gl;
+    private LineBuffer lineBuffer = new LineBuffer();
     private Span.StressRange range;
 
     public LinePainter(Span.StressRange range) {
@@ -33,21 +34,31 @@ public class LinePainter {
     }
 
     public void preVisit(GL2 gl) {
-        this.gl = gl;
         gl.glDisable(GL_LIGHTING);
-        gl.glBegin(GL_LINES);
+        lineBuffer.clear();
     }
 
     public void postVisit(GL2 gl) {
-        gl.glEnd();
+        lineBuffer.draw(gl);
+    }
+
+    public void dispose(GL2 gl) {
+        lineBuffer.dispose(gl);
     }
 
     public void visit(Interval interval) {
-//        gl.glColor3f(0.7f, 0.7f, 0.7f);
-        gl.glColor3f(0.2f, 0.2f, 0.2f + 0.8f * (float) interval.getSpan().getStress(range));
         Arrow alpha = interval.get(false).getLocation();
         Arrow omega = interval.get(true).getLocation();
-        gl.glVertex3d(alpha.x, alpha.y, alpha.z);
-        gl.glVertex3d(omega.x, omega.y, omega.z);
+        lineBuffer.add(alpha.x, alpha.y, alpha.z, omega.x, omega.y, omega.z, 0.2f, 0.2f, 0.2f + 0.8f * (float) interval.getSpan().getStress(range));
+    }
+
+    public void visit(FabricSnapshot snapshot, int interval) {
+        int alpha = snapshot.getAlpha(interval);
+        int omega = snapshot.getOmega(interval);
+        lineBuffer.add(
+                snapshot.getX(alpha), snapshot.getY(alpha), snapshot.getZ(alpha),
+                snapshot.getX(omega), snapshot.getY(omega), snapshot.getZ(omega),
+                0.2f, 0.2f, 0.2f + 0.8f * (float) snapshot.getStress(interval, range)
+        );
     }
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+package eu.beautifulcode.eig.jogl;
+
+import eu.beautifulcode.eig.structure.FabricMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heads-up lines showing the latest sample of fabric metrics, polled whenever the display asks
+ * whether anything has changed.  A sample covers a batch of ticks, so the physics is shown per tick
+ * and the rest for the whole batch.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class MetricsHeadsUp {
+    private FabricMetrics metrics;
+    private long sampleCount = -1;
+    private String[] texts = new String[4];
+
+    public MetricsHeadsUp(FabricMetrics metrics) {
+        this.metrics = metrics;
+        refresh();
+    }
+
+    public List<HeadsUp.Line> getLines() {
+        List<HeadsUp.Line> lines = new ArrayList<HeadsUp.Line>();
+        for (int walk = 0; walk < texts.length; walk++) {
+            lines.add(new MetricsLine(walk));
+        }
+        return lines;
+    }
+
+    // === the rest is private
+
+    private void refresh() {
+        long count = metrics.getSampleCount();
+        if (count == sampleCount) {
+            return;
+        }
+        sampleCount = count;
+        FabricMetrics.Sample sample = metrics.getLast();
+        texts[0] = String.format(
+                "Age %d, %d ticks in the batch, %d active spans",
+                sample.getAge(), sample.getIterations(), sample.getActiveSpans()
+        );
+        texts[1] = String.format(
+                "Physics %.3f ms per tick: intervals %.3f, joints %.3f, move %.3f",
+                sample.getMillisPerTick(FabricMetrics.Pass.PHYSICS), sample.getMillisPerTick(FabricMetrics.Pass.INTERVALS),
+                sample.getMillisPerTick(FabricMetrics.Pass.JOINTS), sample.getMillisPerTick(FabricMetrics.Pass.MOVE)
+        );
+        texts[2] = String.format(
+                "Batch transformations %.2f ms, mods %.2f ms, %d added, %d removed",
+                sample.getMillis(FabricMetrics.Pass.TRANSFORMATIONS), sample.getMillis(FabricMetrics.Pass.MODS),
+                sample.getAdded(), sample.getRemoved()
+        );
+        texts[3] = String.format("Kinetic energy %.3g", sample.getKineticEnergy());
+    }
+
+    private class MetricsLine implements HeadsUp.Line {
+        private int index;
+        private long shown = -1;
+
+        private MetricsLine(int index) {
+            this.index = index;
+        }
+
+        public boolean hasChanged() {
+            refresh();
+            if (shown == sampleCount) {
+                return false;
+            }
+            shown = sampleCount;
+            return true;
+        }
+
+        public String getText() {
+            return texts[index];
+        }
+    }
+}
@@ -91,9 +91,6 @@ public class Arrow {
     }
 
     public Arrow scale(double scale) {
-        if (Double.isNaN(scale)) {
-            throw new IllegalStateException("Cannot scale by NaN");
-        }
         this.x *= scale;
         this.y *= scale;
         this.z *= scale;
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+package eu.beautifulcode.eig.povray;
+
+import java.text.DecimalFormat;
+
+/**
+ * Numbers for scripts written the way "#0.0#####" would, at most six decimals and at least one,
+ * but straight into a StringBuilder with integer arithmetic, so any thread can use it without
+ * sharing a DecimalFormat.  Halves are rounded up rather than to even, and numbers too big to scale
+ * into a long are handed to a DecimalFormat of their own.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+class FixedFormat {
+    private static final int DECIMALS = 6;
+    private static final double SCALE = 1e6;
+    private static final double LIMIT = 1e12;
+
+    static StringBuilder append(double value, StringBuilder out) {
+        if (!(Math.abs(value) < LIMIT)) {
+            return out.append(new DecimalFormat("#0.0#####").format(value));
+        }
+        long scaled = Math.round(value * SCALE);
+        if (scaled < 0) {
+            out.append('-');
+            scaled = -scaled;
+        }
+        out.append(scaled / (long) SCALE).append('.');
+        int fraction = (int) (scaled % (long) SCALE);
+        if (fraction == 0) {
+            return out.append('0');
+        }
+        int digits = DECIMALS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        for (int place = digits - 1; place > 0 && fraction < pow10(place); place--) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+
+    static StringBuilder append(double x, double y, double z, StringBuilder out) {
+        append(x, out).append(',');
+        append(y, out).append(',');
+        return append(z, out);
+    }
+
+    // === the rest is private
+
+    private static int pow10(int exponent) {
+        int power = 1;
+        while (exponent-- > 0) {
+            power *= 10;
+        }
+        return power;
+    }
+}
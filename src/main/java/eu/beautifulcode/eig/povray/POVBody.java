@@ -0,0 +1,252 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+package eu.beautifulcode.eig.povray;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The body of a script, written behind the back of whoever is painting.  Text is gathered a frame
+ * at a time, and bigger pieces like the objects of all the intervals are cut into chunks which are
+ * formatted in parallel as soon as they are handed over.  When the frame is flushed, a thread of
+ * its own writes all of it to the file through a channel, in exactly the order it was handed over.
+ *
+ * Only a few frames may be on their way at once, after which flushing another waits for the
+ * oldest to be written, so a long movie of a big fabric slows down the painting instead of filling
+ * up the memory.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+class POVBody {
+    private static final Logger LOG = Logger.getLogger(POVBody.class);
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int CHUNK_SIZE = 256;
+    private static final int FRAMES_IN_FLIGHT = 4;
+    private static final ExecutorService FORMATTERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "pov-format");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+    );
+    private volatile File file;
+    private FileOutputStream out;
+    private ExecutorService writer;
+    private Semaphore inFlight = new Semaphore(FRAMES_IN_FLIGHT);
+    private List<Future<ByteBuffer>> pending = new ArrayList<Future<ByteBuffer>>();
+    private volatile IOException failure;
+
+    POVBody(File file) {
+        this.file = file;
+        try {
+            this.out = new FileOutputStream(file);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pov-write");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    void write(String text) {
+        pending.add(new Done(ByteBuffer.wrap(text.getBytes(ASCII))));
+    }
+
+    /**
+     * Hand over something to be formatted in chunks on other threads.
+     *
+     * @param count how many things there are, such as joints or intervals
+     * @param pieces which formats any range of them
+     */
+
+    void write(int count, final Pieces pieces) {
+        for (int start = 0; start < count; start += CHUNK_SIZE) {
+            final int from = start;
+            final int to = Math.min(start + CHUNK_SIZE, count);
+            pending.add(FORMATTERS.submit(new Callable<ByteBuffer>() {
+                public ByteBuffer call() throws Exception {
+                    StringBuilder chunk = new StringBuilder((to - from) * 64);
+                    pieces.append(from, to, chunk);
+                    return ByteBuffer.wrap(chunk.toString().getBytes(ASCII));
+                }
+            }));
+        }
+    }
+
+    /**
+     * Send what was handed over so far to be written, waiting first if too many frames are still
+     * on their way.
+     */
+
+    void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        final List<Future<ByteBuffer>> frame = pending;
+        pending = new ArrayList<Future<ByteBuffer>>();
+        inFlight.acquireUninterruptibly();
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (failure == null) {
+                        ByteBuffer[] buffers = new ByteBuffer[frame.size()];
+                        long remaining = 0;
+                        for (int walk = 0; walk < buffers.length; walk++) {
+                            buffers[walk] = frame.get(walk).get();
+                            remaining += buffers[walk].remaining();
+                        }
+                        FileChannel channel = out.getChannel();
+                        while (remaining > 0) {
+                            remaining -= channel.write(buffers);
+                        }
+                    }
+                }
+                catch (IOException e) {
+                    fail(e);
+                }
+                catch (ExecutionException e) {
+                    fail(new IOException(e.getCause()));
+                }
+                catch (InterruptedException e) {
+                    fail(new IOException(e));
+                }
+                finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Carry on in another file once everything before has been written to this one.
+     *
+     * @param next the file to write to from now on
+     */
+
+    void moveTo(final File next) {
+        flush();
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    out.close();
+                    file = next;
+                    out = new FileOutputStream(next);
+                }
+                catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Close the file once everything handed over so far is written.
+     */
+
+    void close() {
+        flush();
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    out.close();
+                }
+                catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+        writer.shutdown();
+    }
+
+    /**
+     * Wait until the file is closed.
+     *
+     * @throws IOException if anything went wrong with writing it
+     * @throws InterruptedException if waiting was interrupted
+     */
+
+    void awaitClosed() throws IOException, InterruptedException {
+        while (!writer.awaitTermination(1, TimeUnit.SECONDS)) {
+            LOG.info("Still writing " + file);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Formats a range of things, perhaps at the same time as other ranges on other threads.
+     */
+
+    interface Pieces {
+        void append(int from, int to, StringBuilder out);
+    }
+
+    // === the rest is private
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            LOG.error("Unable to write " + file, e);
+            failure = e;
+        }
+    }
+
+    /**
+     * A piece which needed no formatting.
+     */
+
+    private static class Done implements Future<ByteBuffer> {
+        private ByteBuffer buffer;
+
+        private Done(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return true;
+        }
+
+        public ByteBuffer get() {
+            return buffer;
+        }
+
+        public ByteBuffer get(long timeout, TimeUnit unit) {
+            return buffer;
+        }
+    }
+}
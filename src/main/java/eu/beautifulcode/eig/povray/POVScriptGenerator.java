@@ -7,12 +7,16 @@ package eu.beautifulcode.eig.povray;
 import eu.beautifulcode.eig.jogl.PointOfView;
 import eu.beautifulcode.eig.math.Arrow;
 import eu.beautifulcode.eig.structure.Fabric;
+import eu.beautifulcode.eig.structure.FabricSnapshot;
 import eu.beautifulcode.eig.structure.Interval;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -21,16 +25,34 @@ import java.util.Map;
 
 public class POVScriptGenerator {
     private static final double EYE_DISPLACEMENT = 0.02;
+    private static final String FRAME_PREFIX = "frame";
+    private static final String FRAME_SUFFIX = ".inc";
     private POVFiles files;
     private PointOfView pointOfView;
     private ImageRecorder image;
     private MovieRecorder movie;
+    private boolean compact;
+    private final List<POVBody> closing = new ArrayList<POVBody>();
 
     public POVScriptGenerator(File root, PointOfView pointOfView) {
         this.files = new POVFiles(root);
         this.pointOfView = pointOfView;
     }
 
+    /**
+     * Write scripts which POV-Ray can parse much faster, from the next image or movie on.  The
+     * header gets a macro for every role and each frame becomes an array of joints, a call of its
+     * role's macro for every interval with the joints at its ends, and one mesh2 for all the
+     * triangles.  A movie gets an include file for every frame, which the body picks with the
+     * frame number, so that POV-Ray only ever parses the frame it is rendering.
+     *
+     * @param compact true for macros and include files, false for an object per interval
+     */
+
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
     public void recordImage() {
         this.image = new ImageRecorder();
     }
@@ -62,36 +84,93 @@ public class POVScriptGenerator {
     }
 
     public void visit(Fabric fabric) {
+        if (this.image != null || this.movie != null) {
+            visit(fabric.createSnapshot());
+        }
+    }
+
+    public void visit(FabricSnapshot snapshot) {
         if (this.image != null) {
-            this.image.visit(fabric);
+            this.image.visit(snapshot);
         }
         if (this.movie != null) {
-            this.movie.visit(fabric);
+            this.movie.visit(snapshot);
         }
     }
 
+    /**
+     * Wait until the bodies of all the finished images and movies have been written, since they are
+     * written on threads which will not keep the program alive.  Call this before exiting.
+     *
+     * @throws IOException if any of them could not be written
+     * @throws InterruptedException if waiting was interrupted
+     */
+
+    public void awaitWritten() throws IOException, InterruptedException {
+        List<POVBody> bodies;
+        synchronized (closing) {
+            bodies = new ArrayList<POVBody>(closing);
+            closing.clear();
+        }
+        IOException failure = null;
+        for (POVBody body : bodies) {
+            try {
+                body.awaitClosed();
+            }
+            catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Write the camera and the fabric of one frame, without any of the file handling
+     *
+     * @param snapshot what to write
+     * @param out where to write it
+     */
+
+    public void write(FabricSnapshot snapshot, PrintWriter out) {
+        final StringBuilder fabric = new StringBuilder();
+        writeFabric(snapshot, new Script() {
+            public void write(String text) {
+                fabric.append(text);
+            }
+
+            public void write(int count, POVBody.Pieces pieces) {
+                pieces.append(0, count, fabric);
+            }
+        });
+        out.print(fabric);
+    }
+
     private class ImageRecorder {
         private Map<POVFiles.Script, File> fileMap;
-        private PrintWriter body;
+        private POVBody body;
 
         private ImageRecorder() {
             this.fileMap = files.nextImage();
             createHeader(POVFiles.Script.HEADER);
 //            createHeader(POVFiles.Script.HEADER_LEFT, pointOfView.getDistance() * EYE_DISPLACEMENT);
 //            createHeader(POVFiles.Script.HEADER_RIGHT, -pointOfView.getDistance() * EYE_DISPLACEMENT);
-            this.body = createWriter(POVFiles.Script.BODY);
+            this.body = new POVBody(fileMap.get(POVFiles.Script.BODY));
         }
 
         private void createHeader(POVFiles.Script script) {
             writeHeader(createWriter(script));
         }
 
-        public void visit(Fabric fabric) {
-            writeFabric(fabric, pointOfView, 0, body);
+        public void visit(FabricSnapshot snapshot) {
+            writeFabric(snapshot, script(body));
         }
 
         public void finish() {
-            body.close();
+            close(body);
             PrintWriter out = createWriter(POVFiles.Script.JITTER);
             out.println("# this script should render the stereo images and then make a jitter gif");
             out.println("# default size is 640x480 but you can give width and height as parameters");
@@ -117,30 +196,43 @@ public class POVScriptGenerator {
         private Map<POVFiles.Script, File> fileMap;
         private int frameCount = -1;
         private boolean finished;
-        private PrintWriter body;
+        private POVBody body;
 
         private MovieRecorder() {
             this.fileMap = files.nextMovie();
             createHeader(POVFiles.Script.HEADER);
 //            createHeader(POVFiles.Script.HEADER_LEFT, EYE_DISPLACEMENT);
 //            createHeader(POVFiles.Script.HEADER_RIGHT, -EYE_DISPLACEMENT);
-            this.body = createWriter(POVFiles.Script.BODY);
+            this.body = new POVBody(fileMap.get(POVFiles.Script.BODY));
+            if (compact) {
+                body.write("#include concat(\"" + FRAME_PREFIX + "\", str(frame_number, -4, 0), \"" + FRAME_SUFFIX + "\")\n");
+            }
         }
 
         public void startFrame() {
             frameCount++;
-            body.println("#if(frame_number=" + frameCount + ")");
+            if (compact) {
+                File directory = fileMap.get(POVFiles.Script.BODY).getParentFile();
+                body.moveTo(new File(directory, FRAME_PREFIX + FRAME_NUMBER_FORMAT.format(frameCount) + FRAME_SUFFIX));
+            }
+            else {
+                body.write("#if(frame_number=" + frameCount + ")\n");
+            }
         }
 
-        public void visit(Fabric fabric) {
-            writeFabric(fabric, pointOfView, 0, body);
+        public void visit(FabricSnapshot snapshot) {
+            writeFabric(snapshot, script(body));
         }
 
         public void endFrame() {
-            body.println("#end");
+            if (!compact) {
+                body.write("#end\n");
+            }
+            body.flush();
             if (finished) {
-                body.close();
+                close(body);
                 createScript();
+                POVScriptGenerator.this.movie = null;
             }
         }
 
@@ -169,6 +261,126 @@ public class POVScriptGenerator {
 
     // the rest is private
 
+    private static final DecimalFormat FRAME_NUMBER_FORMAT = new DecimalFormat("0000");
+
+    private void close(POVBody body) {
+        body.close();
+        synchronized (closing) {
+            closing.add(body);
+        }
+    }
+
+    /**
+     * Where the text of a frame goes, either straight into a builder or out to a body.
+     */
+
+    private interface Script {
+        void write(String text);
+
+        void write(int count, POVBody.Pieces pieces);
+    }
+
+    private static Script script(final POVBody body) {
+        return new Script() {
+            public void write(String text) {
+                body.write(text);
+            }
+
+            public void write(int count, POVBody.Pieces pieces) {
+                body.write(count, pieces);
+            }
+        };
+    }
+
+    private void writeFabric(final FabricSnapshot snapshot, Script script) {
+        script.write(camera(pointOfView, 0));
+        if (!compact) {
+            script.write(snapshot.getIntervalCount(), new POVBody.Pieces() {
+                public void append(int from, int to, StringBuilder out) {
+                    appendIntervals(snapshot, from, to, out);
+                }
+            });
+            return;
+        }
+        final int jointCount = snapshot.getJointCount();
+        if (jointCount == 0) {
+            return;
+        }
+        script.write("#declare J = array[" + jointCount + "] {\n");
+        script.write(jointCount, new POVBody.Pieces() {
+            public void append(int from, int to, StringBuilder out) {
+                for (int joint = from; joint < to; joint++) {
+                    out.append("  <");
+                    FixedFormat.append(snapshot.getX(joint), snapshot.getY(joint), snapshot.getZ(joint), out);
+                    out.append(joint < jointCount - 1 ? ">,\n" : ">\n");
+                }
+            }
+        });
+        script.write("}\n");
+        script.write(snapshot.getIntervalCount(), new POVBody.Pieces() {
+            public void append(int from, int to, StringBuilder out) {
+                for (int interval = from; interval < to; interval++) {
+                    if (hasMacro(snapshot.getRole(interval))) {
+                        out.append(snapshot.getRole(interval)).append("(J[").append(snapshot.getAlpha(interval));
+                        out.append("], J[").append(snapshot.getOmega(interval)).append("])\n");
+                    }
+                }
+            }
+        });
+        final int triangleCount = snapshot.getTriangleCount();
+        if (triangleCount == 0) {
+            return;
+        }
+        script.write("mesh2 {\n  vertex_vectors { " + jointCount + ",\n");
+        script.write(jointCount, new POVBody.Pieces() {
+            public void append(int from, int to, StringBuilder out) {
+                for (int joint = from; joint < to; joint++) {
+                    out.append(joint % 16 == 0 ? "    " : " ").append("J[").append(joint).append(']');
+                    out.append(joint < jointCount - 1 ? "," : "").append(joint % 16 == 15 || joint == jointCount - 1 ? "\n" : "");
+                }
+            }
+        });
+        script.write("  }\n  face_indices { " + triangleCount + ",\n");
+        script.write(triangleCount, new POVBody.Pieces() {
+            public void append(int from, int to, StringBuilder out) {
+                for (int triangle = from; triangle < to; triangle++) {
+                    out.append("    <").append(snapshot.getTriangleJoint(triangle, 0));
+                    out.append(',').append(snapshot.getTriangleJoint(triangle, 1));
+                    out.append(',').append(snapshot.getTriangleJoint(triangle, 2));
+                    out.append(triangle < triangleCount - 1 ? ">,\n" : ">\n");
+                }
+            }
+        });
+        script.write("  }\n  texture { TriangleTexture }\n}\n");
+    }
+
+    private static boolean hasMacro(Interval.Role role) {
+        return isBar(role) || isCable(role);
+    }
+
+    private static boolean isBar(Interval.Role role) {
+        switch (role) {
+            case BAR:
+            case SCAFFOLD:
+            case SPRING:
+            case MUSCLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isCable(Interval.Role role) {
+        switch (role) {
+            case CABLE:
+            case RING:
+            case FAR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     private PrintWriter createPrintWriter(File file) {
         try {
             return new PrintWriter(file);
@@ -182,6 +394,9 @@ public class POVScriptGenerator {
         writeTitles(out);
         writeIncludes(out);
         writeDeclarations(out);
+        if (compact) {
+            writeMacros(out);
+        }
         createFog(out);
         createLight(pointOfView, out);
         writeFloor(out);
@@ -237,7 +452,41 @@ public class POVScriptGenerator {
         writeDeclaration("BarRadius", "0.04", out);
         writeDeclaration("CableTexture", "T_Copper_1A", out);
         writeDeclaration("CableRadius", "0.004", out);
-        writeDeclaration("TriangleTexture", "pigment{ color Gray25 }", out);
+        writeDeclaration("TriangleTexture", "texture { pigment { color Gray25 } }", out);
+        out.println();
+    }
+
+    private static void writeMacros(PrintWriter out) {
+        out.println("#macro Ellipsoid(A, B, Texture)");
+        out.println("  #local L = vlength(B - A);");
+        out.println("  #local D = z;");
+        out.println("  #if (L > 0.001)");
+        out.println("    #local D = (B - A) / L;");
+        out.println("  #end");
+        out.println("  #local Turn = 0;");
+        out.println("  #if (abs(D.x) + abs(D.y) > 0)");
+        out.println("    #local Turn = degrees(atan2(D.y, D.x));");
+        out.println("  #end");
+        out.println("  sphere { <0,0,0> 1.0");
+        out.println("    scale <sqrt(L * L / 4 + BarRadius * BarRadius), BarRadius, BarRadius>");
+        out.println("    rotate <0, -degrees(asin(D.z)), Turn>");
+        out.println("    translate (A + B) / 2");
+        out.println("    texture { Texture }");
+        out.println("  }");
+        out.println("#end");
+        out.println();
+        out.println("#macro Rod(A, B, Texture)");
+        out.println("  cylinder { A, B, CableRadius texture { Texture } }");
+        out.println("#end");
+        out.println();
+        for (Interval.Role role : Interval.Role.values()) {
+            if (isBar(role)) {
+                out.println("#macro " + role + "(A, B) Ellipsoid(A, B, BarTexture) #end");
+            }
+            else if (isCable(role)) {
+                out.println("#macro " + role + "(A, B) Rod(A, B, CableTexture) #end");
+            }
+        }
         out.println();
     }
 
@@ -255,18 +504,24 @@ public class POVScriptGenerator {
         writer.println();
     }
 
-    private static void createCamera(PointOfView pov, double eyeDisplacement, PrintWriter writer) {
+    private static String camera(PointOfView pov, double eyeDisplacement) {
+        StringBuilder camera = new StringBuilder();
+        appendCamera(pov, eyeDisplacement, camera);
+        return camera.toString();
+    }
+
+    private static void appendCamera(PointOfView pov, double eyeDisplacement, StringBuilder out) {
         Arrow eye = new Arrow();
         pov.getEye(eyeDisplacement, eye);
-        writer.println("camera {");
-        writer.println("  location  <" + format(eye) + ">");
-        writer.println("  sky <" + format(pov.getUp()) + ">");
-        writer.println("  right 640/480*x");
-        writer.println("  up y");
-        writer.println("  look_at <" + format(pov.getFocus()) + ">");
-        writer.println("  angle 50");
-        writer.println("}");
-        writer.println();
+        out.append("camera {\n");
+        out.append("  location  <").append(format(eye)).append(">\n");
+        out.append("  sky <").append(format(pov.getUp())).append(">\n");
+        out.append("  right 640/480*x\n");
+        out.append("  up y\n");
+        out.append("  look_at <").append(format(pov.getFocus())).append(">\n");
+        out.append("  angle 50\n");
+        out.append("}\n");
+        out.append("\n");
     }
 
     private static void createLight(PointOfView pov, PrintWriter writer) {
@@ -284,81 +539,61 @@ public class POVScriptGenerator {
 
     private static final double TO_DEGREES = 180.0 / Math.PI;
 
-    private static void writeFabric(Fabric fabric, PointOfView pointOfView, double eyeDisplacement, PrintWriter out) {
+    /**
+     * Append the objects of a range of intervals.  Nothing is shared, so ranges can be done at the
+     * same time on different threads.
+     */
+
+    static void appendIntervals(FabricSnapshot snapshot, int from, int to, StringBuilder out) {
         Arrow location = new Arrow();
-        Arrow axis = new Arrow();
-        createCamera(pointOfView, eyeDisplacement, out);
-        for (Interval interval : fabric.getIntervals()) {
-            switch (interval.getRole()) {
+        Arrow unit = new Arrow();
+        for (int interval = from; interval < to; interval++) {
+            switch (snapshot.getRole(interval)) {
                 case BAR:
                 case SCAFFOLD:
                 case SPRING:
                 case MUSCLE:
-                    interval.getLocation(location);
-                    Arrow unit = interval.getUnit(false);
-                    double actualSpan = interval.getSpan().getActual();
-                    axis.set(-unit.y, unit.x, 0f);
+                    snapshot.getMidpoint(interval, location);
+                    snapshot.getUnit(interval, unit);
+                    double actualSpan = snapshot.getActual(interval);
                     double yTwist = -Math.asin(unit.z);
                     double zTwist = Math.atan2(unit.y, unit.x);
-                    out.println("object {");
-                    out.println("  sphere{ <0,0,0> 1.0");
-                    out.println("    scale <sqrt(" + format(actualSpan * actualSpan / 4.0) + "+BarRadius*BarRadius),BarRadius,BarRadius>");
-                    out.println("    rotate <0," + format(yTwist * TO_DEGREES) + "," + format(zTwist * TO_DEGREES) + ">");
-                    out.println("    translate <" + format(location) + ">");
-                    out.println("    texture { BarTexture }");
-                    out.println("  }");
-                    out.println("}");
-                    out.println();
+                    out.append("object {\n");
+                    out.append("  sphere{ <0,0,0> 1.0\n");
+                    out.append("    scale <sqrt(");
+                    FixedFormat.append(actualSpan * actualSpan / 4.0, out).append("+BarRadius*BarRadius),BarRadius,BarRadius>\n");
+                    out.append("    rotate <0,");
+                    FixedFormat.append(yTwist * TO_DEGREES, out).append(',');
+                    FixedFormat.append(zTwist * TO_DEGREES, out).append(">\n");
+                    out.append("    translate <");
+                    FixedFormat.append(location.x, location.y, location.z, out).append(">\n");
+                    out.append("    texture { BarTexture }\n");
+                    out.append("  }\n");
+                    out.append("}\n");
+                    out.append("\n");
                     break;
                 case CABLE:
                 case RING:
                 case FAR:
-                    out.println("cylinder {");
-                    out.println("  <" + format(interval.get(false).getLocation()) + ">,");
-                    out.println("  <" + format(interval.get(true).getLocation()) + ">,");
-                    out.println("  CableRadius");
-                    out.println("  texture { CableTexture }");
-                    out.println("}");
-                    out.println();
+                    int alpha = snapshot.getAlpha(interval);
+                    int omega = snapshot.getOmega(interval);
+                    out.append("cylinder {\n");
+                    out.append("  <");
+                    FixedFormat.append(snapshot.getX(alpha), snapshot.getY(alpha), snapshot.getZ(alpha), out).append(">,\n");
+                    out.append("  <");
+                    FixedFormat.append(snapshot.getX(omega), snapshot.getY(omega), snapshot.getZ(omega), out).append(">,\n");
+                    out.append("  CableRadius\n");
+                    out.append("  texture { CableTexture }\n");
+                    out.append("}\n");
+                    out.append("\n");
                     break;
                 case TEMP:
                     break;
             }
         }
-//        if (!fabric.getFaces().isEmpty()) { // revive this when faces can be more than triangles
-//            out.println("mesh {\n");
-//            for (Face face : fabric.getFaces()) {
-//                out.println(
-//                        "  triangle {"
-//                );
-//                int count = 0;
-//                for (Joint joint : face.getJoints()) {
-//                    out.println("    <" + format(joint.getLocation()) + ">");
-//                    if (count++ < 2) {
-//                        out.println(",");
-//                    }
-//                    else {
-//                        out.println();
-//                    }
-//                }
-//                out.println(
-//                        "  }\n"
-//                );
-//            }
-//            out.println(
-//                    "  texture { TriangleTexture }\n" +
-//                            "}\n"
-//            );
-//        }
     }
 
     private static String format(Arrow arrow) {
-        return format(arrow.x) + "," + format(arrow.y) + "," + format(arrow.z);
-    }
-
-    private static final DecimalFormat DECIMAL = new DecimalFormat("#0.0#####");
-
-    private static String format(double value) {
-        return DECIMAL.format(value);
+        return FixedFormat.append(arrow.x, arrow.y, arrow.z, new StringBuilder()).toString();
     }
 }
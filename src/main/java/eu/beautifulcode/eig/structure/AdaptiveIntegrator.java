@@ -0,0 +1,131 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Divide ticks into smaller steps while the fabric looks unstable.  An explicit step which is too long
+ * for the stiffest interval makes the stresses flip back and forth, harder with every step, so when
+ * the flipping dominates and keeps growing by a few percent per step the number of substeps is
+ * doubled.  Growing spans and a fabric getting under way change the stresses smoothly, so they
+ * don't count.
+ *
+ * A fresh fabric can blow up within a few ticks, long before anything can be noticed, so it starts
+ * out with small steps and after every calm spell tries steps twice as long.  By the time ringing is
+ * noticed it has already done some damage, so the joints are saved before each try and put back if it
+ * rings, and a number of substeps which has rung is never tried again.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class AdaptiveIntegrator implements ArrayPhysics.Integrator {
+    private static final double TREND_MEMORY = 0.9;
+    private static final double TREND_LIMIT = 0.02;
+    private static final double RINGING = 2;
+    private static final int CALM_STEPS = 200;
+    private static final int START_SUBSTEPS = 8;
+    private static final int MAX_SUBSTEPS = 64;
+    private Logger log = Logger.getLogger(getClass());
+    private ArrayPhysics.Integrator integrator;
+    private FabricArrays arrays;
+    private double[] savedLocation = new double[0];
+    private double[] savedVelocity = new double[0];
+    private boolean saved;
+    private int substeps = START_SUBSTEPS;
+    private double lastReversal;
+    private double trend;
+    private int calmSteps;
+    private int rung;
+
+    public AdaptiveIntegrator(ArrayPhysics.Integrator integrator) {
+        this.integrator = integrator;
+    }
+
+    public double getTimeStep() {
+        return integrator.getTimeStep();
+    }
+
+    public int getSubsteps() {
+        return substeps;
+    }
+
+    public void prepare(FabricArrays arrays) {
+        integrator.prepare(arrays);
+        this.arrays = arrays;
+        lastReversal = 0; // the arrays were shuffled, so the reversal can't be trusted
+        saved = false;
+    }
+
+    public void accelerate(FabricArrays arrays, int joint, double inverseMass, double step) {
+        integrator.accelerate(arrays, joint, inverseMass, step);
+    }
+
+    public void move(FabricArrays arrays, int joint, double step) {
+        integrator.move(arrays, joint, step);
+    }
+
+    public boolean isObserving() {
+        return true;
+    }
+
+    public void observe(double change, double reversal) {
+        if (reversal <= change * RINGING) {
+            lastReversal = 0; // smooth enough, nothing to judge
+            trend *= TREND_MEMORY;
+        }
+        else {
+            if (lastReversal > 0) {
+                trend = trend * TREND_MEMORY + Math.log(reversal / lastReversal) * (1 - TREND_MEMORY);
+            }
+            lastReversal = reversal;
+        }
+        if (trend > TREND_LIMIT && substeps < MAX_SUBSTEPS) {
+            substeps *= 2;
+            trend = 0;
+            lastReversal = 0;
+            calmSteps = 0;
+            rung = Math.max(rung, substeps / 2);
+            if (saved) {
+                restore();
+                log.info("Stress ringing, joints put back, now " + substeps + " substeps");
+            }
+            else {
+                log.info("Stress ringing, now " + substeps + " substeps");
+            }
+        }
+        else if (++calmSteps >= CALM_STEPS) {
+            calmSteps = 0;
+            saved = false; // the last try worked out
+            if (substeps / 2 > rung) {
+                save();
+                substeps /= 2;
+                trend = 0;
+                log.info("Trying " + substeps + " substeps");
+            }
+        }
+    }
+
+    // === the rest is private
+
+    private void save() {
+        int length = arrays.jointCount * 3;
+        if (savedLocation.length < length) {
+            savedLocation = new double[length];
+            savedVelocity = new double[length];
+        }
+        System.arraycopy(arrays.location, 0, savedLocation, 0, length);
+        System.arraycopy(arrays.velocity, 0, savedVelocity, 0, length);
+        saved = true;
+    }
+
+    private void restore() {
+        int length = arrays.jointCount * 3;
+        System.arraycopy(savedLocation, 0, arrays.location, 0, length);
+        System.arraycopy(savedVelocity, 0, arrays.velocity, 0, length);
+        saved = false;
+    }
+}
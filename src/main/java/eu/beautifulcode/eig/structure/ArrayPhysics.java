@@ -0,0 +1,602 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The same physics as its superclass, but iterating over a FabricArrays instead of over
+ * the joint and interval objects.  The arrays are gathered at the start of each transform
+ * and scattered back at the end, so whatever happens between transforms still sees
+ * ordinary joints and intervals.
+ *
+ * With more than one thread, the interval sweep is split into contiguous chunks.  Each worker
+ * accumulates force, mass and absorbed velocity into its own buffers, and the buffers are then
+ * summed into the arrays joint range by joint range.  The joint sweeps stay on the calling
+ * thread because constraints are not expected to be thread safe.
+ *
+ * With region sleep switched on, parts of the fabric which have settled are left alone while the
+ * rest carries on moving, so a long tube growing at one end costs little more than its end.
+ *
+ * How forces become movement is up to the integrator, which can also lengthen the time step or
+ * divide a tick into substeps.  Spans only experience time once per tick, before the first substep.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class ArrayPhysics extends Physics {
+    private static final int MINIMUM_CHUNK = 2000;
+    private FabricArrays arrays = new FabricArrays();
+    private FabricRegions regions = new FabricRegions();
+    private Integrator integrator = new EulerIntegrator();
+    private double[] smoothing = new double[Interval.Role.values().length];
+    private double[] previousStress = new double[0];
+    private double[] previousDelta = new double[0];
+    private double kineticEnergy;
+    private List<Interval> finishedTemps = new ArrayList<Interval>();
+    private ExecutorService executor;
+    private Worker[] workers;
+    private List<Callable<Object>> sweeps = new ArrayList<Callable<Object>>();
+    private List<Callable<Object>> reductions = new ArrayList<Callable<Object>>();
+
+    /**
+     * Turns the force on each joint into a new velocity and location.  The physics sums up the forces,
+     * and the integrator decides how big a step to take with them.
+     */
+
+    public interface Integrator {
+
+        /**
+         * @return how much time one tick covers
+         */
+
+        double getTimeStep();
+
+        /**
+         * @return how many steps the next tick is divided into
+         */
+
+        int getSubsteps();
+
+        /**
+         * The arrays were packed again, so joint indexes may have changed.
+         *
+         * @param arrays freshly packed
+         */
+
+        void prepare(FabricArrays arrays);
+
+        /**
+         * Apply the accumulated force and absorbed velocity of a joint to its velocity.
+         *
+         * @param arrays the packed fabric
+         * @param joint which one
+         * @param inverseMass one over the mass of the joint
+         * @param step the length of this step
+         */
+
+        void accelerate(FabricArrays arrays, int joint, double inverseMass, double step);
+
+        /**
+         * Move a joint along, after gravity has been added to its velocity.
+         *
+         * @param arrays the packed fabric
+         * @param joint which one
+         * @param step the length of this step
+         */
+
+        void move(FabricArrays arrays, int joint, double step);
+
+        /**
+         * @return true if observe should be called after each step
+         */
+
+        boolean isObserving();
+
+        /**
+         * Hear how much the stresses changed in a step, and how much of that was a reversal of
+         * the step before.  Smooth motion changes stress in the same direction step after step, but
+         * a step which is too long makes the stresses flip back and forth.
+         *
+         * @param change the sum of the squared changes in stress since the step before
+         * @param reversal the sum of the squared differences between this change and the one before
+         */
+
+        void observe(double change, double reversal);
+    }
+
+    public ArrayPhysics(Constraints constraints) {
+        super(constraints);
+    }
+
+    public FabricArrays getArrays() {
+        return arrays;
+    }
+
+    /**
+     * Spread the interval sweep over a number of threads.  One means no extra threads at all.
+     *
+     * @param threads how many workers, typically Runtime.availableProcessors()
+     */
+
+    public void setThreads(int threads) {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+            workers = null;
+            sweeps.clear();
+            reductions.clear();
+        }
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "physics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            workers = new Worker[threads];
+            for (int walk = 0; walk < threads; walk++) {
+                workers[walk] = new Worker();
+                sweeps.add(Executors.callable(new Sweep(workers[walk])));
+                reductions.add(Executors.callable(new Reduction(walk)));
+            }
+        }
+    }
+
+    public int getThreads() {
+        return workers == null ? 1 : workers.length;
+    }
+
+    /**
+     * Let regions of the fabric fall asleep separately, each vertebra being one region and other joints
+     * being grouped with their neighbors.  A sleeping region is woken when the stress at its border
+     * changes enough to push one of its joints faster than the settle speed, or when a transformation
+     * changes it.
+     *
+     * @param regionSleep true to only move the regions which are awake
+     */
+
+    public void setRegionSleep(boolean regionSleep) {
+        regions.setEnabled(regionSleep);
+        arrays = new FabricArrays();
+    }
+
+    public boolean isRegionSleep() {
+        return regions.isEnabled();
+    }
+
+    public int getRegionCount() {
+        return regions.getRegionCount();
+    }
+
+    public int getSleepingRegionCount() {
+        return regions.getSleepingCount();
+    }
+
+    public void setIntegrator(Integrator integrator) {
+        this.integrator = integrator;
+        integrator.prepare(arrays);
+    }
+
+    public Integrator getIntegrator() {
+        return integrator;
+    }
+
+    public void transform(Fabric fabric) {
+        if (isAsleep(fabric)) {
+            return;
+        }
+        regions.checkDisturbance(fabric, arrays);
+        for (PhysicsValue value : constraints.getPhysicsValues()) {
+            if (value.isChanged()) {
+                regions.wakeAll();
+            }
+        }
+        prepare(fabric);
+        for (int walk = 0; walk < iterations && !fabric.settled; walk++) {
+            iterate(fabric);
+            postIterate(fabric);
+            if (!finishedTemps.isEmpty()) {
+                eliminateFinishedTemps(fabric);
+                prepare(fabric);
+            }
+        }
+        arrays.scatter();
+    }
+
+    // === the rest is private
+
+    private void prepare(Fabric fabric) {
+        if (arrays.isStale(fabric)) {
+            arrays.pack(fabric);
+            regions.assign(fabric, arrays);
+            integrator.prepare(arrays);
+        }
+        else {
+            arrays.gather();
+        }
+    }
+
+    private void postIterate(Fabric fabric) {
+        if (constraints instanceof PackedConstraints) {
+            ((PackedConstraints) constraints).postIterate(arrays);
+        }
+        else {
+            arrays.scatter();
+            constraints.postIterate(fabric);
+            arrays.gather();
+        }
+    }
+
+    private void eliminateFinishedTemps(Fabric fabric) {
+        arrays.scatter();
+        for (Interval interval : finishedTemps) {
+            if (interval.role == Interval.Role.TEMP) {
+                eliminate(interval, fabric);
+            }
+        }
+        finishedTemps.clear();
+    }
+
+    private void iterate(Fabric fabric) {
+        FabricArrays a = arrays;
+        FabricRegions r = regions;
+        r.refresh(a);
+        fabric.age++;
+        int activeSpans = experienceTime(fabric);
+        int substeps = integrator.getSubsteps();
+        double step = integrator.getTimeStep() / substeps;
+        boolean observing = integrator.isObserving();
+        double maxSpeedSquared = 0;
+        for (int walk = 0; walk < substeps; walk++) {
+            maxSpeedSquared = substep(fabric, step);
+            if (observing) {
+                observe();
+            }
+        }
+        boolean anySpanActive = activeSpans > 0;
+        if (anySpanActive) {
+            fabric.spansWereActive();
+        }
+        FabricMetrics.iterated(fabric.metrics, activeSpans, kineticEnergy);
+        monitor(fabric, maxSpeedSquared, anySpanActive);
+        r.monitor(a, settleSpeed);
+    }
+
+    private void observe() {
+        FabricArrays a = arrays;
+        FabricRegions r = regions;
+        if (previousStress.length < a.stress.length) {
+            previousStress = new double[a.stress.length];
+            previousDelta = new double[a.stress.length];
+        }
+        double change = 0;
+        double reversal = 0;
+        for (int k = 0; k < r.activeIntervalCount; k++) {
+            int walk = r.interval(k);
+            double stress = a.stress[walk];
+            double delta = stress - previousStress[walk];
+            double flip = delta - previousDelta[walk];
+            change += delta * delta;
+            reversal += flip * flip;
+            previousStress[walk] = stress;
+            previousDelta[walk] = delta;
+        }
+        integrator.observe(change, reversal);
+    }
+
+    /**
+     * Spans only experience time once per tick, and only the ramping ones need their ideals copied.
+     *
+     * @param fabric the subject
+     * @return how many spans are still ramping
+     */
+
+    private int experienceTime(Fabric fabric) {
+        FabricArrays a = arrays;
+        FabricRegions r = regions;
+        SpanSchedule schedule = fabric.schedule;
+        int activeSpans = schedule.experienceTime(fabric);
+        for (Interval interval : schedule.getRamping()) {
+            int walk = a.slot(interval);
+            a.ideal[walk] = interval.span.ideal;
+            r.spanActive(a, walk);
+        }
+        for (Interval interval : schedule.getFinished()) {
+            a.ideal[a.slot(interval)] = interval.span.ideal;
+            if (interval.role == Interval.Role.TEMP) {
+                finishedTemps.add(interval);
+            }
+        }
+        return activeSpans;
+    }
+
+    private double substep(Fabric fabric, double step) {
+        FabricArrays a = arrays;
+        FabricRegions r = regions;
+        FabricMetrics metrics = fabric.metrics;
+        long time = FabricMetrics.start(metrics);
+        double elasticFactor = constraints.getElasticFactor().get();
+        for (Interval.Role role : Interval.Role.values()) {
+            smoothing[role.ordinal()] = step == 1 ? role.smoothVelocity : 1 - Math.pow(1 - role.smoothVelocity, step);
+        }
+        if (workers != null && r.activeIntervalCount >= MINIMUM_CHUNK * 2) {
+            sweepInParallel(elasticFactor, step);
+        }
+        else {
+            for (int k = 0; k < r.activeIntervalCount; k++) {
+                int walk = r.interval(k);
+                elastic(a, walk, elasticFactor, a.force, a.mass);
+                smoothVelocity(a, walk, smoothing[a.roles[walk].ordinal()], a.absorb);
+                gravity(a, a.alpha[walk], a.omega[walk], step, a.absorb);
+            }
+        }
+        time = FabricMetrics.lap(metrics, FabricMetrics.Pass.INTERVALS, time);
+        r.checkBoundary(a, settleSpeed);
+        PackedConstraints packed = constraints instanceof PackedConstraints ? (PackedConstraints) constraints : null;
+        for (int k = 0; k < r.activeJointCount; k++) {
+            int walk = r.joint(k);
+            if (!a.free[walk]) {
+                continue;
+            }
+            if (a.mass[walk] == 0) {
+                throw new RuntimeException("No mass! " + a.joints[walk]);
+            }
+            int j = walk * 3;
+            double vx = a.velocity[j], vy = a.velocity[j + 1], vz = a.velocity[j + 2];
+            if (packed != null) {
+                packed.exertJointPhysics(a, walk);
+            }
+            else {
+                a.scatterJoint(walk);
+                constraints.exertJointPhysics(a.joints[walk], fabric);
+                a.gatherJoint(walk);
+            }
+            if (step != 1) { // the constraints work per tick
+                a.velocity[j] = vx + (a.velocity[j] - vx) * step;
+                a.velocity[j + 1] = vy + (a.velocity[j + 1] - vy) * step;
+                a.velocity[j + 2] = vz + (a.velocity[j + 2] - vz) * step;
+            }
+            integrator.accelerate(a, walk, 1 / a.mass[walk], step);
+            a.force[j] = a.force[j + 1] = a.force[j + 2] = 0;
+            a.absorb[j] = a.absorb[j + 1] = a.absorb[j + 2] = 0;
+        }
+        r.clearBoundary(a);
+        time = FabricMetrics.lap(metrics, FabricMetrics.Pass.JOINTS, time);
+        boolean tracking = r.isEnabled();
+        double maxSpeedSquared = 0;
+        double totalSpeedSquared = 0;
+        kineticEnergy = 0;
+        for (int k = 0; k < r.activeJointCount; k++) {
+            int walk = r.joint(k);
+            if (!a.free[walk]) {
+                continue;
+            }
+            integrator.move(a, walk, step);
+            int j = walk * 3;
+            double speedSquared = a.velocity[j] * a.velocity[j] + a.velocity[j + 1] * a.velocity[j + 1] + a.velocity[j + 2] * a.velocity[j + 2];
+            totalSpeedSquared += speedSquared;
+            if (speedSquared > maxSpeedSquared) {
+                maxSpeedSquared = speedSquared;
+            }
+            if (tracking) {
+                r.track(walk, a.mass[walk], speedSquared);
+            }
+            kineticEnergy += a.mass[walk] * speedSquared / 2;
+            a.mass[walk] = AMBIENT_JOINT_MASS;
+        }
+        if (Double.isNaN(totalSpeedSquared) || Double.isInfinite(totalSpeedSquared)) {
+            a.scatter(); // so that the joints can say where it went wrong
+            Physics.validate(fabric, totalSpeedSquared);
+        }
+        FabricMetrics.lap(metrics, FabricMetrics.Pass.MOVE, time);
+        return maxSpeedSquared;
+    }
+
+    private void sweepInParallel(double elasticFactor, double step) {
+        int count = regions.activeIntervalCount;
+        int chunks = Math.min(workers.length, count / MINIMUM_CHUNK);
+        int chunkSize = (count + chunks - 1) / chunks;
+        for (int walk = 0; walk < workers.length; walk++) {
+            Worker worker = workers[walk];
+            worker.from = Math.min(walk * chunkSize, count);
+            worker.to = Math.min(worker.from + chunkSize, count);
+            worker.elasticFactor = elasticFactor;
+            worker.step = step;
+            worker.allocate(arrays.jointCount);
+        }
+        invokeAll(sweeps);
+        invokeAll(reductions);
+    }
+
+    private void invokeAll(List<Callable<Object>> tasks) {
+        try {
+            for (Future<Object> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static class Worker {
+        int from, to;
+        double elasticFactor, step;
+        double[] force = new double[0];
+        double[] absorb = new double[0];
+        double[] mass = new double[0];
+
+        void allocate(int jointCount) {
+            if (mass.length < jointCount) {
+                force = Arrays.copyOf(force, jointCount * 3);
+                absorb = Arrays.copyOf(absorb, jointCount * 3);
+                mass = Arrays.copyOf(mass, jointCount);
+            }
+        }
+    }
+
+    private class Sweep implements Runnable {
+        private Worker worker;
+
+        private Sweep(Worker worker) {
+            this.worker = worker;
+        }
+
+        public void run() {
+            FabricArrays a = arrays;
+            FabricRegions r = regions;
+            for (int k = worker.from; k < worker.to; k++) {
+                int walk = r.interval(k);
+                elastic(a, walk, worker.elasticFactor, worker.force, worker.mass);
+                smoothVelocity(a, walk, smoothing[a.roles[walk].ordinal()], worker.absorb);
+                gravity(a, a.alpha[walk], a.omega[walk], worker.step, worker.absorb);
+            }
+        }
+    }
+
+    private class Reduction implements Runnable {
+        private int part;
+
+        private Reduction(int part) {
+            this.part = part;
+        }
+
+        public void run() {
+            FabricArrays a = arrays;
+            FabricRegions r = regions;
+            int partSize = (r.touchedJointCount + workers.length - 1) / workers.length;
+            int from = Math.min(part * partSize, r.touchedJointCount);
+            int to = Math.min(from + partSize, r.touchedJointCount);
+            for (Worker worker : workers) {
+                for (int k = from; k < to; k++) {
+                    int walk = r.joint(k);
+                    a.mass[walk] += worker.mass[walk];
+                    worker.mass[walk] = 0;
+                    for (int j = walk * 3; j < walk * 3 + 3; j++) {
+                        a.force[j] += worker.force[j];
+                        a.absorb[j] += worker.absorb[j];
+                        worker.force[j] = 0;
+                        worker.absorb[j] = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    static void elastic(FabricArrays a, int walk, double elasticFactor, double[] force, double[] jointMass) {
+        int i = walk * 3;
+        int alpha = a.alpha[walk] * 3;
+        int omega = a.omega[walk] * 3;
+        double ux = a.location[omega] - a.location[alpha];
+        double uy = a.location[omega + 1] - a.location[alpha + 1];
+        double uz = a.location[omega + 2] - a.location[alpha + 2];
+        double actual = Math.sqrt(ux * ux + uy * uy + uz * uz);
+        a.actual[walk] = actual;
+        if (actual > 0.001) {
+            double scale = 1 / actual;
+            ux *= scale;
+            uy *= scale;
+            uz *= scale;
+        }
+        else {
+            ux = 0;
+            uy = 0;
+            uz = 1;
+        }
+        a.unit[i] = ux;
+        a.unit[i + 1] = uy;
+        a.unit[i + 2] = uz;
+        if (actual > Span.MINIMUM_SPAN) {
+            Interval.Role role = a.roles[walk];
+            double ideal = a.ideal[walk];
+            double stress = elasticFactor * (actual - ideal) * (role.canPush ? ideal * ideal : 1);
+            a.stress[walk] = stress;
+            if (role.canPush || stress > 0) {
+                double half = stress / 2;
+                force[alpha] += ux * half;
+                force[alpha + 1] += uy * half;
+                force[alpha + 2] += uz * half;
+                force[omega] -= ux * half;
+                force[omega + 1] -= uy * half;
+                force[omega + 2] -= uz * half;
+            }
+            double mass = role.canPush ? ideal * ideal * ideal : actual * CABLE_MASS_FACTOR;
+            jointMass[a.alpha[walk]] += mass / 2;
+            jointMass[a.omega[walk]] += mass / 2;
+        }
+    }
+
+    private static void smoothVelocity(FabricArrays a, int walk, double degree, double[] absorb) {
+        int i = walk * 3;
+        int alpha = a.alpha[walk] * 3;
+        int omega = a.omega[walk] * 3;
+        double ux = a.unit[i];
+        double uy = a.unit[i + 1];
+        double uz = a.unit[i + 2];
+        double alphaAgreement = (a.velocity[alpha] * ux + a.velocity[alpha + 1] * uy + a.velocity[alpha + 2] * uz) * degree;
+        double omegaAgreement = (a.velocity[omega] * ux + a.velocity[omega + 1] * uy + a.velocity[omega + 2] * uz) * degree;
+        double ax = ux * alphaAgreement, ay = uy * alphaAgreement, az = uz * alphaAgreement;
+        double ox = ux * omegaAgreement, oy = uy * omegaAgreement, oz = uz * omegaAgreement;
+        double px = (ax + ox) * 0.5, py = (ay + oy) * 0.5, pz = (az + oz) * 0.5;
+        absorb[alpha] -= ax;
+        absorb[alpha + 1] -= ay;
+        absorb[alpha + 2] -= az;
+        absorb[omega] -= ox;
+        absorb[omega + 1] -= oy;
+        absorb[omega + 2] -= oz;
+        absorb[alpha] += px;
+        absorb[alpha + 1] += py;
+        absorb[alpha + 2] += pz;
+        absorb[omega] += px;
+        absorb[omega + 1] += py;
+        absorb[omega + 2] += pz;
+    }
+
+    static void gravity(FabricArrays a, int alphaJoint, int omegaJoint, double step, double[] velocity) {
+        double alphaAltitude = a.altitude[alphaJoint];
+        double omegaAltitude = a.altitude[omegaJoint];
+        int alpha = alphaJoint * 3;
+        int omega = omegaJoint * 3;
+        double gx, gy, gz;
+        boolean straddle = alphaAltitude > 0 ^ omegaAltitude > 0;
+        double totalAltitude = Math.abs(alphaAltitude) + Math.abs(omegaAltitude);
+        if (straddle && totalAltitude > 0.001) {
+            double interpolation = Math.abs(omegaAltitude) / totalAltitude;
+            double antiInterpolation = 1 - interpolation;
+            gx = a.gravity[alpha] * antiInterpolation + a.gravity[omega] * interpolation;
+            gy = a.gravity[alpha + 1] * antiInterpolation + a.gravity[omega + 1] * interpolation;
+            gz = a.gravity[alpha + 2] * antiInterpolation + a.gravity[omega + 2] * interpolation;
+        }
+        else {
+            gx = (a.gravity[alpha] + a.gravity[omega]) * 0.5;
+            gy = (a.gravity[alpha + 1] + a.gravity[omega + 1]) * 0.5;
+            gz = (a.gravity[alpha + 2] + a.gravity[omega + 2]) * 0.5;
+        }
+        gx *= step;
+        gy *= step;
+        gz *= step;
+        velocity[alpha] += gx;
+        velocity[alpha + 1] += gy;
+        velocity[alpha + 2] += gz;
+        velocity[omega] += gx;
+        velocity[omega + 1] += gy;
+        velocity[omega + 2] += gz;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+/**
+ * The step the physics always took: the force changes the velocity, and then the new velocity
+ * moves the joint.  Strictly speaking it is semi-implicit Euler, which is what keeps it from
+ * gaining energy.  It is also position Verlet written with velocities, since the velocity is
+ * exactly the difference between the last two locations divided by the step, and that stays
+ * true when the step length changes between substeps.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class EulerIntegrator implements ArrayPhysics.Integrator {
+    double timeStep = 1;
+
+    public EulerIntegrator() {
+    }
+
+    public EulerIntegrator(double timeStep) {
+        this.timeStep = timeStep;
+    }
+
+    /**
+     * How much time passes in one tick.  Longer steps settle in fewer ticks, until the stiff bars
+     * start to oscillate.
+     *
+     * @param timeStep one is what the physics was tuned with
+     */
+
+    public void setTimeStep(double timeStep) {
+        this.timeStep = timeStep;
+    }
+
+    public double getTimeStep() {
+        return timeStep;
+    }
+
+    public int getSubsteps() {
+        return 1;
+    }
+
+    public void prepare(FabricArrays arrays) {
+    }
+
+    public void accelerate(FabricArrays a, int joint, double inverseMass, double step) {
+        int j = joint * 3;
+        a.velocity[j] += a.force[j] * inverseMass * step;
+        a.velocity[j + 1] += a.force[j + 1] * inverseMass * step;
+        a.velocity[j + 2] += a.force[j + 2] * inverseMass * step;
+        a.velocity[j] += a.absorb[j];
+        a.velocity[j + 1] += a.absorb[j + 1];
+        a.velocity[j + 2] += a.absorb[j + 2];
+    }
+
+    public void move(FabricArrays a, int joint, double step) {
+        int j = joint * 3;
+        a.location[j] += a.velocity[j] * step;
+        a.location[j + 1] += a.velocity[j + 1] * step;
+        a.location[j + 2] += a.velocity[j + 2] * step;
+    }
+
+    public boolean isObserving() {
+        return false;
+    }
+
+    public void observe(double change, double reversal) {
+    }
+}
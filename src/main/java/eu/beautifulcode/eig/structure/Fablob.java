@@ -7,83 +7,149 @@ package eu.beautifulcode.eig.structure;
 
 import eu.beautifulcode.eig.math.Arrow;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Carefully marshall and unmarshall fabrics.
  *
+ * Fablobs are written in the second version of the format, where counts and identifiers are
+ * variable length so that there is no limit on the size of a fabric, and where everything that
+ * refers to a joint or interval does so by its position in the fabric's list.  The doubles of the
+ * joints and of the spans are written together in fixed width sections, so that they can be taken
+ * straight out of a buffer, which may well be a file mapped into memory.  Fablobs written in the
+ * first version, which used shorts and referred to joints by their Who, can still be read.
+ *
  * @author Gerald de Jong <geralddejong@gmail.com>
  */
 
 public class Fablob {
     private static final int MAGIC = 0xFAB00B1E;
-    private byte[] bytes;
+    private static final int MAGIC_2 = 0xFAB00B2E;
+    private static final int JOINT_DOUBLES = 7;
+    private static final int SPAN_DOUBLES = 3;
+    private ByteBuffer buffer;
 
     public static Fablob read(DataInputStream dis) throws IOException {
         int size = dis.readInt();
         byte[] bytes = new byte[size];
-        int offset = 0;
-        int read;
-        do {
-            read = dis.read(bytes, offset, bytes.length - offset);
-            offset += read;
-        }
-        while (offset < bytes.length);
+        dis.readFully(bytes);
         return new Fablob(bytes);
     }
 
+    /**
+     * Map a file written by write() into memory rather than reading it, so that a big fablob is
+     * decoded where it lies instead of first being copied onto the heap.
+     *
+     * @param file holding one fablob
+     * @return a fablob backed by the mapped file
+     * @throws IOException if the file can't be mapped or is too short
+     */
+
+    public static Fablob map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            int size = raf.readInt();
+            if (size < 0 || size > channel.size() - 4) {
+                throw new IOException("Fablob of " + size + " bytes doesn't fit in " + file);
+            }
+            return new Fablob(channel.map(FileChannel.MapMode.READ_ONLY, 4, size));
+        }
+        finally {
+            raf.close();
+        }
+    }
+
     public void write(DataOutputStream dos) throws IOException {
-        dos.writeInt(bytes.length);
-        dos.write(bytes);
+        dos.writeInt(buffer.remaining());
+        if (buffer.hasArray()) {
+            dos.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        else {
+            dos.write(getBytes());
+        }
     }
 
     public Fablob(byte[] bytes) {
-        this.bytes = bytes;
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    public Fablob(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
     }
 
     public Fablob(Fabric fabric) {
         if (fabric.hasTransformations()) {
             throw new RuntimeException("Cannot create a fablob when transformations are pending");
         }
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            DataOutputStream out = new DataOutputStream(bos);
-            out.writeInt(MAGIC);
-            packFabric(fabric, out);
-            out.close();
-            bytes = bos.toByteArray();
-        }
-        catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        buffer = ByteBuffer.wrap(pack(fabric));
+    }
+
+    /**
+     * A fablob of a fabric whose pending transformations are not wanted or are saved some other
+     * way, as in a session checkpoint.
+     *
+     * @param fabric what to pack, as it is right now
+     * @return a fresh fablob
+     */
+
+    public static Fablob createIgnoringTransformations(Fabric fabric) {
+        return new Fablob(pack(fabric));
     }
 
     public byte[] getBytes() {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.remaining()) {
+            return buffer.array();
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
         return bytes;
     }
 
     public Fabric createFabric(Thing.Factory factory) {
+        ByteBuffer in = buffer.duplicate();
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-            DataInputStream in = new DataInputStream(bis);
-            int magic = in.readInt();
-            if (magic != MAGIC) {
-                throw new RuntimeException("This is not a fabric!");
+            int magic = in.getInt();
+            switch (magic) {
+                case MAGIC:
+                    return unpackFabricVersion1(new DataInputStream(new BufferInputStream(in)), factory);
+                case MAGIC_2:
+                    return unpackFabric(in, factory);
+                default:
+                    throw new RuntimeException("This is not a fabric!");
             }
-            return unpackFabric(in, factory);
+        }
+        catch (BufferUnderflowException e) {
+            throw new RuntimeException("Fablob is truncated", e);
         }
         catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * The first version of the format packed a Who into a short, as side + id * 4.  There are five
+     * sides, so eliminated joints come back as middle ones, and ids stop at eight thousand.
+     *
+     * @param who to pack
+     * @param out where to
+     * @throws IOException from the stream
+     */
+
     public static void packWho(Who who, DataOutputStream out) throws IOException {
         packShort(who.side.ordinal() + (who.id * 4), out);
     }
@@ -107,42 +173,293 @@ public class Fablob {
 
     // the rest is private and static
 
+    /**
+     * Pack a fabric without asking whether it has transformations pending, for when they are not
+     * needed to carry on from here, as when recording a trajectory.
+     *
+     * @param fabric what to pack
+     * @return the bytes of a fablob
+     */
+
+    static byte[] pack(Fabric fabric) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(MAGIC_2);
+            packFabric(fabric, out);
+            out.close();
+            return bos.toByteArray();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private static void packFabric(Fabric fabric, DataOutputStream out) throws IOException {
         packLong(fabric.age, out);
         packLong(fabric.lastSpanActive, out);
         for (Who.Side side : Who.Side.values()) {
-            packShort(fabric.whoFactory.id[side.ordinal()], out);
+            packCount(fabric.whoFactory.id[side.ordinal()] + 1, out); // -1 means not yet known
         }
-        if (fabric.thing != null) {
-            packBoolean(true, out);
-            fabric.thing.save(out);
+        packThing(fabric.thing, out);
+        Map<Joint, Integer> jointIndex = new IdentityHashMap<Joint, Integer>(fabric.joints.size() * 2);
+        packCount(fabric.joints.size(), out);
+        for (Joint joint : fabric.joints) {
+            jointIndex.put(joint, jointIndex.size());
+            out.writeByte(joint.who.side.ordinal());
+            packCount(joint.who.id, out);
         }
-        else {
-            packBoolean(false, out);
+        for (Joint joint : fabric.joints) {
+            packArrow(joint.location, out);
+            packArrow(joint.velocity, out);
+            packDouble(joint.intervalMass, out);
         }
-        packShort(fabric.joints.size(), out);
         for (Joint joint : fabric.joints) {
-            packJoint(joint, out);
+            packThing(joint.thing, out);
+        }
+        Map<Interval, Integer> intervalIndex = new IdentityHashMap<Interval, Integer>(fabric.intervals.size() * 2);
+        packCount(fabric.intervals.size(), out);
+        for (Interval interval : fabric.intervals) {
+            intervalIndex.put(interval, intervalIndex.size());
+            packRole(interval.role, out);
+            packIndex(interval.alpha, jointIndex, out);
+            packIndex(interval.omega, jointIndex, out);
+        }
+        for (Interval interval : fabric.intervals) {
+            packDouble(interval.span.actual, out);
+            packDouble(interval.span.ideal, out);
+            packDouble(interval.span.stress, out);
         }
-        packShort(fabric.intervals.size(), out);
         for (Interval interval : fabric.intervals) {
-            packInterval(interval, out);
+            packRamps(interval.span, out);
         }
-        packShort(fabric.faces.size(), out);
+        for (Interval interval : fabric.intervals) {
+            packThing(interval.thing, out);
+        }
+        packCount(fabric.faces.size(), out);
         for (Face face : fabric.faces) {
-            packFace(face, out);
+            packFace(face, jointIndex, intervalIndex, out);
         }
-        packShort(fabric.tetras.size(), out);
+        packCount(fabric.tetras.size(), out);
         for (Tetra tetra : fabric.tetras) {
-            packTetra(tetra, out);
+            packJointList(tetra.joints, jointIndex, out);
         }
-        packShort(fabric.vertebras.size(), out);
+        packCount(fabric.vertebras.size(), out);
         for (Vertebra vertebra : fabric.vertebras) {
-            packVertebra(vertebra, out);
+            packJointList(vertebra.joints, jointIndex, out);
+        }
+    }
+
+    private static Fabric unpackFabric(ByteBuffer in, Thing.Factory thingFactory) throws IOException {
+        DataInputStream thingIn = new DataInputStream(new BufferInputStream(in));
+        Fabric fabric = new Fabric(thingFactory);
+        fabric.age = in.getLong();
+        fabric.lastSpanActive = in.getLong();
+        for (Who.Side side : Who.Side.values()) {
+            fabric.whoFactory.id[side.ordinal()] = unpackCount(in) - 1;
+        }
+        if (unpackBoolean(in)) {
+            fabric.thing = thingFactory.restoreExisting(thingIn, fabric);
+        }
+        int jointCount = unpackCount(in);
+        List<Joint> joints = fabric.joints;
+        for (int walk = 0; walk < jointCount; walk++) {
+            Who.Side side = Who.Side.values()[in.get()];
+            joints.add(new Joint(new Who(side, unpackCount(in))));
+        }
+        DoubleBuffer doubles = doubleSection(in, jointCount, JOINT_DOUBLES);
+        for (int walk = 0; walk < jointCount; walk++) {
+            Joint joint = joints.get(walk);
+            int at = walk * JOINT_DOUBLES;
+            joint.location.x = doubles.get(at);
+            joint.location.y = doubles.get(at + 1);
+            joint.location.z = doubles.get(at + 2);
+            joint.velocity.x = doubles.get(at + 3);
+            joint.velocity.y = doubles.get(at + 4);
+            joint.velocity.z = doubles.get(at + 5);
+            joint.intervalMass = doubles.get(at + 6);
+        }
+        for (Joint joint : joints) {
+            if (unpackBoolean(in)) {
+                joint.thing = thingFactory.restoreExisting(thingIn, joint);
+            }
+        }
+        int intervalCount = unpackCount(in);
+        List<Interval> intervals = fabric.intervals;
+        for (int walk = 0; walk < intervalCount; walk++) {
+            Interval interval = new Interval();
+            interval.role = Interval.Role.values()[in.get()];
+            interval.alpha = joints.get(unpackCount(in));
+            interval.omega = joints.get(unpackCount(in));
+            intervals.add(interval);
+        }
+        doubles = doubleSection(in, intervalCount, SPAN_DOUBLES);
+        for (int walk = 0; walk < intervalCount; walk++) {
+            int at = walk * SPAN_DOUBLES;
+            intervals.get(walk).span = new Span(doubles.get(at), doubles.get(at + 1), doubles.get(at + 2));
+        }
+        for (Interval interval : intervals) {
+            unpackRamps(in, interval.span);
+        }
+        for (Interval interval : intervals) {
+            if (unpackBoolean(in)) {
+                interval.thing = thingFactory.restoreExisting(thingIn, interval);
+            }
+        }
+        int faceCount = unpackCount(in);
+        while (faceCount-- > 0) {
+            fabric.faces.add(unpackFace(fabric, in, thingIn));
+        }
+        int tetraCount = unpackCount(in);
+        while (tetraCount-- > 0) {
+            Tetra tetra = new Tetra();
+            unpackJointList(tetra.joints, joints, in);
+            fabric.tetras.add(tetra);
+        }
+        int vertebraCount = unpackCount(in);
+        while (vertebraCount-- > 0) {
+            Vertebra vertebra = new Vertebra();
+            unpackJointList(vertebra.joints, joints, in);
+            fabric.vertebras.add(vertebra);
+        }
+        return fabric;
+    }
+
+    /**
+     * A view of the next count * width doubles, after which the buffer is positioned past them.
+     *
+     * @param in the buffer
+     * @param count how many elements
+     * @param width how many doubles each
+     * @return the doubles, indexed from zero
+     */
+
+    private static DoubleBuffer doubleSection(ByteBuffer in, int count, int width) {
+        long length = (long) count * width;
+        if (length * 8 > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        DoubleBuffer doubles = in.asDoubleBuffer();
+        in.position(in.position() + (int) (length * 8));
+        return doubles;
+    }
+
+    private static void packRamps(Span span, DataOutputStream out) throws IOException {
+        packCount(span.rampCount, out);
+        if (span.rampCount > 0) {
+            packDouble(span.rampInitial, out);
+            packLong(span.rampEnd, out);
+        }
+        for (int walk = 0; walk < span.rampCount; walk++) {
+            packDouble(span.rampValue[span.rampHead + walk], out);
+            packCount(span.rampTicks[span.rampHead + walk], out);
+        }
+    }
+
+    private static void unpackRamps(ByteBuffer in, Span span) {
+        int rampCount = unpackCount(in);
+        if (rampCount > 0) {
+            span.rampInitial = in.getDouble();
+            span.rampEnd = in.getLong();
+        }
+        while (rampCount-- > 0) {
+            double value = in.getDouble();
+            span.addRamp(value, unpackCount(in));
+        }
+    }
+
+    private static void packFace(Face face, Map<Joint, Integer> jointIndex, Map<Interval, Integer> intervalIndex, DataOutputStream out) throws IOException {
+        out.writeByte(face.order.ordinal() + 2 * face.chirality.ordinal());
+        packJointList(face.joints, jointIndex, out);
+        boolean hasMuscle = face.stressInterval != null;
+        packBoolean(hasMuscle, out);
+        if (hasMuscle) {
+            packIndex(face.stressInterval, intervalIndex, out);
+        }
+        packThing(face.getThing(), out);
+    }
+
+    private static Face unpackFace(Fabric fabric, ByteBuffer in, DataInputStream thingIn) throws IOException {
+        int orientation = in.get();
+        Face face = new Face(Face.Order.values()[orientation % 2], Face.Chirality.values()[orientation / 2]);
+        unpackJointList(face.joints, fabric.joints, in);
+        if (unpackBoolean(in)) {
+            face.setStressInterval(fabric.intervals.get(unpackCount(in)));
+        }
+        if (unpackBoolean(in)) {
+            face.setThing(fabric.getThingFactory().restoreExisting(thingIn, face));
+        }
+        return face;
+    }
+
+    private static void packJointList(List<Joint> joints, Map<Joint, Integer> jointIndex, DataOutputStream out) throws IOException {
+        packCount(joints.size(), out);
+        for (Joint joint : joints) {
+            packIndex(joint, jointIndex, out);
+        }
+    }
+
+    private static void unpackJointList(List<Joint> joints, List<Joint> allJoints, ByteBuffer in) {
+        int jointCount = unpackCount(in);
+        while (jointCount-- > 0) {
+            joints.add(allJoints.get(unpackCount(in)));
+        }
+    }
+
+    private static <T> void packIndex(T t, Map<T, Integer> index, DataOutputStream out) throws IOException {
+        Integer position = index.get(t);
+        if (position == null) {
+            throw new RuntimeException("Not in the fabric: " + t);
+        }
+        packCount(position, out);
+    }
+
+    private static void packThing(Thing thing, DataOutputStream out) throws IOException {
+        if (thing != null) {
+            packBoolean(true, out);
+            thing.save(out);
+        }
+        else {
+            packBoolean(false, out);
+        }
+    }
+
+    /**
+     * Things restore themselves from a stream, so they are given one which reads straight from the
+     * buffer and leaves it positioned after them.
+     */
+
+    private static class BufferInputStream extends InputStream {
+        private ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        public int available() {
+            return buffer.remaining();
         }
     }
 
-    private static Fabric unpackFabric(DataInputStream in, Thing.Factory thingFactory) throws IOException {
+    // version one, which is only read
+
+    private static Fabric unpackFabricVersion1(DataInputStream in, Thing.Factory thingFactory) throws IOException {
         Fabric fabric = new Fabric(thingFactory);
         fabric.age = unpackLong(in);
         fabric.lastSpanActive = unpackLong(in);
@@ -155,44 +472,34 @@ public class Fablob {
         Map<Who, Joint> jointMap = new HashMap<Who, Joint>();
         int jointCount = unpackShort(in);
         while (jointCount-- > 0) {
-            Joint joint = unpackJoint(in, thingFactory);
+            Joint joint = unpackJointVersion1(in, thingFactory);
             fabric.joints.add(joint);
             jointMap.put(joint.who, joint);
         }
         int intervalCount = unpackShort(in);
         while (intervalCount-- > 0) {
-            fabric.intervals.add(unpackInterval(in, jointMap, thingFactory));
+            fabric.intervals.add(unpackIntervalVersion1(in, jointMap, thingFactory));
         }
         int faceCount = unpackShort(in);
         while (faceCount-- > 0) {
-            fabric.faces.add(unpackFace(fabric, in, jointMap));
+            fabric.faces.add(unpackFaceVersion1(fabric, in, jointMap));
         }
         int tetraCount = unpackShort(in);
         while (tetraCount-- > 0) {
-            fabric.tetras.add(unpackTetra(in, jointMap));
+            Tetra tetra = new Tetra();
+            unpackSmallJointList(tetra.joints, in, jointMap);
+            fabric.tetras.add(tetra);
         }
         int vertebraCount = unpackShort(in);
         while (vertebraCount-- > 0) {
-            fabric.vertebras.add(unpackVertebra(in, jointMap));
+            Vertebra vertebra = new Vertebra();
+            unpackSmallJointList(vertebra.joints, in, jointMap);
+            fabric.vertebras.add(vertebra);
         }
         return fabric;
     }
 
-    private static void packJoint(Joint joint, DataOutputStream out) throws IOException {
-        packWho(joint.who, out);
-        packArrow(joint.location, out);
-        packArrow(joint.velocity, out);
-        packDouble(joint.intervalMass, out);
-        if (joint.thing != null) {
-            packBoolean(true, out);
-            joint.thing.save(out);
-        }
-        else {
-            packBoolean(false, out);
-        }
-    }
-
-    private static Joint unpackJoint(DataInputStream in, Thing.Factory thingFactory) throws IOException {
+    private static Joint unpackJointVersion1(DataInputStream in, Thing.Factory thingFactory) throws IOException {
         Joint joint = new Joint(unpackWho(in));
         unpackArrow(in, joint.location);
         unpackArrow(in, joint.velocity);
@@ -203,88 +510,33 @@ public class Fablob {
         return joint;
     }
 
-    private static void packInterval(Interval interval, DataOutputStream out) throws IOException {
-        packRole(interval.role, out);
-        packWho(interval.alpha.who, out);
-        packWho(interval.omega.who, out);
-        packSpan(interval.span, out);
-        if (interval.thing != null) {
-            packBoolean(true, out);
-            interval.thing.save(out);
-        }
-        else {
-            packBoolean(false, out);
-        }
-    }
-
-    private static Interval unpackInterval(DataInputStream in, Map<Who, Joint> joints, Thing.Factory thingFactory) throws IOException {
+    private static Interval unpackIntervalVersion1(DataInputStream in, Map<Who, Joint> joints, Thing.Factory thingFactory) throws IOException {
         Interval interval = new Interval();
         interval.role = unpackRole(in);
         interval.alpha = joints.get(unpackWho(in));
         interval.omega = joints.get(unpackWho(in));
-        interval.span = unpackSpan(in);
+        interval.span = unpackSpanVersion1(in);
         if (unpackBoolean(in)) {
             interval.thing = thingFactory.restoreExisting(in, interval);
         }
         return interval;
     }
 
-    private static void packSpan(Span span, DataOutputStream out) throws IOException {
-        packDouble(span.actual, out);
-        packDouble(span.ideal, out);
-        packDouble(span.stress, out);
-        packByte(span.getChainSize(), out);
-        Span.Future future = span.future;
-        if (future != null) {
-            packDouble(future.initial, out);
-            packDouble(future.value, out);
-            packShort(future.howLong, out);
-            packLong(future.when, out);
-            future = future.nextFuture;
-            while (future != null) {
-                packDouble(future.value, out);
-                packShort(future.howLong, out);
-                future = future.nextFuture;
-            }
-        }
-    }
-
-    private static Span unpackSpan(DataInputStream in) throws IOException {
+    private static Span unpackSpanVersion1(DataInputStream in) throws IOException {
         Span span = new Span(unpackDouble(in), unpackDouble(in), unpackDouble(in));
         int chainSize = unpackByte(in);
         if (chainSize > 0) {
-            Span.Future future = span.future = new Span.Future();
-            future.initial = unpackDouble(in);
-            future.value = unpackDouble(in);
-            future.howLong = unpackShort(in);
-            future.when = unpackLong(in);
+            span.rampInitial = unpackDouble(in);
+            span.addRamp(unpackDouble(in), unpackShort(in));
+            span.rampEnd = unpackLong(in);
             while (--chainSize > 0) {
-                future = future.nextFuture = new Span.Future();
-                future.value = unpackDouble(in);
-                future.howLong = unpackShort(in);
+                span.addRamp(unpackDouble(in), unpackShort(in));
             }
         }
         return span;
     }
 
-    private static void packFace(Face face, DataOutputStream out) throws IOException {
-        int orientation = face.order.ordinal() + 2 * face.chirality.ordinal();
-        packByte(orientation, out);
-        packSmallJointList(face.joints, out);
-        boolean hasMuscle = face.stressInterval != null;
-        packBoolean(hasMuscle, out);
-        if (hasMuscle) {
-            packWho(face.stressInterval.alpha.who, out);
-            packWho(face.stressInterval.omega.who, out);
-        }
-        boolean hasThing = face.getThing() != null;
-        packBoolean(hasThing, out);
-        if (hasThing) {
-            face.getThing().save(out);
-        }
-    }
-
-    private static Face unpackFace(Fabric fabric, DataInputStream in, Map<Who, Joint> allJoints) throws IOException {
+    private static Face unpackFaceVersion1(Fabric fabric, DataInputStream in, Map<Who, Joint> allJoints) throws IOException {
         int orientation = unpackByte(in);
         Face.Order order = Face.Order.values()[orientation % 2];
         Face.Chirality chirality = Face.Chirality.values()[orientation / 2];
@@ -299,33 +551,6 @@ public class Fablob {
         return face;
     }
 
-    private static void packTetra(Tetra tetra, DataOutputStream out) throws IOException {
-        packSmallJointList(tetra.joints, out);
-    }
-
-    private static Tetra unpackTetra(DataInputStream in, Map<Who, Joint> joints) throws IOException {
-        Tetra tetra = new Tetra();
-        unpackSmallJointList(tetra.joints, in, joints);
-        return tetra;
-    }
-
-    private static void packVertebra(Vertebra vertebra, DataOutputStream out) throws IOException {
-        packSmallJointList(vertebra.joints, out);
-    }
-
-    private static Vertebra unpackVertebra(DataInputStream in, Map<Who, Joint> joints) throws IOException {
-        Vertebra vertebra = new Vertebra();
-        unpackSmallJointList(vertebra.joints, in, joints);
-        return vertebra;
-    }
-
-    private static void packSmallJointList(List<Joint> joints, DataOutputStream out) throws IOException {
-        packByte(joints.size(), out);
-        for (Joint joint : joints) {
-            packWho(joint.who, out);
-        }
-    }
-
     private static void unpackSmallJointList(List<Joint> joints, DataInputStream in, Map<Who, Joint> allJoints) throws IOException {
         int jointCount = unpackByte(in);
         while (jointCount-- > 0) {
@@ -343,6 +568,10 @@ public class Fablob {
         return in.readBoolean();
     }
 
+    private static boolean unpackBoolean(ByteBuffer in) {
+        return in.get() != 0;
+    }
+
     private static void packRole(Interval.Role role, DataOutputStream out) throws IOException {
         out.writeByte(role.ordinal());
     }
@@ -351,11 +580,36 @@ public class Fablob {
         return Interval.Role.values()[in.readByte()];
     }
 
-    private static void packByte(int number, DataOutputStream out) throws IOException {
-        if (number < Byte.MIN_VALUE || number > Byte.MAX_VALUE) {
-            throw new RuntimeException("Couldn't pack byte " + number);
+    /**
+     * A count or an index, seven bits at a time with the high bit saying that more follow, so
+     * small numbers take one byte and there is no upper limit to speak of.
+     *
+     * @param number not negative
+     * @param out where to
+     * @throws IOException from the stream
+     */
+
+    private static void packCount(int number, DataOutputStream out) throws IOException {
+        if (number < 0) {
+            throw new RuntimeException("Couldn't pack count " + number);
         }
-        out.writeShort(number);
+        while ((number & ~0x7F) != 0) {
+            out.writeByte((number & 0x7F) | 0x80);
+            number >>>= 7;
+        }
+        out.writeByte(number);
+    }
+
+    private static int unpackCount(ByteBuffer in) {
+        int number = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.get() & 0xFF;
+            number |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return number;
+            }
+        }
+        throw new RuntimeException("Count is too long");
     }
 
     private static int unpackByte(DataInputStream in) throws IOException {
@@ -409,4 +663,4 @@ public class Fablob {
         }
         System.out.println("okay");
     }
-}
\ No newline at end of file
+}
@@ -8,11 +8,15 @@ package eu.beautifulcode.eig.structure;
 import eu.beautifulcode.eig.math.Arrow;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Gerald de Jong <geralddejong@gmail.com>
@@ -21,15 +25,25 @@ import java.util.Queue;
 public class Fabric {
     long age;
     long lastSpanActive = -1;
+    int calmTicks;
+    boolean settled;
+    long disturbance;
+    long revision;
     List<Joint> joints = new ArrayList<Joint>();
     List<Interval> intervals = new ArrayList<Interval>();
     List<Face> faces = new ArrayList<Face>();
     List<Tetra> tetras = new ArrayList<Tetra>();
     List<Vertebra> vertebras = new ArrayList<Vertebra>();
     Mods modifications = new Mods();
+    FabricIndex index = new FabricIndex();
     WhoFactory whoFactory = new WhoFactory();
     Thing thing;
     Thing.Factory factory;
+    boolean publishSnapshots;
+    volatile double midpointCellSize;
+    AtomicReference<FabricSnapshot> snapshot = new AtomicReference<FabricSnapshot>();
+    FabricMetrics metrics;
+    SpanSchedule schedule = new SpanSchedule();
 
     public Fabric(Thing.Factory thingFactory) {
         this.factory = thingFactory;
@@ -99,6 +113,14 @@ public class Fabric {
         return !modifications.transformations.isEmpty();
     }
 
+    /**
+     * @return a copy of the queue of transformations waiting to be executed, in order
+     */
+
+    public List<Transformation> getTransformations() {
+        return new ArrayList<Transformation>(modifications.transformations);
+    }
+
     public void spansWereActive() {
         lastSpanActive = age;
     }
@@ -107,6 +129,117 @@ public class Fabric {
         return age == lastSpanActive;
     }
 
+    /**
+     * The physics decides that a fabric has settled when its joints have barely moved for a while.
+     * Use Physics.isAsleep() to also take changed physics values into account.
+     *
+     * @return true if the physics has stopped working on this fabric
+     */
+
+    public boolean isSettled() {
+        return settled;
+    }
+
+    /**
+     * Make the physics work on this fabric again.  Adding a transformation does this automatically,
+     * but anything else that disturbs it, like changing span ideals directly, should call this.
+     * Physics sleeping in regions then looks for what changed.
+     */
+
+    public void wake() {
+        settled = false;
+        calmTicks = 0;
+        disturbance++;
+    }
+
+    /**
+     * The revision is bumped whenever joints, intervals or their connections change, so that
+     * anything caching the structure of the fabric knows when to rebuild.
+     *
+     * @return a number which changes when the structure changes
+     */
+
+    public long getRevision() {
+        return revision;
+    }
+
+    void structureChanged() {
+        revision++;
+    }
+
+    /**
+     * Replace one joint of a face which is already part of the fabric, keeping track of which
+     * faces touch which joints.
+     *
+     * @param face the face to change
+     * @param jointFrom the joint to leave
+     * @param jointTo the joint to take its place
+     */
+
+    public void replace(Face face, Joint jointFrom, Joint jointTo) {
+        FabricIndex index = index();
+        boolean indexed = index.remove(face);
+        face.replace(jointFrom, jointTo);
+        if (indexed) {
+            index.add(face);
+        }
+    }
+
+    /**
+     * When switched on, a fresh snapshot is published after every physics batch, and another
+     * thread can pick up the latest complete one with getSnapshot().
+     *
+     * @param publishSnapshots true to publish
+     */
+
+    public void setPublishSnapshots(boolean publishSnapshots) {
+        this.publishSnapshots = publishSnapshots;
+    }
+
+    /**
+     * Have every published snapshot carry a grid of its interval midpoints, built on the thread
+     * that publishes it, so that the thread picking it up only has to ask the grid.  Safe to call
+     * from any thread, so whoever paints can switch the grids off while it has no use for them.
+     *
+     * @param midpointCellSize the size of the cells, or zero for no grid
+     */
+
+    public void setMidpointCellSize(double midpointCellSize) {
+        this.midpointCellSize = midpointCellSize;
+    }
+
+    public FabricSnapshot createSnapshot() {
+        return FabricSnapshot.create(this);
+    }
+
+    public void publishSnapshot() {
+        snapshot.set(midpointCellSize > 0 ? FabricSnapshot.create(this, midpointCellSize) : createSnapshot());
+    }
+
+    /**
+     * Safe to call from any thread
+     *
+     * @return the most recently published snapshot, or null if there is none yet
+     */
+
+    public FabricSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Record where the time goes every time the transformations are executed.
+     *
+     * @param metrics where to record, or null to stop recording
+     */
+
+    public void setMetrics(FabricMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public FabricMetrics getMetrics() {
+        return metrics;
+    }
+
     public List<Joint> getJoints() {
         return joints;
     }
@@ -136,13 +269,8 @@ public class Fabric {
 
     public List<Interval> getIntervals(Joint joint) {
         List<Interval> found = new ArrayList<Interval>();
-        for (Interval interval : intervals) {
-            if (interval.contains(joint) && interval.isReal()) {
-                found.add(interval);
-            }
-        }
-        for (Interval interval : modifications.intervalMods.add) {
-            if (interval.contains(joint) && interval.isReal()) {
+        for (Interval interval : index().getIntervals(joint)) {
+            if (interval.isReal()) {
                 found.add(interval);
             }
         }
@@ -151,12 +279,7 @@ public class Fabric {
 
     public List<Interval> getRealIntervals(Joint jointA, Joint jointB) {
         List<Interval> found = new ArrayList<Interval>();
-        for (Interval interval : intervals) {
-            if (interval.connects(jointA, jointB) && interval.isReal()) {
-                found.add(interval);
-            }
-        }
-        for (Interval interval : modifications.intervalMods.add) {
+        for (Interval interval : index().getIntervals(jointA, jointB)) {
             if (interval.connects(jointA, jointB) && interval.isReal()) {
                 found.add(interval);
             }
@@ -166,15 +289,7 @@ public class Fabric {
 
     public Interval getInterval(Joint jointA, Joint jointB) {
         Interval found = null;
-        for (Interval interval : intervals) {
-            if (interval.connects(jointA, jointB) && interval.isReal()) {
-                if (found != null) {
-                    throw new RuntimeException("Multiple intervals!");
-                }
-                found = interval;
-            }
-        }
-        for (Interval interval : modifications.intervalMods.add) {
+        for (Interval interval : index().getIntervals(jointA, jointB)) {
             if (interval.connects(jointA, jointB) && interval.isReal()) {
                 if (found != null) {
                     throw new RuntimeException("Multiple intervals!");
@@ -231,19 +346,13 @@ public class Fabric {
     }
 
     public List<Face> getFaces(Joint joint) {
-        List<Face> found = new ArrayList<Face>();
-        for (Face face : faces) {
-            if (face.joints.contains(joint)) {
-                found.add(face);
-            }
-        }
-        return found;
+        return new ArrayList<Face>(index().getFaces(joint));
     }
 
     public List<Face> getFaces(Joint jointA, Joint jointB, Joint jointC) {
         List<Face> found = new ArrayList<Face>();
-        for (Face face : faces) {
-            if (face.contains(jointA) && face.contains(jointB) && face.contains(jointC)) {
+        for (Face face : index().getFaces(jointA)) {
+            if (face.contains(jointB) && face.contains(jointC)) {
                 found.add(face);
             }
         }
@@ -314,13 +423,7 @@ public class Fabric {
     }
 
     public List<Tetra> getTetras(Joint joint) {
-        List<Tetra> found = new ArrayList<Tetra>();
-        for (Tetra tetra : tetras) {
-            if (tetra.joints.contains(joint)) {
-                found.add(tetra);
-            }
-        }
-        return found;
+        return new ArrayList<Tetra>(index().getTetras(joint));
     }
 
     public List<Vertebra> getVertebras() {
@@ -359,6 +462,7 @@ public class Fabric {
     }
 
     public void addTransformation(Transformation transformation) {
+        wake();
         modifications.getTransformations().add(transformation);
     }
 
@@ -429,8 +533,18 @@ public class Fabric {
             }
         };
         private ModCollection<Interval> intervalMods = new ModCollection<Interval>() {
+            @Override
+            public Interval add(Interval interval) {
+                super.add(interval);
+                index.add(interval);
+                return interval;
+            }
+
             @Override
             public void remove(Interval interval) {
+                if (isAdded(interval)) {
+                    index.remove(interval);
+                }
                 interval.role = Interval.Role.GONE;
 //                if (interval.alpha.who.side == Who.Side.TEMPORARY) {
 //                    interval.alpha.who.side = Who.Side.ELIMINATED;
@@ -478,39 +592,74 @@ public class Fabric {
             if (physicsTransformation != null) {
                 transformAndModify(physicsTransformation);
             }
+            if (publishSnapshots) {
+                publishSnapshot();
+            }
+            if (metrics != null) {
+                metrics.end(age);
+            }
         }
 
         private void transformAndModify(Transformation transformation) {
+            long time = FabricMetrics.start(metrics);
             transformation.transform(Fabric.this);
+            time = FabricMetrics.lap(metrics, transformation instanceof PhysicsTransformation ? FabricMetrics.Pass.PHYSICS : FabricMetrics.Pass.TRANSFORMATIONS, time);
+            if (!jointMods.remove.isEmpty()) {
+                removeIncident(index());
+            }
+            for (Vertebra vertebra : vertebraMods.remove) {
+                index.remove(vertebra);
+            }
+            for (Vertebra vertebra : vertebraMods.add) {
+                index.add(vertebra);
+            }
+            for (Tetra tetra : tetraMods.remove) {
+                index.remove(tetra);
+            }
+            for (Tetra tetra : tetraMods.add) {
+                index.add(tetra);
+            }
+            for (Face face : faceMods.remove) {
+                index.remove(face);
+            }
+            for (Face face : faceMods.add) {
+                index.add(face);
+            }
+            for (Interval interval : intervalMods.remove) {
+                index.remove(interval);
+            }
+            vertebraMods.apply(vertebras);
+            tetraMods.apply(tetras);
+            faceMods.apply(faces);
+            intervalMods.apply(intervals);
+            jointMods.apply(joints);
+            FabricMetrics.lap(metrics, FabricMetrics.Pass.MODS, time);
+        }
+
+        /**
+         * Whatever touches a removed joint has to go too.  Intervals still waiting to be added are
+         * left alone, as they always were.
+         *
+         * @param index where to find what touches each joint
+         */
+
+        private void removeIncident(FabricIndex index) {
             for (Joint removedJoint : jointMods.remove) {
-                for (Interval interval : intervals) {
-                    if (interval.getRole() != Interval.Role.GONE) {
-                        if (interval.contains(removedJoint)) {
-                            intervalMods.remove(interval);
-                        }
+                for (Interval interval : index.getIntervals(removedJoint)) {
+                    if (interval.getRole() != Interval.Role.GONE && !intervalMods.isAdded(interval)) {
+                        intervalMods.remove(interval);
                     }
                 }
-                for (Face face : faces) {
-                    if (face.joints.contains(removedJoint)) {
-                        faceMods.remove(face);
-                    }
+                for (Face face : index.getFaces(removedJoint)) {
+                    faceMods.remove(face);
                 }
-                for (Tetra tetra : tetras) {
-                    if (tetra.joints.contains(removedJoint)) {
-                        tetraMods.remove(tetra);
-                    }
+                for (Tetra tetra : index.getTetras(removedJoint)) {
+                    tetraMods.remove(tetra);
                 }
-                for (Vertebra vertebra : vertebras) {
-                    if (vertebra.joints.contains(removedJoint)) {
-                        vertebraMods.remove(vertebra);
-                    }
+                for (Vertebra vertebra : index.getVertebras(removedJoint)) {
+                    vertebraMods.remove(vertebra);
                 }
             }
-            vertebraMods.apply(vertebras);
-            tetraMods.apply(tetras);
-            faceMods.apply(faces);
-            intervalMods.apply(intervals);
-            jointMods.apply(joints);
         }
 
         @Override
@@ -520,69 +669,114 @@ public class Fabric {
     }
 
     public void replace(Joint jointFrom, Joint jointTo) {
-        for (Interval interval : intervals) {
-            if (interval.replace(jointFrom, jointTo)) {
+        FabricIndex index = index();
+        structureChanged();
+        for (Interval interval : new ArrayList<Interval>(index.getIntervals(jointFrom))) {
+            index.remove(interval);
+            boolean collapsed = interval.replace(jointFrom, jointTo);
+            index.add(interval);
+            if (collapsed) {
                 modifications.getIntervalMod().remove(interval);
             }
         }
-        for (Interval interval : modifications.intervalMods.add) {
-            if (interval.replace(jointFrom, jointTo)) {
-                modifications.getIntervalMod().remove(interval);
-            }
-        }
-        for (Face face : faces) {
+        for (Face face : new ArrayList<Face>(index.getFaces(jointFrom))) {
+            index.remove(face);
             face.replace(jointFrom, jointTo);
+            index.add(face);
         }
         for (Face face : modifications.faceMods.add) {
             face.replace(jointFrom, jointTo);
         }
-        for (Tetra tetra : tetras) {
+        for (Tetra tetra : new ArrayList<Tetra>(index.getTetras(jointFrom))) {
+            index.remove(tetra);
             tetra.replace(jointFrom, jointTo);
+            index.add(tetra);
         }
         for (Tetra tetra : modifications.tetraMods.add) {
             tetra.replace(jointFrom, jointTo);
         }
-        for (Vertebra vertebra : vertebras) {
+        for (Vertebra vertebra : new ArrayList<Vertebra>(index.getVertebras(jointFrom))) {
+            index.remove(vertebra);
             vertebra.replace(jointFrom, jointTo);
+            index.add(vertebra);
         }
         for (Vertebra vertebra : modifications.vertebraMods.add) {
             vertebra.replace(jointFrom, jointTo);
         }
     }
 
+    private FabricIndex index() {
+        if (index.isStale(intervals.size() + modifications.intervalMods.add.size(), faces.size(), tetras.size(), vertebras.size())) {
+            index.rebuild(intervals, modifications.intervalMods.add, faces, tetras, vertebras);
+        }
+        return index;
+    }
+
+    /**
+     * Additions and removals waiting to be applied.  The lists keep the order in which things
+     * arrived, while the identity sets answer membership questions without searching.
+     *
+     * @param <T> what is being modified
+     */
+
     private class ModCollection<T> implements Mod<T> {
         private List<T> add = new ArrayList<T>();
         private List<T> remove = new ArrayList<T>();
+        private Set<T> addSet = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+        private Set<T> removeSet = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
 
         public boolean isRemoved(T t) {
-            return remove.contains(t);
+            return removeSet.contains(t);
+        }
+
+        boolean isAdded(T t) {
+            return addSet.contains(t);
         }
 
         public T add(T t) {
-            if (add.contains(t) || remove.contains(t)) {
+            if (addSet.contains(t) || removeSet.contains(t)) {
                 throw new RuntimeException();
             }
+            addSet.add(t);
             add.add(t);
             return t;
         }
 
         public void remove(T t) {
-            if (add.contains(t)) {
-                add.remove(t);
+            if (addSet.remove(t)) {
+                for (int walk = add.size() - 1; walk >= 0; walk--) {
+                    if (add.get(walk) == t) {
+                        add.remove(walk);
+                        break;
+                    }
+                }
             }
-            else if (!remove.contains(t)) {
+            else if (removeSet.add(t)) {
                 remove.add(t);
             }
         }
 
         public void apply(List<T> list) {
+            if (!remove.isEmpty() || !add.isEmpty()) {
+                structureChanged();
+                FabricMetrics.modified(metrics, add.size(), remove.size());
+            }
             if (!remove.isEmpty()) {
-                list.removeAll(remove);
+                int keep = 0;
+                for (int walk = 0; walk < list.size(); walk++) {
+                    T t = list.get(walk);
+                    if (!removeSet.contains(t)) {
+                        list.set(keep++, t);
+                    }
+                }
+                list.subList(keep, list.size()).clear();
                 remove.clear();
+                removeSet.clear();
             }
             if (!add.isEmpty()) {
                 list.addAll(add);
                 add.clear();
+                addSet.clear();
             }
         }
 
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import eu.beautifulcode.eig.math.Arrow;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The state of a fabric packed into primitive arrays, so that physics can sweep through memory
+ * instead of chasing joints and arrows around the heap.  Vectors are stored as consecutive
+ * x, y, z triples, so joint j lives at [3*j] through [3*j+2].
+ *
+ * The joint and interval objects remain the real fabric.  Gather copies their state in,
+ * scatter copies it back out again so that painters and transformations see the results.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class FabricArrays {
+    private Fabric fabric;
+    private long revision = -1;
+    private int listSize;
+    int jointCount;
+    Joint[] joints = new Joint[0];
+    boolean[] free = new boolean[0];
+    double[] location = new double[0];
+    double[] velocity = new double[0];
+    double[] force = new double[0];
+    double[] absorb = new double[0];
+    double[] gravity = new double[0];
+    double[] altitude = new double[0];
+    double[] mass = new double[0];
+    int intervalCount;
+    Interval[] intervals = new Interval[0];
+    Span[] spans = new Span[0];
+    Interval.Role[] roles = new Interval.Role[0];
+    int[] alpha = new int[0];
+    int[] omega = new int[0];
+    double[] unit = new double[0];
+    double[] ideal = new double[0];
+    double[] actual = new double[0];
+    double[] stress = new double[0];
+    private Map<Interval, Integer> slots = new IdentityHashMap<Interval, Integer>();
+
+    public FabricArrays() {
+    }
+
+    public Fabric getFabric() {
+        return fabric;
+    }
+
+    public int getJointCount() {
+        return jointCount;
+    }
+
+    public int getIntervalCount() {
+        return intervalCount;
+    }
+
+    public Joint getJoint(int index) {
+        return joints[index];
+    }
+
+    public Interval getInterval(int index) {
+        return intervals[index];
+    }
+
+    public void getLocation(int joint, Arrow arrow) {
+        arrow.set(location[joint * 3], location[joint * 3 + 1], location[joint * 3 + 2]);
+    }
+
+    public void addVelocity(int joint, double x, double y, double z) {
+        velocity[joint * 3] += x;
+        velocity[joint * 3 + 1] += y;
+        velocity[joint * 3 + 2] += z;
+    }
+
+    public void scaleVelocity(int joint, double scale) {
+        velocity[joint * 3] *= scale;
+        velocity[joint * 3 + 1] *= scale;
+        velocity[joint * 3 + 2] *= scale;
+    }
+
+    public int getAlpha(int interval) {
+        return alpha[interval];
+    }
+
+    public int getOmega(int interval) {
+        return omega[interval];
+    }
+
+    /**
+     * @param interval one that was packed
+     * @return where it was packed
+     */
+
+    public int slot(Interval interval) {
+        Integer slot = slots.get(interval);
+        if (slot == null) {
+            throw new RuntimeException("Interval was not packed: " + interval);
+        }
+        return slot;
+    }
+
+    /**
+     * Does the structure of the fabric differ from what was packed?
+     *
+     * @param fabric the one to check against
+     * @return true if pack must be called again
+     */
+
+    public boolean isStale(Fabric fabric) {
+        return
+                this.fabric != fabric ||
+                revision != fabric.revision ||
+                jointCount != fabric.joints.size() ||
+                listSize != fabric.intervals.size();
+    }
+
+    /**
+     * Build the index arrays describing the structure, and then gather the state.
+     *
+     * @param fabric what is to be packed
+     */
+
+    public void pack(Fabric fabric) {
+        this.fabric = fabric;
+        this.revision = fabric.revision;
+        jointCount = fabric.joints.size();
+        if (joints.length < jointCount) {
+            int size = capacity(jointCount);
+            joints = new Joint[size];
+            free = new boolean[size];
+            location = new double[size * 3];
+            velocity = new double[size * 3];
+            force = new double[size * 3];
+            absorb = new double[size * 3];
+            gravity = new double[size * 3];
+            altitude = new double[size];
+            mass = new double[size];
+        }
+        Map<Joint, Integer> index = new IdentityHashMap<Joint, Integer>(jointCount * 2);
+        for (int walk = 0; walk < jointCount; walk++) {
+            Joint joint = fabric.joints.get(walk);
+            joints[walk] = joint;
+            index.put(joint, walk);
+        }
+        Arrays.fill(joints, jointCount, joints.length, null);
+        listSize = fabric.intervals.size();
+        intervalCount = 0;
+        for (Interval interval : fabric.intervals) {
+            if (interval.role != Interval.Role.GONE) {
+                intervalCount++;
+            }
+        }
+        if (intervals.length < intervalCount) {
+            int size = capacity(intervalCount);
+            intervals = new Interval[size];
+            spans = new Span[size];
+            roles = new Interval.Role[size];
+            alpha = new int[size];
+            omega = new int[size];
+            unit = new double[size * 3];
+            ideal = new double[size];
+            actual = new double[size];
+            stress = new double[size];
+        }
+        slots.clear();
+        int walk = 0;
+        for (Interval interval : fabric.intervals) {
+            if (interval.role == Interval.Role.GONE) {
+                continue;
+            }
+            slots.put(interval, walk);
+            Integer alphaIndex = index.get(interval.alpha);
+            Integer omegaIndex = index.get(interval.omega);
+            if (alphaIndex == null || omegaIndex == null) {
+                throw new RuntimeException("Interval joint is not in the fabric: " + interval);
+            }
+            intervals[walk] = interval;
+            spans[walk] = interval.span;
+            roles[walk] = interval.role;
+            alpha[walk] = alphaIndex;
+            omega[walk] = omegaIndex;
+            walk++;
+        }
+        Arrays.fill(intervals, intervalCount, intervals.length, null);
+        Arrays.fill(spans, intervalCount, spans.length, null);
+        gather();
+    }
+
+    /**
+     * Copy the state of the joint and interval objects into the arrays.
+     */
+
+    public void gather() {
+        for (int walk = 0; walk < jointCount; walk++) {
+            Joint joint = joints[walk];
+            switch (joint.who.side) {
+                case ELIMINATED:
+                case TEMPORARY:
+                    free[walk] = false;
+                    break;
+                default:
+                    free[walk] = true;
+                    break;
+            }
+            put(joint.location, location, walk);
+            put(joint.velocity, velocity, walk);
+            put(joint.force, force, walk);
+            put(joint.absorbVelocity, absorb, walk);
+            put(joint.gravity, gravity, walk);
+            altitude[walk] = joint.altitude;
+            mass[walk] = joint.intervalMass;
+        }
+        for (int walk = 0; walk < intervalCount; walk++) {
+            Span span = spans[walk];
+            ideal[walk] = span.ideal;
+            actual[walk] = span.actual;
+            stress[walk] = span.stress;
+        }
+    }
+
+    /**
+     * Copy the state in the arrays back to the joint and interval objects.
+     */
+
+    public void scatter() {
+        for (int walk = 0; walk < jointCount; walk++) {
+            Joint joint = joints[walk];
+            get(location, walk, joint.location);
+            get(velocity, walk, joint.velocity);
+            get(force, walk, joint.force);
+            get(absorb, walk, joint.absorbVelocity);
+            joint.intervalMass = mass[walk];
+        }
+        for (int walk = 0; walk < intervalCount; walk++) {
+            Interval interval = intervals[walk];
+            Span span = spans[walk];
+            span.actual = actual[walk];
+            span.stress = stress[walk];
+            if (interval.unit == null) {
+                interval.unit = new Arrow();
+            }
+            get(unit, walk, interval.unit);
+        }
+    }
+
+    void gatherJoint(int walk) {
+        Joint joint = joints[walk];
+        put(joint.location, location, walk);
+        put(joint.velocity, velocity, walk);
+    }
+
+    void scatterJoint(int walk) {
+        Joint joint = joints[walk];
+        get(location, walk, joint.location);
+        get(velocity, walk, joint.velocity);
+    }
+
+    private static int capacity(int count) {
+        return count + count / 4 + 16;
+    }
+
+    private static void put(Arrow arrow, double[] array, int index) {
+        array[index * 3] = arrow.x;
+        array[index * 3 + 1] = arrow.y;
+        array[index * 3 + 2] = arrow.z;
+    }
+
+    private static void get(double[] array, int index, Arrow arrow) {
+        arrow.x = array[index * 3];
+        arrow.y = array[index * 3 + 1];
+        arrow.z = array[index * 3 + 2];
+    }
+}
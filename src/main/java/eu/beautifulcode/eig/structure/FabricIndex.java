@@ -0,0 +1,245 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which intervals, faces, tetras and vertebras touch each joint, so that the fabric can answer neighborhood
+ * questions without scanning everything.  Intervals are indexed as soon as they are added to the
+ * modifications, like the fabric's own queries always did, while the others only count once they
+ * are applied.
+ *
+ * The fabric keeps this up to date as it goes, but when it notices that its lists were changed
+ * behind its back (factories and the blob reader fill them directly) it simply rebuilds.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+class FabricIndex {
+    private Map<Joint, List<Interval>> intervalMap = new IdentityHashMap<Joint, List<Interval>>();
+    private Map<Joint, List<Face>> faceMap = new IdentityHashMap<Joint, List<Face>>();
+    private Map<Joint, List<Tetra>> tetraMap = new IdentityHashMap<Joint, List<Tetra>>();
+    private Map<Joint, List<Vertebra>> vertebraMap = new IdentityHashMap<Joint, List<Vertebra>>();
+    private int intervalCount, faceCount, tetraCount, vertebraCount;
+    private boolean valid;
+
+    boolean isStale(int intervalCount, int faceCount, int tetraCount, int vertebraCount) {
+        return
+                !valid ||
+                this.intervalCount != intervalCount ||
+                this.faceCount != faceCount ||
+                this.tetraCount != tetraCount ||
+                this.vertebraCount != vertebraCount;
+    }
+
+    void rebuild(List<Interval> intervals, List<Interval> addedIntervals, List<Face> faces, List<Tetra> tetras, List<Vertebra> vertebras) {
+        intervalMap.clear();
+        faceMap.clear();
+        tetraMap.clear();
+        vertebraMap.clear();
+        intervalCount = faceCount = tetraCount = vertebraCount = 0;
+        valid = true;
+        for (Interval interval : intervals) {
+            add(interval);
+        }
+        for (Interval interval : addedIntervals) {
+            add(interval);
+        }
+        for (Face face : faces) {
+            add(face);
+        }
+        for (Tetra tetra : tetras) {
+            add(tetra);
+        }
+        for (Vertebra vertebra : vertebras) {
+            add(vertebra);
+        }
+    }
+
+    List<Interval> getIntervals(Joint joint) {
+        return get(intervalMap, joint);
+    }
+
+    List<Face> getFaces(Joint joint) {
+        return get(faceMap, joint);
+    }
+
+    List<Tetra> getTetras(Joint joint) {
+        return get(tetraMap, joint);
+    }
+
+    List<Vertebra> getVertebras(Joint joint) {
+        return get(vertebraMap, joint);
+    }
+
+    /**
+     * The intervals of whichever joint has fewer, which must include every interval between the two.
+     *
+     * @param jointA one end
+     * @param jointB other end
+     * @return a list to be filtered further
+     */
+
+    List<Interval> getIntervals(Joint jointA, Joint jointB) {
+        List<Interval> listA = getIntervals(jointA);
+        List<Interval> listB = getIntervals(jointB);
+        return listA.size() < listB.size() ? listA : listB;
+    }
+
+    void add(Interval interval) {
+        if (!valid) {
+            return;
+        }
+        intervalCount++;
+        put(intervalMap, interval.alpha, interval);
+        if (interval.omega != interval.alpha) {
+            put(intervalMap, interval.omega, interval);
+        }
+    }
+
+    boolean remove(Interval interval) {
+        if (!valid) {
+            return false;
+        }
+        boolean found = take(intervalMap, interval.alpha, interval);
+        found |= take(intervalMap, interval.omega, interval);
+        if (found) {
+            intervalCount--;
+        }
+        return found;
+    }
+
+    void add(Face face) {
+        if (!valid) {
+            return;
+        }
+        faceCount++;
+        for (Joint joint : face.joints) {
+            put(faceMap, joint, face);
+        }
+    }
+
+    boolean remove(Face face) {
+        if (!valid) {
+            return false;
+        }
+        boolean found = false;
+        for (Joint joint : face.joints) {
+            found |= take(faceMap, joint, face);
+        }
+        if (found) {
+            faceCount--;
+        }
+        return found;
+    }
+
+    void add(Tetra tetra) {
+        if (!valid) {
+            return;
+        }
+        tetraCount++;
+        for (Joint joint : tetra.joints) {
+            put(tetraMap, joint, tetra);
+        }
+    }
+
+    boolean remove(Tetra tetra) {
+        if (!valid) {
+            return false;
+        }
+        boolean found = false;
+        for (Joint joint : tetra.joints) {
+            found |= take(tetraMap, joint, tetra);
+        }
+        if (found) {
+            tetraCount--;
+        }
+        return found;
+    }
+
+    void add(Vertebra vertebra) {
+        if (!valid) {
+            return;
+        }
+        vertebraCount++;
+        for (Joint joint : vertebra.joints) {
+            put(vertebraMap, joint, vertebra);
+        }
+    }
+
+    boolean remove(Vertebra vertebra) {
+        if (!valid) {
+            return false;
+        }
+        boolean found = false;
+        for (Joint joint : vertebra.joints) {
+            found |= take(vertebraMap, joint, vertebra);
+        }
+        if (found) {
+            vertebraCount--;
+        }
+        return found;
+    }
+
+    // === the rest is private
+
+    private static <T> List<T> get(Map<Joint, List<T>> map, Joint joint) {
+        List<T> list = map.get(joint);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return list;
+    }
+
+    private static <T> void put(Map<Joint, List<T>> map, Joint joint, T t) {
+        if (joint == null) {
+            return;
+        }
+        List<T> list = map.get(joint);
+        if (list == null) {
+            list = new ArrayList<T>(6);
+            map.put(joint, list);
+        }
+        else if (containsIdentical(list, t)) {
+            return;
+        }
+        list.add(t);
+    }
+
+    private static <T> boolean take(Map<Joint, List<T>> map, Joint joint, T t) {
+        if (joint == null) {
+            return false;
+        }
+        List<T> list = map.get(joint);
+        if (list == null) {
+            return false;
+        }
+        for (int walk = 0; walk < list.size(); walk++) {
+            if (list.get(walk) == t) {
+                list.remove(walk);
+                if (list.isEmpty()) {
+                    map.remove(joint);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> boolean containsIdentical(List<T> list, T t) {
+        for (T member : list) {
+            if (member == t) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+
+/**
+ * Where the time goes.  A fabric with metrics attached records a sample every time its
+ * transformations are executed, which is once per batch of as many physics ticks as the physics has
+ * iterations: how long each pass of the physics took, how long the other transformations and the
+ * application of their modifications took, how many spans were changing, how many elements were
+ * added and removed, and the kinetic energy of the joints at the end.  The times per tick are the
+ * times of the batch divided by the number of ticks in it.
+ *
+ * The simulation thread fills in the numbers while another thread, typically the display, polls
+ * the last complete sample.  Optionally the averages are logged every so many samples.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class FabricMetrics {
+    private static final Logger LOG = Logger.getLogger(FabricMetrics.class);
+
+    public enum Pass {
+        PHYSICS("physics"),
+        INTERVALS("intervals"),
+        JOINTS("joints"),
+        MOVE("move"),
+        TRANSFORMATIONS("transformations"),
+        MODS("mods");
+
+        private final String label;
+
+        Pass(String label) {
+            this.label = label;
+        }
+
+        public String toString() {
+            return label;
+        }
+    }
+
+    private long[] nanos = new long[Pass.values().length];
+    private int iterations;
+    private int activeSpans;
+    private int added, removed;
+    private double kineticEnergy;
+    private volatile long samples;
+    private volatile Sample last = new Sample(0, 0, new long[Pass.values().length], 0, 0, 0, 0);
+    private int logInterval;
+    private long[] windowNanos = new long[Pass.values().length];
+    private int windowSamples, windowIterations, windowAdded, windowRemoved;
+
+    /**
+     * What happened during one execution of the transformations, a batch which may have included
+     * any number of physics iterations, each of them one tick.
+     */
+
+    public static class Sample {
+        private final long age;
+        private final int iterations;
+        private final long[] nanos;
+        private final int activeSpans;
+        private final int added, removed;
+        private final double kineticEnergy;
+
+        private Sample(long age, int iterations, long[] nanos, int activeSpans, int added, int removed, double kineticEnergy) {
+            this.age = age;
+            this.iterations = iterations;
+            this.nanos = nanos;
+            this.activeSpans = activeSpans;
+            this.added = added;
+            this.removed = removed;
+            this.kineticEnergy = kineticEnergy;
+        }
+
+        public long getAge() {
+            return age;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        /**
+         * The physics pass includes the intervals, joints and move passes, which are also given
+         * separately.
+         *
+         * @param pass which one
+         * @return wall time in milliseconds
+         */
+
+        public double getMillis(Pass pass) {
+            return nanos[pass.ordinal()] / 1e6;
+        }
+
+        /**
+         * The time of the batch spread over its ticks, or the whole time if there were none.
+         *
+         * @param pass which one
+         * @return wall time in milliseconds per physics tick
+         */
+
+        public double getMillisPerTick(Pass pass) {
+            return getMillis(pass) / Math.max(1, iterations);
+        }
+
+        /**
+         * @return how many spans were changing in the last iteration
+         */
+
+        public int getActiveSpans() {
+            return activeSpans;
+        }
+
+        public int getAdded() {
+            return added;
+        }
+
+        public int getRemoved() {
+            return removed;
+        }
+
+        /**
+         * @return half of mass times speed squared, summed over the moving joints
+         */
+
+        public double getKineticEnergy() {
+            return kineticEnergy;
+        }
+    }
+
+    /**
+     * Log the average of every so many samples at info level.
+     *
+     * @param logInterval how many samples, or zero to not log at all
+     */
+
+    public void setLogInterval(int logInterval) {
+        this.logInterval = logInterval;
+    }
+
+    /**
+     * @return how many samples there have been, so pollers can tell when there is a new one
+     */
+
+    public long getSampleCount() {
+        return samples;
+    }
+
+    public Sample getLast() {
+        return last;
+    }
+
+    static long start(FabricMetrics metrics) {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Charge the time since the last lap to a pass.
+     *
+     * @param metrics where to record, or null
+     * @param pass what was being done
+     * @param time when it started
+     * @return the time now, to start the next pass
+     */
+
+    static long lap(FabricMetrics metrics, Pass pass, long time) {
+        if (metrics == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        metrics.nanos[pass.ordinal()] += now - time;
+        return now;
+    }
+
+    static void iterated(FabricMetrics metrics, int activeSpans, double kineticEnergy) {
+        if (metrics != null) {
+            metrics.iterations++;
+            metrics.activeSpans = activeSpans;
+            metrics.kineticEnergy = kineticEnergy;
+        }
+    }
+
+    static void modified(FabricMetrics metrics, int added, int removed) {
+        if (metrics != null) {
+            metrics.added += added;
+            metrics.removed += removed;
+        }
+    }
+
+    void end(long age) {
+        Sample sample = new Sample(age, iterations, nanos.clone(), activeSpans, added, removed, kineticEnergy);
+        last = sample;
+        samples++;
+        if (logInterval > 0) {
+            for (int walk = 0; walk < nanos.length; walk++) {
+                windowNanos[walk] += nanos[walk];
+            }
+            windowIterations += iterations;
+            windowAdded += added;
+            windowRemoved += removed;
+            if (++windowSamples >= logInterval) {
+                log(sample);
+            }
+        }
+        Arrays.fill(nanos, 0);
+        iterations = activeSpans = added = removed = 0;
+    }
+
+    // === the rest is private
+
+    private void log(Sample sample) {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("age %d, %d ticks in %d batches, ms per tick:", sample.getAge(), windowIterations, windowSamples));
+        for (Pass pass : Pass.values()) {
+            out.append(String.format(" %s %.3f", pass, windowNanos[pass.ordinal()] / 1e6 / Math.max(1, windowIterations)));
+        }
+        out.append(String.format(
+                ", %d active spans, %d added, %d removed, kinetic energy %.3g",
+                sample.getActiveSpans(), windowAdded, windowRemoved, sample.getKineticEnergy()
+        ));
+        LOG.info(out.toString());
+        Arrays.fill(windowNanos, 0);
+        windowSamples = windowIterations = windowAdded = windowRemoved = 0;
+    }
+}
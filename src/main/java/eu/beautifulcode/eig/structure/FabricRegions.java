@@ -0,0 +1,503 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The packed joints divided into regions which can fall asleep separately, so that the physics only
+ * has to work on the parts of a fabric which are still moving.  Every vertebra is a region of its own,
+ * and whatever joints are left over are grouped by walking along the intervals.
+ *
+ * The physics sweeps the active lists kept here instead of the whole arrays.  An interval is active
+ * when either of its joints is awake, and the sleeping joints it touches are on the boundary, where
+ * their stress is watched.  When it drifts too far from where it was when the region fell asleep,
+ * the region wakes up again.
+ *
+ * Vertebra regions remember whether they were asleep when the fabric is packed again, unless the
+ * intervals touching them changed.  The stresses and masses they remember are moved along with the
+ * intervals and joints, which may well land in other places in the arrays.  The leftover groups
+ * always start out awake.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+class FabricRegions {
+    static final int GROUP_SIZE = 100;
+    private boolean enabled;
+    private boolean dirty = true;
+    private long disturbance = -1;
+    private List<Region> regions = new ArrayList<Region>();
+    private Map<Vertebra, Region> vertebraRegions = new IdentityHashMap<Vertebra, Region>();
+    private Map<Interval, Integer> packedIntervals = new IdentityHashMap<Interval, Integer>();
+    private Map<Joint, Integer> packedJoints = new IdentityHashMap<Joint, Integer>();
+    private boolean[] touched = new boolean[0];
+    private boolean sparse;
+    int[] jointRegion = new int[0];
+    double[] sleepMass = new double[0];
+    double[] sleepStress = new double[0];
+    boolean[] regionActive = new boolean[0];
+    double[] regionSpeedSquared = new double[0];
+    int activeJointCount;
+    int touchedJointCount;
+    int[] touchedJoints = new int[0];
+    int activeIntervalCount;
+    int[] activeIntervals = new int[0];
+    int boundaryIntervalCount;
+    int[] boundaryIntervals = new int[0];
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        vertebraRegions.clear();
+        packedIntervals.clear();
+        packedJoints.clear();
+        regions.clear();
+        dirty = true;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    boolean isAnyAsleep() {
+        return sparse;
+    }
+
+    /**
+     * Which interval to visit next.  While everything is awake this is just the counter, so that the
+     * sweep goes straight through the arrays.
+     *
+     * @param walk counting up to activeIntervalCount
+     * @return the index of the interval in the arrays
+     */
+
+    int interval(int walk) {
+        return sparse ? activeIntervals[walk] : walk;
+    }
+
+    /**
+     * Which joint to visit next, counting up to activeJointCount for the awake ones, or up to
+     * touchedJointCount to include the sleeping joints on the border.
+     *
+     * @param walk the counter
+     * @return the index of the joint in the arrays
+     */
+
+    int joint(int walk) {
+        return sparse ? touchedJoints[walk] : walk;
+    }
+
+    void track(int joint, double mass, double speedSquared) {
+        sleepMass[joint] = mass;
+        int region = jointRegion[joint];
+        if (speedSquared > regionSpeedSquared[region]) {
+            regionSpeedSquared[region] = speedSquared;
+        }
+    }
+
+    int getRegionCount() {
+        return regions.size();
+    }
+
+    int getSleepingCount() {
+        int count = 0;
+        for (Region region : regions) {
+            if (region.asleep) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Divide freshly packed arrays into regions, carrying over the sleep of vertebras whose
+     * surroundings did not change.
+     *
+     * @param fabric where the vertebras come from
+     * @param a the arrays just packed
+     */
+
+    void assign(Fabric fabric, FabricArrays a) {
+        dirty = true;
+        for (int walk = activeJointCount; walk < touchedJointCount; walk++) {
+            touched[touchedJoints[walk]] = false;
+        }
+        touchedJointCount = activeJointCount = 0;
+        if (jointRegion.length < a.joints.length) {
+            jointRegion = new int[a.joints.length];
+            touchedJoints = new int[a.joints.length];
+            touched = new boolean[a.joints.length];
+        }
+        if (activeIntervals.length < a.intervals.length) {
+            activeIntervals = new int[a.intervals.length];
+            boundaryIntervals = new int[a.intervals.length];
+        }
+        carrySleepValues(a);
+        regions.clear();
+        if (!enabled) {
+            Arrays.fill(jointRegion, 0, a.jointCount, 0);
+            regions.add(new Region());
+            allocateRegions();
+            return;
+        }
+        Arrays.fill(jointRegion, 0, a.jointCount, -1);
+        Map<Joint, Integer> index = new IdentityHashMap<Joint, Integer>(a.jointCount * 2);
+        for (int walk = 0; walk < a.jointCount; walk++) {
+            index.put(a.joints[walk], walk);
+        }
+        Map<Vertebra, Region> previous = vertebraRegions;
+        vertebraRegions = new IdentityHashMap<Vertebra, Region>();
+        for (Vertebra vertebra : fabric.vertebras) {
+            Region region = previous.get(vertebra);
+            if (region == null) {
+                region = new Region();
+            }
+            region.index = regions.size();
+            regions.add(region);
+            vertebraRegions.put(vertebra, region);
+            for (Joint joint : vertebra.joints) {
+                Integer walk = index.get(joint);
+                if (walk != null && jointRegion[walk] < 0) {
+                    jointRegion[walk] = region.index;
+                }
+            }
+        }
+        groupLeftovers(a);
+        allocateRegions();
+        Map<Interval, Integer> packed = new IdentityHashMap<Interval, Integer>(a.intervalCount * 2);
+        for (int walk = 0; walk < a.intervalCount; walk++) {
+            Interval interval = a.intervals[walk];
+            packed.put(interval, walk);
+            if (!packedIntervals.containsKey(interval)) {
+                wake(jointRegion[a.alpha[walk]]);
+                wake(jointRegion[a.omega[walk]]);
+            }
+        }
+        for (Interval interval : packedIntervals.keySet()) {
+            if (!packed.containsKey(interval)) {
+                Integer alpha = index.get(interval.alpha);
+                Integer omega = index.get(interval.omega);
+                if (alpha != null) {
+                    wakeJoint(alpha);
+                }
+                if (omega != null) {
+                    wakeJoint(omega);
+                }
+            }
+        }
+        packedIntervals = packed;
+        packedJoints = index;
+    }
+
+    /**
+     * A transformation ran or the fabric was woken, so whatever it touched in a sleeping region must be
+     * noticed before the arrays are gathered again, because after that there is nothing to compare with.
+     *
+     * @param fabric the subject
+     * @param a the arrays as they were after the last transform
+     */
+
+    void checkDisturbance(Fabric fabric, FabricArrays a) {
+        if (disturbance == fabric.disturbance) {
+            return;
+        }
+        disturbance = fabric.disturbance;
+        if (!enabled || a.getFabric() != fabric || !hasSleeper()) {
+            return;
+        }
+        for (int walk = 0; walk < a.intervalCount; walk++) {
+            Span span = a.spans[walk];
+            if (span.isActive() || span.ideal != a.ideal[walk]) {
+                wakeJoint(a.alpha[walk]);
+                wakeJoint(a.omega[walk]);
+            }
+        }
+        for (int walk = 0; walk < a.jointCount; walk++) {
+            if (!regions.get(jointRegion[walk]).asleep) {
+                continue;
+            }
+            Joint joint = a.joints[walk];
+            int j = walk * 3;
+            if (joint.location.x != a.location[j] || joint.location.y != a.location[j + 1] || joint.location.z != a.location[j + 2]) {
+                wakeJoint(walk);
+            }
+        }
+    }
+
+    /**
+     * The span of an interval is ramping, so the regions at both of its ends have to stay awake.
+     *
+     * @param a the packed fabric
+     * @param interval which one
+     */
+
+    void spanActive(FabricArrays a, int interval) {
+        int alphaRegion = jointRegion[a.alpha[interval]];
+        int omegaRegion = jointRegion[a.omega[interval]];
+        regionActive[alphaRegion] = true;
+        regionActive[omegaRegion] = true;
+        if (enabled) {
+            wake(alphaRegion);
+            wake(omegaRegion);
+        }
+    }
+
+    void wakeAll() {
+        for (Region region : regions) {
+            region.asleep = false;
+            region.calmTicks = 0;
+        }
+        dirty = true;
+    }
+
+    /**
+     * Rebuild the active lists if any region fell asleep or woke up since the last time.
+     *
+     * @param a the packed fabric
+     */
+
+    void refresh(FabricArrays a) {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        for (int walk = activeJointCount; walk < touchedJointCount; walk++) {
+            touched[touchedJoints[walk]] = false;
+        }
+        activeJointCount = 0;
+        for (int walk = 0; walk < a.jointCount; walk++) {
+            if (!isAsleep(walk)) {
+                touchedJoints[activeJointCount++] = walk;
+            }
+        }
+        touchedJointCount = activeJointCount;
+        activeIntervalCount = 0;
+        boundaryIntervalCount = 0;
+        for (int walk = 0; walk < a.intervalCount; walk++) {
+            boolean alphaAsleep = isAsleep(a.alpha[walk]);
+            boolean omegaAsleep = isAsleep(a.omega[walk]);
+            if (alphaAsleep && omegaAsleep) {
+                continue;
+            }
+            activeIntervals[activeIntervalCount++] = walk;
+            if (alphaAsleep || omegaAsleep) {
+                boundaryIntervals[boundaryIntervalCount++] = walk;
+                touch(alphaAsleep ? a.alpha[walk] : a.omega[walk]);
+            }
+        }
+        sparse = activeJointCount < a.jointCount;
+    }
+
+    /**
+     * After a tick, count the calm ticks of each awake region and put it to sleep when it has been calm
+     * long enough.  Its joints stop dead and the stresses along its border are remembered.
+     *
+     * @param a the packed fabric
+     * @param settleSpeed below which a joint counts as calm
+     */
+
+    void monitor(FabricArrays a, double settleSpeed) {
+        if (!enabled) {
+            return;
+        }
+        double limit = settleSpeed * settleSpeed;
+        boolean fellAsleep = false;
+        for (Region region : regions) {
+            if (region.asleep) {
+                continue;
+            }
+            if (settleSpeed <= 0 || regionActive[region.index] || regionSpeedSquared[region.index] > limit) {
+                region.calmTicks = 0;
+            }
+            else if (++region.calmTicks >= Physics.SETTLE_TICKS) {
+                region.asleep = region.fellAsleep = true;
+                fellAsleep = true;
+            }
+            regionActive[region.index] = false;
+            regionSpeedSquared[region.index] = 0;
+        }
+        if (!fellAsleep) {
+            return;
+        }
+        for (int walk = 0; walk < a.jointCount; walk++) {
+            if (regions.get(jointRegion[walk]).fellAsleep) {
+                int j = walk * 3;
+                a.velocity[j] = a.velocity[j + 1] = a.velocity[j + 2] = 0;
+            }
+        }
+        for (int walk = 0; walk < a.intervalCount; walk++) {
+            if (regions.get(jointRegion[a.alpha[walk]]).fellAsleep || regions.get(jointRegion[a.omega[walk]]).fellAsleep) {
+                sleepStress[walk] = a.stress[walk];
+            }
+        }
+        for (Region region : regions) {
+            region.fellAsleep = false;
+        }
+        dirty = true;
+    }
+
+    /**
+     * Wake the sleeping regions on the border whose stress changed enough to give one of their
+     * joints more than the settle speed in a single tick.
+     *
+     * @param a the packed fabric
+     * @param settleSpeed the speed a sleeping joint may be pushed to
+     */
+
+    void checkBoundary(FabricArrays a, double settleSpeed) {
+        for (int walk = 0; walk < boundaryIntervalCount; walk++) {
+            int interval = boundaryIntervals[walk];
+            int sleeper = isAsleep(a.alpha[interval]) ? a.alpha[interval] : a.omega[interval];
+            double push = Math.abs(a.stress[interval] - sleepStress[interval]) / 2 / sleepMass[sleeper];
+            if (!(push <= settleSpeed)) {
+                wakeJoint(sleeper);
+            }
+        }
+    }
+
+    /**
+     * The sleeping joints on the border received force, mass and velocity from the active intervals,
+     * which they must forget because they are not going to move.
+     *
+     * @param a the packed fabric
+     */
+
+    void clearBoundary(FabricArrays a) {
+        for (int walk = activeJointCount; walk < touchedJointCount; walk++) {
+            int joint = touchedJoints[walk];
+            int j = joint * 3;
+            a.force[j] = a.force[j + 1] = a.force[j + 2] = 0;
+            a.absorb[j] = a.absorb[j + 1] = a.absorb[j + 2] = 0;
+            a.velocity[j] = a.velocity[j + 1] = a.velocity[j + 2] = 0;
+            a.mass[joint] = Physics.AMBIENT_JOINT_MASS;
+        }
+    }
+
+    // === the rest is private
+
+    /**
+     * The remembered stresses and masses belong to intervals and joints rather than to places in the
+     * arrays, so they are looked up by identity and put where those ended up in the fresh packing.
+     *
+     * @param a the arrays just packed
+     */
+
+    private void carrySleepValues(FabricArrays a) {
+        double[] stress = new double[Math.max(sleepStress.length, a.intervals.length)];
+        if (!packedIntervals.isEmpty()) {
+            for (int walk = 0; walk < a.intervalCount; walk++) {
+                Integer slot = packedIntervals.get(a.intervals[walk]);
+                if (slot != null) {
+                    stress[walk] = sleepStress[slot];
+                }
+            }
+        }
+        double[] mass = new double[Math.max(sleepMass.length, a.joints.length)];
+        if (!packedJoints.isEmpty()) {
+            for (int walk = 0; walk < a.jointCount; walk++) {
+                Integer slot = packedJoints.get(a.joints[walk]);
+                if (slot != null) {
+                    mass[walk] = sleepMass[slot];
+                }
+            }
+        }
+        sleepStress = stress;
+        sleepMass = mass;
+    }
+
+    private void groupLeftovers(FabricArrays a) {
+        int[] start = new int[a.jointCount + 1];
+        for (int walk = 0; walk < a.intervalCount; walk++) {
+            start[a.alpha[walk] + 1]++;
+            start[a.omega[walk] + 1]++;
+        }
+        for (int walk = 0; walk < a.jointCount; walk++) {
+            start[walk + 1] += start[walk];
+        }
+        int[] fill = Arrays.copyOf(start, a.jointCount);
+        int[] neighbors = new int[a.intervalCount * 2];
+        for (int walk = 0; walk < a.intervalCount; walk++) {
+            neighbors[fill[a.alpha[walk]]++] = a.omega[walk];
+            neighbors[fill[a.omega[walk]]++] = a.alpha[walk];
+        }
+        int[] queue = new int[a.jointCount];
+        for (int seed = 0; seed < a.jointCount; seed++) {
+            if (jointRegion[seed] >= 0) {
+                continue;
+            }
+            Region region = new Region();
+            region.index = regions.size();
+            regions.add(region);
+            int head = 0, tail = 0, size = 0;
+            queue[tail++] = seed;
+            jointRegion[seed] = region.index;
+            while (head < tail && size < GROUP_SIZE) {
+                int joint = queue[head++];
+                size++;
+                for (int walk = start[joint]; walk < start[joint + 1]; walk++) {
+                    int neighbor = neighbors[walk];
+                    if (jointRegion[neighbor] < 0 && size + tail - head < GROUP_SIZE) {
+                        jointRegion[neighbor] = region.index;
+                        queue[tail++] = neighbor;
+                    }
+                }
+            }
+        }
+    }
+
+    private void allocateRegions() {
+        if (regionActive.length < regions.size()) {
+            regionActive = new boolean[regions.size() * 2];
+            regionSpeedSquared = new double[regions.size() * 2];
+        }
+        Arrays.fill(regionActive, false);
+        Arrays.fill(regionSpeedSquared, 0);
+    }
+
+    private boolean hasSleeper() {
+        for (Region region : regions) {
+            if (region.asleep) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAsleep(int joint) {
+        return regions.get(jointRegion[joint]).asleep;
+    }
+
+    private void touch(int joint) {
+        if (!touched[joint]) {
+            touched[joint] = true;
+            touchedJoints[touchedJointCount++] = joint;
+        }
+    }
+
+    private void wakeJoint(int joint) {
+        wake(jointRegion[joint]);
+    }
+
+    private void wake(int region) {
+        Region r = regions.get(region);
+        if (r.asleep) {
+            r.asleep = false;
+            dirty = true;
+        }
+        r.calmTicks = 0;
+    }
+
+    private static class Region {
+        int index;
+        boolean asleep;
+        boolean fellAsleep;
+        int calmTicks;
+    }
+}
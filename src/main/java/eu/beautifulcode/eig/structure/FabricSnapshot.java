@@ -0,0 +1,250 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import eu.beautifulcode.eig.math.Arrow;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable picture of a fabric at one moment, in primitive arrays.  Once created it is never
+ * touched again, so a painter on one thread can read it while the physics on another thread
+ * carries on changing the fabric itself.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class FabricSnapshot {
+    private final long age;
+    private final int jointCount;
+    private final double[] location;
+    private final int intervalCount;
+    private final Interval.Role[] roles;
+    private final int[] alpha;
+    private final int[] omega;
+    private final double[] ideal;
+    private final double[] actual;
+    private final double[] stress;
+    private final int triangleCount;
+    private final int[] triangle;
+    private MidpointGrid midpointGrid;
+
+    private FabricSnapshot(long age, int jointCount, int intervalCount, int triangleCount) {
+        this.age = age;
+        this.jointCount = jointCount;
+        this.location = new double[jointCount * 3];
+        this.intervalCount = intervalCount;
+        this.roles = new Interval.Role[intervalCount];
+        this.alpha = new int[intervalCount];
+        this.omega = new int[intervalCount];
+        this.ideal = new double[intervalCount];
+        this.actual = new double[intervalCount];
+        this.stress = new double[intervalCount];
+        this.triangleCount = triangleCount;
+        this.triangle = new int[triangleCount * 3];
+    }
+
+    /**
+     * Take the picture from the joint and interval objects.  Intervals which are gone are left out.
+     *
+     * @param fabric the subject
+     * @return a new snapshot
+     */
+
+    public static FabricSnapshot create(Fabric fabric) {
+        List<Joint> joints = fabric.joints;
+        int intervalCount = 0;
+        for (Interval interval : fabric.intervals) {
+            if (interval.role != Interval.Role.GONE) {
+                intervalCount++;
+            }
+        }
+        int triangleCount = 0;
+        for (Face face : fabric.faces) {
+            if (face.joints.size() == 3) {
+                triangleCount++;
+            }
+        }
+        FabricSnapshot snapshot = new FabricSnapshot(fabric.age, joints.size(), intervalCount, triangleCount);
+        Map<Joint, Integer> index = new IdentityHashMap<Joint, Integer>(joints.size() * 2);
+        for (int walk = 0; walk < joints.size(); walk++) {
+            Joint joint = joints.get(walk);
+            index.put(joint, walk);
+            snapshot.location[walk * 3] = joint.location.x;
+            snapshot.location[walk * 3 + 1] = joint.location.y;
+            snapshot.location[walk * 3 + 2] = joint.location.z;
+        }
+        int walk = 0;
+        for (Interval interval : fabric.intervals) {
+            if (interval.role == Interval.Role.GONE) {
+                continue;
+            }
+            snapshot.roles[walk] = interval.role;
+            snapshot.alpha[walk] = index.get(interval.alpha);
+            snapshot.omega[walk] = index.get(interval.omega);
+            snapshot.ideal[walk] = interval.span.ideal;
+            snapshot.actual[walk] = interval.span.actual;
+            snapshot.stress[walk] = interval.span.stress;
+            walk++;
+        }
+        walk = 0;
+        for (Face face : fabric.faces) {
+            if (face.joints.size() != 3) {
+                continue;
+            }
+            boolean right = face.order == Face.Order.RIGHT_HANDED;
+            for (int corner = 0; corner < 3; corner++) {
+                snapshot.triangle[walk * 3 + corner] = index.get(face.joints.get(right ? 2 - corner : corner));
+            }
+            walk++;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Take the picture and sort the midpoints of its intervals into a grid straight away, so that
+     * whoever does this pays for the grid instead of whoever paints the snapshot.
+     *
+     * @param fabric the subject
+     * @param cellSize of the grid
+     * @return a new snapshot with its grid
+     */
+
+    public static FabricSnapshot create(Fabric fabric, double cellSize) {
+        FabricSnapshot snapshot = create(fabric);
+        snapshot.midpointGrid = new MidpointGrid(snapshot, cellSize);
+        return snapshot;
+    }
+
+    /**
+     * The grid is built along with the snapshot and never changed afterwards, so it can be asked
+     * from any thread which has the snapshot.
+     *
+     * @return the grid of the midpoints, or null if the snapshot was created without one
+     */
+
+    public MidpointGrid getMidpointGrid() {
+        return midpointGrid;
+    }
+
+    public long getAge() {
+        return age;
+    }
+
+    public int getJointCount() {
+        return jointCount;
+    }
+
+    public void getLocation(int joint, Arrow location) {
+        location.set(this.location[joint * 3], this.location[joint * 3 + 1], this.location[joint * 3 + 2]);
+    }
+
+    public double getX(int joint) {
+        return location[joint * 3];
+    }
+
+    public double getY(int joint) {
+        return location[joint * 3 + 1];
+    }
+
+    public double getZ(int joint) {
+        return location[joint * 3 + 2];
+    }
+
+    public int getIntervalCount() {
+        return intervalCount;
+    }
+
+    public Interval.Role getRole(int interval) {
+        return roles[interval];
+    }
+
+    public int getAlpha(int interval) {
+        return alpha[interval];
+    }
+
+    public int getOmega(int interval) {
+        return omega[interval];
+    }
+
+    /**
+     * @return how many of the faces are triangles, which are the only ones kept
+     */
+
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * A corner of a triangle, with the corners of right handed faces turned around so that they
+     * all go the same way.
+     *
+     * @param triangle which one
+     * @param corner 0, 1 or 2
+     * @return the index of the joint
+     */
+
+    public int getTriangleJoint(int triangle, int corner) {
+        return this.triangle[triangle * 3 + corner];
+    }
+
+    public double getIdeal(int interval) {
+        return ideal[interval];
+    }
+
+    public double getActual(int interval) {
+        return actual[interval];
+    }
+
+    public double getStress(int interval) {
+        return stress[interval];
+    }
+
+    public double getStress(int interval, Span.StressRange range) {
+        return Span.getStress(stress[interval], range);
+    }
+
+    /**
+     * The midpoint of an interval
+     *
+     * @param interval which one
+     * @param location where to put the answer
+     */
+
+    public void getMidpoint(int interval, Arrow location) {
+        int a = alpha[interval] * 3;
+        int o = omega[interval] * 3;
+        location.set(
+                (this.location[a] + this.location[o]) / 2,
+                (this.location[a + 1] + this.location[o + 1]) / 2,
+                (this.location[a + 2] + this.location[o + 2]) / 2
+        );
+    }
+
+    /**
+     * The unit vector pointing from alpha to omega of an interval
+     *
+     * @param interval which one
+     * @param unit where to put the answer
+     * @return the length of the interval
+     */
+
+    public double getUnit(int interval, Arrow unit) {
+        int a = alpha[interval] * 3;
+        int o = omega[interval] * 3;
+        unit.set(this.location[o] - this.location[a], this.location[o + 1] - this.location[a + 1], this.location[o + 2] - this.location[a + 2]);
+        double span = unit.span();
+        if (span > 0.001) {
+            unit.scale(1 / span);
+        }
+        else {
+            unit.set(0, 0, 1);
+        }
+        return span;
+    }
+}
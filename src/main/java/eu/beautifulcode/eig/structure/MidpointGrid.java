@@ -0,0 +1,220 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import eu.beautifulcode.eig.math.Arrow;
+
+import java.util.Arrays;
+
+/**
+ * The midpoints of the intervals in a snapshot sorted into cubic cells, so that painters can ask
+ * for only the intervals near the eye or inside the view instead of looking at every one.
+ *
+ * Each grid is built once, for one snapshot, in a single pass over its intervals, and is never
+ * changed afterwards, so it can be asked from any thread.  The cells are found through a table of
+ * primitive keys and their members are laid out one cell after the other in a single array, so
+ * building one costs a few arrays rather than an object per cell.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class MidpointGrid {
+    private final double cellSize;
+    private final int intervalCount;
+    private final double[] midpoint;
+    private final int[] members;
+    private int cellCount;
+    private int[] cellX, cellY, cellZ;
+    private int[] cellStart;
+    private long[] tableKey;
+    private int[] tableCell;
+
+    /**
+     * Sort the midpoints of a snapshot into cells.
+     *
+     * @param snapshot of the fabric whose intervals are to be found
+     * @param cellSize the length of the side of a cell
+     */
+
+    public MidpointGrid(FabricSnapshot snapshot, double cellSize) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("Cell size must be positive");
+        }
+        this.cellSize = cellSize;
+        this.intervalCount = snapshot.getIntervalCount();
+        this.midpoint = new double[intervalCount * 3];
+        this.members = new int[intervalCount];
+        int capacity = 16;
+        while (capacity < intervalCount * 2) {
+            capacity *= 2;
+        }
+        tableKey = new long[capacity];
+        tableCell = new int[capacity];
+        Arrays.fill(tableCell, -1);
+        cellX = new int[16];
+        cellY = new int[16];
+        cellZ = new int[16];
+        cellStart = new int[17];
+        int[] cellOf = new int[intervalCount];
+        Arrow location = new Arrow();
+        for (int walk = 0; walk < intervalCount; walk++) {
+            snapshot.getMidpoint(walk, location);
+            midpoint[walk * 3] = location.x;
+            midpoint[walk * 3 + 1] = location.y;
+            midpoint[walk * 3 + 2] = location.z;
+            int cell = findOrAdd(cell(location.x), cell(location.y), cell(location.z));
+            cellOf[walk] = cell;
+            cellStart[cell + 1]++;
+        }
+        for (int cell = 0; cell < cellCount; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        int[] fill = new int[cellCount];
+        System.arraycopy(cellStart, 0, fill, 0, cellCount);
+        for (int walk = 0; walk < intervalCount; walk++) {
+            members[fill[cellOf[walk]]++] = walk;
+        }
+    }
+
+    public int getIntervalCount() {
+        return intervalCount;
+    }
+
+    public int getCellCount() {
+        return cellCount;
+    }
+
+    /**
+     * Visit the intervals whose midpoints are within a distance.
+     *
+     * @param center where to measure from
+     * @param radius how far away they may be
+     * @param visitor to be told about each one, in no particular order
+     */
+
+    public void visitNear(Arrow center, double radius, Visitor visitor) {
+        visitInView(center, null, Math.PI, radius, visitor);
+    }
+
+    /**
+     * Visit the intervals whose midpoints are within a distance of the eye and inside a cone around
+     * the direction it looks in, which can be made to enclose the view frustum.  Whole cells are
+     * passed over when they lie outside.
+     *
+     * @param eye where to measure from
+     * @param gaze unit vector along the middle of the cone, or null to look all around
+     * @param halfAngle of the cone, in radians
+     * @param radius how far away they may be
+     * @param visitor to be told about each one, in no particular order
+     */
+
+    public void visitInView(Arrow eye, Arrow gaze, double halfAngle, double radius, Visitor visitor) {
+        boolean allAround = gaze == null || halfAngle >= Math.PI;
+        double cosine = Math.cos(halfAngle);
+        double cellRadius = cellSize * Math.sqrt(3) / 2;
+        int minX = cell(eye.x - radius), maxX = cell(eye.x + radius);
+        int minY = cell(eye.y - radius), maxY = cell(eye.y + radius);
+        int minZ = cell(eye.z - radius), maxZ = cell(eye.z + radius);
+        double range = (double) (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1);
+        if (range > cellCount) {
+            for (int cell = 0; cell < cellCount; cell++) {
+                if (cellX[cell] >= minX && cellX[cell] <= maxX && cellY[cell] >= minY && cellY[cell] <= maxY && cellZ[cell] >= minZ && cellZ[cell] <= maxZ) {
+                    visitCell(cell, eye, gaze, allAround, halfAngle, cosine, radius, cellRadius, visitor);
+                }
+            }
+        }
+        else {
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    for (int z = minZ; z <= maxZ; z++) {
+                        int cell = find(x, y, z);
+                        if (cell >= 0) {
+                            visitCell(cell, eye, gaze, allAround, halfAngle, cosine, radius, cellRadius, visitor);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public interface Visitor {
+        void visit(int interval);
+    }
+
+    // === the rest is private
+
+    private void visitCell(int cell, Arrow eye, Arrow gaze, boolean allAround, double halfAngle, double cosine, double radius, double cellRadius, Visitor visitor) {
+        double dx = (cellX[cell] + 0.5) * cellSize - eye.x;
+        double dy = (cellY[cell] + 0.5) * cellSize - eye.y;
+        double dz = (cellZ[cell] + 0.5) * cellSize - eye.z;
+        double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (distance - cellRadius > radius) {
+            return;
+        }
+        if (!allAround && distance > cellRadius) {
+            double angle = Math.acos(Math.max(-1, Math.min(1, (dx * gaze.x + dy * gaze.y + dz * gaze.z) / distance)));
+            if (angle - Math.asin(cellRadius / distance) > halfAngle) {
+                return;
+            }
+        }
+        double quadrance = radius * radius;
+        for (int walk = cellStart[cell]; walk < cellStart[cell + 1]; walk++) {
+            int interval = members[walk];
+            double x = midpoint[interval * 3] - eye.x;
+            double y = midpoint[interval * 3 + 1] - eye.y;
+            double z = midpoint[interval * 3 + 2] - eye.z;
+            double q = x * x + y * y + z * z;
+            if (q > quadrance) {
+                continue;
+            }
+            if (!allAround && q > 0 && x * gaze.x + y * gaze.y + z * gaze.z < cosine * Math.sqrt(q)) {
+                continue;
+            }
+            visitor.visit(interval);
+        }
+    }
+
+    private int cell(double coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private static long key(int x, int y, int z) {
+        return ((x & 0x1FFFFFL) << 42) | ((y & 0x1FFFFFL) << 21) | (z & 0x1FFFFFL);
+    }
+
+    private int slot(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        int mask = tableKey.length - 1;
+        int slot = (int) (mixed >>> 32) & mask;
+        while (tableCell[slot] >= 0 && tableKey[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int find(int x, int y, int z) {
+        return tableCell[slot(key(x, y, z))];
+    }
+
+    private int findOrAdd(int x, int y, int z) {
+        long key = key(x, y, z);
+        int slot = slot(key);
+        if (tableCell[slot] < 0) {
+            if (cellCount == cellX.length) {
+                cellX = Arrays.copyOf(cellX, cellCount * 2);
+                cellY = Arrays.copyOf(cellY, cellCount * 2);
+                cellZ = Arrays.copyOf(cellZ, cellCount * 2);
+                cellStart = Arrays.copyOf(cellStart, cellCount * 2 + 1);
+            }
+            cellX[cellCount] = x;
+            cellY[cellCount] = y;
+            cellZ[cellCount] = z;
+            tableKey[slot] = key;
+            tableCell[slot] = cellCount++;
+        }
+        return tableCell[slot];
+    }
+}
@@ -17,12 +17,14 @@ import java.util.List;
 
 public class Physics implements Fabric.PhysicsTransformation {
     private Logger logger = Logger.getLogger(getClass());
-    private static final double AMBIENT_JOINT_MASS = 0.1;
-    private static final double CABLE_MASS_FACTOR = 0.05;
+    static final double AMBIENT_JOINT_MASS = 0.1;
+    static final double CABLE_MASS_FACTOR = 0.05;
     private static final int INTERVAL_MERGE_ITERATIONS = 50;
-    private Arrow gravity = new Arrow();
-    private Constraints constraints;
-    private int iterations = 1;
+    public static final double DEFAULT_SETTLE_SPEED = 1e-6;
+    static final int SETTLE_TICKS = 100;
+    Constraints constraints;
+    int iterations = 1;
+    double settleSpeed = DEFAULT_SETTLE_SPEED;
 
     public interface Value {
         String getName();
@@ -43,6 +45,18 @@ public class Physics implements Fabric.PhysicsTransformation {
         void postIterate(Fabric fabric);
     }
 
+    /**
+     * Constraints which can also work directly on the packed arrays of ArrayPhysics,
+     * so that the joint objects need not be touched during iteration.
+     */
+
+    public interface PackedConstraints extends Constraints {
+
+        void exertJointPhysics(FabricArrays arrays, int joint);
+
+        void postIterate(FabricArrays arrays);
+    }
+
     public Physics(Constraints constraints) {
         this.constraints = constraints;
     }
@@ -55,36 +69,76 @@ public class Physics implements Fabric.PhysicsTransformation {
         return iterations;
     }
 
+    /**
+     * When no joint moves faster than this for a while, and no span is changing, the fabric is
+     * considered settled and the physics stops working on it until it is woken.
+     *
+     * @param settleSpeed distance per tick, or zero to never settle
+     */
+
+    public void setSettleSpeed(double settleSpeed) {
+        this.settleSpeed = settleSpeed;
+    }
+
+    public double getSettleSpeed() {
+        return settleSpeed;
+    }
+
+    /**
+     * A settled fabric sleeps until a transformation is added, it is woken explicitly, or one of
+     * the physics values is changed.  Callers can use this to skip or throttle their ticks.
+     *
+     * @param fabric the one to check
+     * @return true if transform would do nothing
+     */
+
+    public boolean isAsleep(Fabric fabric) {
+        if (!fabric.isSettled()) {
+            return false;
+        }
+        for (PhysicsValue value : constraints.getPhysicsValues()) {
+            if (value.isChanged()) {
+                fabric.wake();
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void transform(Fabric fabric) {
-        for (int walk = 0; walk < iterations; walk++) {
+        if (isAsleep(fabric)) {
+            return;
+        }
+        for (int walk = 0; walk < iterations && !fabric.settled; walk++) {
             iterate(fabric);
             constraints.postIterate(fabric);
         }
     }
 
     private void iterate(Fabric fabric) {
+        FabricMetrics metrics = fabric.metrics;
+        long time = FabricMetrics.start(metrics);
         fabric.age++;
-        boolean anySpanActive = false;
+        int activeSpans = fabric.schedule.experienceTime(fabric);
+        double elasticFactor = constraints.getElasticFactor().get();
         for (Interval interval : fabric.intervals) {
-            if (interval.span.experienceTime(fabric.age)) {
-                anySpanActive = true;
-            }
-            if (interval.role != Interval.Role.GONE) {
-                elastic(interval);
+            if (interval.role == Interval.Role.GONE) {
+                continue;
             }
+            elastic(interval, elasticFactor);
+            smoothVelocity(interval, interval.role.smoothVelocity);
+            gravity(interval);
+        }
+        for (Interval interval : fabric.schedule.getFinished()) {
             if (interval.role == Interval.Role.TEMP) {
-                if (!interval.span.isActive()) {
-                    eliminate(interval, fabric);
-                }
+                eliminate(interval, fabric);
             }
         }
+        boolean anySpanActive = activeSpans > 0;
         if (anySpanActive) {
             fabric.spansWereActive();
         }
-        for (Interval interval : fabric.intervals) {
-            if (interval.role == Interval.Role.GONE) continue;
-            smoothVelocity(interval, interval.role.smoothVelocity);
-        }
+        time = FabricMetrics.lap(metrics, FabricMetrics.Pass.INTERVALS, time);
         for (Joint joint : fabric.joints) {
             switch (joint.who.side) {
                 case ELIMINATED:
@@ -95,82 +149,174 @@ public class Physics implements Fabric.PhysicsTransformation {
                 throw new RuntimeException("No mass! " + joint);
             }
             constraints.exertJointPhysics(joint, fabric);
-            joint.velocity.add(joint.force, 1 / joint.intervalMass);
-            joint.force.zero();
-            joint.velocity.add(joint.absorbVelocity);
-            joint.absorbVelocity.zero();
-        }
-        for (Interval interval : fabric.intervals) {
-            if (interval.role == Interval.Role.GONE) continue;
-            double alphaAltitude = interval.alpha.getAltitude();
-            double omegaAltitude = interval.omega.getAltitude();
-            boolean straddle = alphaAltitude > 0 ^ omegaAltitude > 0;
-            if (straddle) {
-                double totalAltitude = Math.abs(alphaAltitude) + Math.abs(omegaAltitude);
-                if (totalAltitude > 0.001) {
-                    gravity.interpolate(interval.alpha.getGravity(), interval.omega.gravity, Math.abs(omegaAltitude) / totalAltitude);
-                }
-                else {
-                    gravity.average(interval.alpha.gravity, interval.omega.gravity);
-                }
-            }
-            else {
-                gravity.average(interval.alpha.gravity, interval.omega.gravity);
-            }
-            interval.alpha.getVelocity().add(gravity);
-            interval.omega.getVelocity().add(gravity);
+            Arrow velocity = joint.velocity;
+            Arrow force = joint.force;
+            Arrow absorb = joint.absorbVelocity;
+            double inverseMass = 1 / joint.intervalMass;
+            velocity.x += force.x * inverseMass;
+            velocity.y += force.y * inverseMass;
+            velocity.z += force.z * inverseMass;
+            velocity.x += absorb.x;
+            velocity.y += absorb.y;
+            velocity.z += absorb.z;
+            force.x = force.y = force.z = 0;
+            absorb.x = absorb.y = absorb.z = 0;
         }
+        time = FabricMetrics.lap(metrics, FabricMetrics.Pass.JOINTS, time);
+        double maxSpeedSquared = 0;
+        double totalSpeedSquared = 0;
+        double kineticEnergy = 0;
         for (Joint joint : fabric.joints) {
             switch (joint.who.side) {
                 case ELIMINATED:
                 case TEMPORARY:
                     continue;
             }
-            joint.location.add(joint.velocity);
+            Arrow velocity = joint.velocity;
+            Arrow location = joint.location;
+            location.x += velocity.x;
+            location.y += velocity.y;
+            location.z += velocity.z;
+            double speedSquared = velocity.x * velocity.x + velocity.y * velocity.y + velocity.z * velocity.z;
+            if (speedSquared > maxSpeedSquared) {
+                maxSpeedSquared = speedSquared;
+            }
+            totalSpeedSquared += speedSquared;
+            kineticEnergy += joint.intervalMass * speedSquared / 2;
             joint.intervalMass = AMBIENT_JOINT_MASS;
         }
+        validate(fabric, totalSpeedSquared);
+        FabricMetrics.lap(metrics, FabricMetrics.Pass.MOVE, time);
+        FabricMetrics.iterated(metrics, activeSpans, kineticEnergy);
+        monitor(fabric, maxSpeedSquared, anySpanActive);
+    }
+
+    /**
+     * One bad number spreads through the whole fabric within a few ticks, so rather than checking
+     * every calculation it is enough to look at the sum of the speeds once per tick.
+     *
+     * @param fabric the subject
+     * @param totalSpeedSquared sum of all the squared joint speeds this tick
+     */
+
+    static void validate(Fabric fabric, double totalSpeedSquared) {
+        if (!Double.isNaN(totalSpeedSquared) && !Double.isInfinite(totalSpeedSquared)) {
+            return;
+        }
+        for (Joint joint : fabric.joints) {
+            if (joint.location.isNaN() || joint.velocity.isNaN()) {
+                throw new IllegalStateException(fabric.age + ": Joint is not a number " + joint);
+            }
+        }
+        throw new IllegalStateException(fabric.age + ": Joints are moving infinitely fast");
+    }
+
+    /**
+     * Count the calm ticks, and declare the fabric settled when there have been enough of them.
+     *
+     * @param fabric the subject
+     * @param maxSpeedSquared the highest joint speed this tick, squared
+     * @param anySpanActive were spans changing this tick
+     */
+
+    void monitor(Fabric fabric, double maxSpeedSquared, boolean anySpanActive) {
+        if (settleSpeed <= 0 || anySpanActive || maxSpeedSquared > settleSpeed * settleSpeed) {
+            fabric.calmTicks = 0;
+        }
+        else if (++fabric.calmTicks >= SETTLE_TICKS) {
+            fabric.settled = true;
+        }
     }
 
     // === the rest is private
 
-    private void elastic(Interval interval) {
-        Arrow unit = interval.getUnit(true);
+    private void elastic(Interval interval, double elasticFactor) {
+        Arrow unit = interval.unit;
+        if (unit == null) {
+            unit = interval.unit = new Arrow();
+        }
+        Arrow alpha = interval.alpha.location;
+        Arrow omega = interval.omega.location;
+        double ux = omega.x - alpha.x;
+        double uy = omega.y - alpha.y;
+        double uz = omega.z - alpha.z;
         Span span = interval.span;
+        double actual = Math.sqrt(ux * ux + uy * uy + uz * uz);
+        span.actual = actual;
+        if (actual > 0.001) {
+            double scale = 1 / actual;
+            unit.x = ux * scale;
+            unit.y = uy * scale;
+            unit.z = uz * scale;
+        }
+        else {
+            unit.x = 0; // no better idea
+            unit.y = 0;
+            unit.z = 1;
+        }
         if (span.isSignificant()) {
             double ideal = span.getCurrentIdeal();
-            span.stress = constraints.getElasticFactor().get() * (span.actual - ideal) * (interval.role.canPush ? ideal * ideal : 1);
+            span.stress = elasticFactor * (actual - ideal) * (interval.role.canPush ? ideal * ideal : 1);
             if (interval.role.canPush || span.stress > 0) {
-                interval.alpha.force.add(unit, span.stress / 2);
-                interval.omega.force.sub(unit, span.stress / 2);
+                double half = span.stress / 2;
+                interval.alpha.force.add(unit, half);
+                interval.omega.force.sub(unit, half);
             }
-            double mass = interval.role.canPush ? ideal * ideal * ideal : span.actual * CABLE_MASS_FACTOR;
+            double mass = interval.role.canPush ? ideal * ideal * ideal : actual * CABLE_MASS_FACTOR;
             interval.alpha.intervalMass += mass / 2;
             interval.omega.intervalMass += mass / 2;
         }
     }
 
-    private Arrow projection = new Arrow();
-    private Arrow alphaProjection = new Arrow();
-    private Arrow omegaProjection = new Arrow();
-
-    private void smoothVelocity(Interval interval, double degree) {
-        splitArrows(interval.alpha.velocity, interval.getUnit(false), alphaProjection, degree);
-        splitArrows(interval.omega.velocity, interval.getUnit(false), omegaProjection, degree);
-        projection.add(alphaProjection, omegaProjection);
-        projection.scale(0.5);
-        interval.alpha.absorbVelocity.sub(alphaProjection);
-        interval.omega.absorbVelocity.sub(omegaProjection);
-        interval.alpha.absorbVelocity.add(projection);
-        interval.omega.absorbVelocity.add(projection);
+    private static void smoothVelocity(Interval interval, double degree) {
+        Arrow unit = interval.unit;
+        Arrow alphaVelocity = interval.alpha.velocity;
+        Arrow omegaVelocity = interval.omega.velocity;
+        double alphaAgreement = (alphaVelocity.x * unit.x + alphaVelocity.y * unit.y + alphaVelocity.z * unit.z) * degree;
+        double omegaAgreement = (omegaVelocity.x * unit.x + omegaVelocity.y * unit.y + omegaVelocity.z * unit.z) * degree;
+        double shared = (alphaAgreement + omegaAgreement) * 0.5;
+        interval.alpha.absorbVelocity.add(unit, shared - alphaAgreement);
+        interval.omega.absorbVelocity.add(unit, shared - omegaAgreement);
     }
 
-    private static void splitArrows(Arrow arrow, Arrow basis, Arrow projection, double howMuch) {
-        double agreement = arrow.dot(basis);
-        projection.set(basis);
-        projection.scale(agreement * howMuch);
+    /**
+     * Gravity ends up in the absorbed velocity, since the joint velocities must stay as they are
+     * until every interval has been smoothed.
+     *
+     * @param interval whose joints feel gravity
+     */
+
+    private static void gravity(Interval interval) {
+        Joint alpha = interval.alpha;
+        Joint omega = interval.omega;
+        double alphaAltitude = alpha.altitude;
+        double omegaAltitude = omega.altitude;
+        double gx, gy, gz;
+        boolean straddle = alphaAltitude > 0 ^ omegaAltitude > 0;
+        double totalAltitude = Math.abs(alphaAltitude) + Math.abs(omegaAltitude);
+        if (straddle && totalAltitude > 0.001) {
+            double interpolation = Math.abs(omegaAltitude) / totalAltitude;
+            double antiInterpolation = 1 - interpolation;
+            gx = alpha.gravity.x * antiInterpolation + omega.gravity.x * interpolation;
+            gy = alpha.gravity.y * antiInterpolation + omega.gravity.y * interpolation;
+            gz = alpha.gravity.z * antiInterpolation + omega.gravity.z * interpolation;
+        }
+        else {
+            gx = (alpha.gravity.x + omega.gravity.x) * 0.5;
+            gy = (alpha.gravity.y + omega.gravity.y) * 0.5;
+            gz = (alpha.gravity.z + omega.gravity.z) * 0.5;
+        }
+        Arrow alphaAbsorb = alpha.absorbVelocity;
+        Arrow omegaAbsorb = omega.absorbVelocity;
+        alphaAbsorb.x += gx;
+        alphaAbsorb.y += gy;
+        alphaAbsorb.z += gz;
+        omegaAbsorb.x += gx;
+        omegaAbsorb.y += gy;
+        omegaAbsorb.z += gz;
     }
 
-    private void eliminate(Interval interval, Fabric fabric) {
+    void eliminate(Interval interval, Fabric fabric) {
         logger.info(fabric.age + ": Eliminating " + interval);
         fabric.getMods().getIntervalMod().remove(interval);
         if (!fabric.getRealIntervals(interval.alpha, interval.omega).isEmpty()) { // todo: eliminate later
@@ -27,6 +27,14 @@ public class PhysicsValue implements Physics.Value {
         this.nextValue = value;
     }
 
+    /**
+     * @return true if a new value has been set which has not been picked up yet
+     */
+
+    public boolean isChanged() {
+        return nextValue != null;
+    }
+
     public double get() {
         if (nextValue != null) {
             log.info(String.format("%s : %f -> %f", name, value, nextValue));
@@ -5,17 +5,31 @@
 
 package eu.beautifulcode.eig.structure;
 
+import java.util.Arrays;
+
 /**
+ * The actual and ideal length of an interval, and the stress between them.  The ideal can be
+ * given a series of ramps, each taking it linearly to a new value over a number of ticks.  The
+ * ramps are kept in a small array so that the last one can be found at once, and the schedule of
+ * the fabric sees to it that only spans which are ramping experience time.
+ *
  * @author Gerald de Jong <geralddejong@gmail.com>
  */
 
 public class Span {
-    private static final double MINIMUM_SPAN = 0.001;
+    static final double MINIMUM_SPAN = 0.001;
 
     double actual;
     double ideal;
     double stress;
-    Future future;
+    double[] rampValue;
+    int[] rampTicks;
+    int rampHead, rampCount;
+    double rampInitial;
+    long rampEnd;
+    SpanSchedule schedule;
+    Interval interval;
+    boolean scheduled;
 
     public Span(double actual, double ideal, double stress) {
         this.actual = actual;
@@ -36,6 +50,10 @@ public class Span {
     }
 
     public double getStress(StressRange range) {
+        return getStress(stress, range);
+    }
+
+    public static double getStress(double stress, StressRange range) {
         double value = (stress - range.minimum()) / (range.maximum() - range.minimum());
         if (value >= 1) {
             value = 1 - 1e-12;
@@ -55,119 +73,129 @@ public class Span {
         setIdeal(ultimateIdeal, step);
     }
 
+    /**
+     * Change the ideal, either at once or by adding a ramp which starts when the ramps before it
+     * have finished.
+     *
+     * @param idealValue the new ideal
+     * @param howLong how many ticks the ramp takes, or zero for right now
+     */
+
     public void setIdeal(double idealValue, int howLong) {
         if (howLong == 0) {
             ideal = idealValue;
         }
         else {
-            Future newFuture = new Future(idealValue, howLong);
-            if (future == null) {
-                future = newFuture;
-            }
-            else {
-                Future walk = future;
-                while (walk.nextFuture != null) {
-                    walk = walk.nextFuture;
-                }
-                walk.nextFuture = newFuture;
+            addRamp(idealValue, howLong);
+            if (schedule != null) {
+                schedule.add(this);
             }
         }
     }
 
+    /**
+     * @return the ideal after all the ramps have finished
+     */
+
     public double getUltimateIdeal() {
-        if (future == null) {
+        if (rampCount == 0) {
             return ideal;
         }
-        Future walk = future;
-        while (walk.nextFuture != null) {
-            walk = walk.nextFuture;
-        }
-        return future.value;
+        return rampValue[rampHead + rampCount - 1];
     }
 
+    /**
+     * Scale the ultimate ideal, leaving the ramps before the last one alone.
+     *
+     * @param factor to multiply by
+     */
+
     public void adjustIdeal(double factor) {
-        if (future == null) {
+        if (rampCount == 0) {
             ideal *= factor;
         }
         else {
-            Future walk = future;
-            while (walk.nextFuture != null) {
-                walk = walk.nextFuture;
-            }
-            future.value *= factor;
+            rampValue[rampHead + rampCount - 1] *= factor;
         }
     }
 
     public boolean isActive() {
-        return future != null;
+        return rampCount > 0;
     }
 
-    public boolean experienceTime(long time) {
-        if (isActive()) {
-            if (future.when == 0) {
-                future.when = time + future.howLong;
-                future.initial = ideal;
-            }
-            int timeLeft = (int)(future.when - time);
-            if (timeLeft < 0) {
-                ideal = future.value;
-                future = future.nextFuture;
-            }
-            else {
-                ideal = future.getCurrent(timeLeft);
-            }
-        }
-        return isActive();
+    public boolean isSignificant() {
+        return actual > MINIMUM_SPAN;
     }
 
     public String toString() {
-        StringBuffer out = new StringBuffer("Span(ideal="+ ideal +")");
-        Future walk = future;
-        while (walk != null) {
-            out.append(" => ").append(walk.value);
-            walk = walk.nextFuture;
+        StringBuilder out = new StringBuilder("Span(ideal="+ ideal +")");
+        for (int walk = 0; walk < rampCount; walk++) {
+            out.append(" => ").append(rampValue[rampHead + walk]);
         }
         return out.toString();
     }
 
-    int getChainSize() {
-        int count = 0;
-        Future walk = future;
-        while (walk != null) {
-            walk = walk.nextFuture;
-            count++;
-        }
-        return count;
-    }
-
-    public boolean isSignificant() {
-        return actual > MINIMUM_SPAN;
-    }
-
     public interface StressRange {
         double minimum();
         double maximum();
     }
 
-    public static class Future {
+    // === the rest is private
 
-        private Future(double value, int howLong) {
-            this.value = value;
-            this.howLong = howLong;
-        }
+    /**
+     * Move the ideal along its current ramp, starting the ramp if this is its first tick and moving
+     * on to the next one once it has finished.
+     *
+     * @param time the age of the fabric
+     * @return true if there are still ramps to go
+     */
 
-        public Future() {
+    boolean experienceTime(long time) {
+        if (rampCount > 0) {
+            if (rampEnd == 0) {
+                rampEnd = time + rampTicks[rampHead];
+                rampInitial = ideal;
+            }
+            int timeLeft = (int) (rampEnd - time);
+            if (timeLeft < 0) {
+                ideal = rampValue[rampHead];
+                rampHead++;
+                rampCount--;
+                rampEnd = 0;
+                if (rampCount == 0) {
+                    rampHead = 0;
+                }
+            }
+            else {
+                double remaining = (double) timeLeft / rampTicks[rampHead];
+                ideal = rampInitial * remaining + rampValue[rampHead] * (1 - remaining);
+            }
         }
+        return rampCount > 0;
+    }
 
-        Future nextFuture;
-        double initial;
-        double value;
-        int howLong;
-        long when;
+    int getChainSize() {
+        return rampCount;
+    }
 
-        double getCurrent(int timeLeft) {
-            double remaining = (double)timeLeft/howLong;
-            return initial * remaining + value * (1-remaining);
+    void addRamp(double value, int howLong) {
+        if (rampValue == null) {
+            rampValue = new double[2];
+            rampTicks = new int[2];
+        }
+        else if (rampHead + rampCount == rampValue.length) {
+            if (rampHead > 0) {
+                System.arraycopy(rampValue, rampHead, rampValue, 0, rampCount);
+                System.arraycopy(rampTicks, rampHead, rampTicks, 0, rampCount);
+                rampHead = 0;
+            }
+            else {
+                rampValue = Arrays.copyOf(rampValue, rampCount * 2);
+                rampTicks = Arrays.copyOf(rampTicks, rampCount * 2);
+            }
         }
+        rampValue[rampHead + rampCount] = value;
+        rampTicks[rampHead + rampCount] = howLong;
+        rampCount++;
     }
-}
\ No newline at end of file
+}
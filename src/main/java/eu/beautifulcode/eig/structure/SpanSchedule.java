@@ -0,0 +1,103 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The intervals of a fabric whose spans have ramps to go through.  Most spans sit still most of
+ * the time, so rather than asking every span every tick whether it is changing, the physics asks
+ * the schedule to move the ramping ones along.
+ *
+ * Spans find the schedule when it notices that the intervals of the fabric have changed, and from
+ * then on a span which is given a ramp enters the schedule by itself.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+class SpanSchedule {
+    private long revision = -1;
+    private int listSize = -1;
+    private List<Interval> ramping = new ArrayList<Interval>();
+    private List<Interval> finished = new ArrayList<Interval>();
+
+    /**
+     * Move every ramping span one tick along.
+     *
+     * @param fabric whose spans these are
+     * @return how many spans still have ramps to go
+     */
+
+    int experienceTime(Fabric fabric) {
+        finished.clear();
+        if (revision != fabric.revision || listSize != fabric.intervals.size()) {
+            attach(fabric);
+        }
+        int keep = 0;
+        for (int walk = 0; walk < ramping.size(); walk++) {
+            Interval interval = ramping.get(walk);
+            Span span = interval.span;
+            if (interval.role == Interval.Role.GONE) {
+                span.scheduled = false;
+            }
+            else if (span.experienceTime(fabric.age)) {
+                ramping.set(keep++, interval);
+            }
+            else {
+                span.scheduled = false;
+                finished.add(interval);
+            }
+        }
+        ramping.subList(keep, ramping.size()).clear();
+        return keep;
+    }
+
+    /**
+     * @return the intervals whose spans are still ramping after this tick
+     */
+
+    List<Interval> getRamping() {
+        return ramping;
+    }
+
+    /**
+     * @return the intervals whose spans finished their last ramp this tick, and any temporary ones
+     * which never had a ramp to begin with
+     */
+
+    List<Interval> getFinished() {
+        return finished;
+    }
+
+    void add(Span span) {
+        if (!span.scheduled && span.interval != null) {
+            span.scheduled = true;
+            ramping.add(span.interval);
+        }
+    }
+
+    // === the rest is private
+
+    private void attach(Fabric fabric) {
+        revision = fabric.revision;
+        listSize = fabric.intervals.size();
+        for (Interval interval : fabric.intervals) {
+            if (interval.role == Interval.Role.GONE) {
+                continue;
+            }
+            Span span = interval.span;
+            span.schedule = this;
+            span.interval = interval;
+            if (span.isActive()) {
+                add(span);
+            }
+            else if (interval.role == Interval.Role.TEMP) {
+                finished.add(interval);
+            }
+        }
+    }
+}
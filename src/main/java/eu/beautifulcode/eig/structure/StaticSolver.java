@@ -0,0 +1,423 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Find the shape in which a fabric would come to rest without ticking through all the motion on the
+ * way there.  A fabric at rest is one where the pushes and pulls of the intervals exactly balance the
+ * gravity of the constraints at every joint, so this solves for that balance directly with Newton
+ * iterations.
+ *
+ * Each iteration assembles the stiffness of every interval from its role and the ideal of its span,
+ * the same way the physics works out stress, so a slack cable contributes nothing.  The stiffness
+ * of the constraints is found by nudging each joint a little.  The resulting sparse system is solved
+ * with preconditioned conjugate gradients.  A step is only taken if the forces do work along it,
+ * which means it lowers the energy, and otherwise it is damped into something more like a tick of the
+ * physics, so a fabric hanging in the air or stuck in the floor creeps into place instead of being
+ * thrown around.
+ *
+ * Spans are taken as they are, so a fabric which is still growing should be ticked until its spans
+ * are done first.  The solution is written back into the joints and the fabric is woken.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class StaticSolver implements Fabric.Transformation {
+    public static final double DEFAULT_TOLERANCE = 1e-9;
+    private static final int DEFAULT_MAX_ITERATIONS = 200;
+    private static final double NUDGE = 1e-6;
+    private static final double CG_PRECISION = 1e-3;
+    private static final double START_DAMPING = 1e-3;
+    private static final double MIN_DAMPING = 1e-12;
+    private static final double MAX_DAMPING = 1e12;
+    private static final int[] DIAGONAL = {0, 3, 5};
+    private Logger log = Logger.getLogger(getClass());
+    private Physics.Constraints constraints;
+    private FabricArrays arrays = new FabricArrays();
+    private double tolerance = DEFAULT_TOLERANCE;
+    private int maxIterations = DEFAULT_MAX_ITERATIONS;
+    private int iterations;
+    private double imbalance;
+    private double[] residual = new double[0];
+    private double[] intervalStiffness = new double[0];
+    private double[] jointStiffness = new double[0];
+    private double[] diagonal = new double[0];
+    private double[] step = new double[0];
+    private double[] r = new double[0];
+    private double[] z = new double[0];
+    private double[] p = new double[0];
+    private double[] q = new double[0];
+    private double[] saved = new double[0];
+    private double[] savedResidual = new double[0];
+    private double[] nudged = new double[3];
+    private double[] column = new double[9];
+
+    public StaticSolver(Physics.Constraints constraints) {
+        this.constraints = constraints;
+    }
+
+    /**
+     * @param tolerance the largest change in velocity per tick which still counts as balanced
+     */
+
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * @return how many Newton iterations the last solve took
+     */
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return the largest change in velocity per tick that any joint would still feel after the last solve
+     */
+
+    public double getImbalance() {
+        return imbalance;
+    }
+
+    public void transform(Fabric fabric) {
+        solve(fabric);
+    }
+
+    /**
+     * Move the joints of the fabric to where they balance.
+     *
+     * @param fabric what to solve
+     * @return true if the balance is within tolerance
+     */
+
+    public boolean solve(Fabric fabric) {
+        FabricArrays a = arrays;
+        if (a.isStale(fabric)) {
+            a.pack(fabric);
+        }
+        else {
+            a.gather();
+        }
+        int length = a.jointCount * 3;
+        allocate(length, a.intervalCount);
+        evaluate(fabric, a);
+        double damping = START_DAMPING;
+        iterations = 0;
+        while (imbalance > tolerance && iterations < maxIterations && damping < MAX_DAMPING) {
+            iterations++;
+            assemble(fabric, a);
+            System.arraycopy(a.location, 0, saved, 0, length);
+            System.arraycopy(residual, 0, savedResidual, 0, length);
+            while (damping < MAX_DAMPING) {
+                conjugateGradient(a, damping);
+                for (int walk = 0; walk < length; walk++) {
+                    a.location[walk] = saved[walk] + step[walk];
+                }
+                evaluate(fabric, a);
+                double work = 0;
+                for (int walk = 0; walk < length; walk++) {
+                    work += (savedResidual[walk] + residual[walk]) * step[walk];
+                }
+                if (work > 0) { // the forces did work along the step, so the energy went down
+                    damping = Math.max(damping / 3, MIN_DAMPING);
+                    break;
+                }
+                damping *= 4;
+                System.arraycopy(saved, 0, a.location, 0, length);
+            }
+        }
+        evaluate(fabric, a); // the last trial may have been rejected
+        for (int walk = 0; walk < length; walk++) {
+            a.velocity[walk] = 0;
+            a.force[walk] = 0;
+            a.absorb[walk] = 0;
+        }
+        for (int walk = 0; walk < a.jointCount; walk++) {
+            a.mass[walk] = Physics.AMBIENT_JOINT_MASS; // as a tick leaves it
+        }
+        a.scatter();
+        fabric.wake();
+        log.info(String.format("%d iterations, imbalance %.3g", iterations, imbalance));
+        return imbalance <= tolerance;
+    }
+
+    // === the rest is private
+
+    private void allocate(int length, int intervalCount) {
+        if (residual.length < length) {
+            residual = new double[length];
+            jointStiffness = new double[length * 2];
+            diagonal = new double[length];
+            step = new double[length];
+            r = new double[length];
+            z = new double[length];
+            p = new double[length];
+            q = new double[length];
+            saved = new double[length];
+            savedResidual = new double[length];
+        }
+        if (intervalStiffness.length < intervalCount * 6) {
+            intervalStiffness = new double[intervalCount * 6];
+        }
+    }
+
+    /**
+     * Find the force on each joint which is left over when the intervals and the constraints have
+     * had their say, exactly as the physics would feel it on a fabric standing still.
+     *
+     * @param fabric for constraints which want the objects
+     * @param a the packed fabric
+     */
+
+    private void evaluate(Fabric fabric, FabricArrays a) {
+        int length = a.jointCount * 3;
+        for (int walk = 0; walk < length; walk++) {
+            a.force[walk] = 0;
+            a.velocity[walk] = 0;
+        }
+        for (int walk = 0; walk < a.jointCount; walk++) {
+            a.mass[walk] = Physics.AMBIENT_JOINT_MASS;
+        }
+        double elasticFactor = constraints.getElasticFactor().get();
+        for (int walk = 0; walk < a.intervalCount; walk++) {
+            ArrayPhysics.elastic(a, walk, elasticFactor, a.force, a.mass);
+        }
+        for (int walk = 0; walk < a.jointCount; walk++) {
+            if (a.free[walk]) {
+                exert(fabric, a, walk);
+            }
+        }
+        for (int walk = 0; walk < a.intervalCount; walk++) {
+            ArrayPhysics.gravity(a, a.alpha[walk], a.omega[walk], 1, a.velocity);
+        }
+        imbalance = 0;
+        for (int walk = 0; walk < a.jointCount; walk++) {
+            int j = walk * 3;
+            if (!a.free[walk]) {
+                residual[j] = residual[j + 1] = residual[j + 2] = 0;
+                continue;
+            }
+            double mass = a.mass[walk];
+            double squared = 0;
+            for (int d = 0; d < 3; d++) {
+                double force = a.force[j + d] + a.velocity[j + d] * mass;
+                residual[j + d] = force;
+                squared += force * force;
+            }
+            imbalance = Math.max(imbalance, Math.sqrt(squared) / mass);
+        }
+    }
+
+    /**
+     * Let the constraints work on a joint standing still, leaving the velocity it would gain in
+     * one tick behind in the velocity array.
+     *
+     * @param fabric for constraints which want the objects
+     * @param a the packed fabric
+     * @param walk which joint
+     */
+
+    private void exert(Fabric fabric, FabricArrays a, int walk) {
+        int j = walk * 3;
+        a.velocity[j] = a.velocity[j + 1] = a.velocity[j + 2] = 0;
+        if (constraints instanceof Physics.PackedConstraints) {
+            ((Physics.PackedConstraints) constraints).exertJointPhysics(a, walk);
+        }
+        else {
+            a.scatterJoint(walk);
+            constraints.exertJointPhysics(a.joints[walk], fabric);
+            a.gatherJoint(walk);
+        }
+    }
+
+    /**
+     * Work out how the leftover force changes when joints move: a 3x3 block for every interval,
+     * and one for every joint from the constraints.  The blocks are symmetric so only six numbers
+     * of each are kept, in the order xx, xy, xz, yy, yz, zz.
+     *
+     * @param fabric for constraints which want the objects
+     * @param a the packed fabric, just evaluated
+     */
+
+    private void assemble(Fabric fabric, FabricArrays a) {
+        int length = a.jointCount * 3;
+        for (int walk = 0; walk < length; walk++) {
+            diagonal[walk] = 0;
+        }
+        double elasticFactor = constraints.getElasticFactor().get();
+        for (int walk = 0; walk < a.intervalCount; walk++) {
+            int s = walk * 6;
+            Interval.Role role = a.roles[walk];
+            double actual = a.actual[walk];
+            if (actual <= Span.MINIMUM_SPAN || !(role.canPush || a.stress[walk] > 0)) {
+                for (int e = 0; e < 6; e++) {
+                    intervalStiffness[s + e] = 0;
+                }
+                continue;
+            }
+            double ideal = a.ideal[walk];
+            double axial = elasticFactor * (role.canPush ? ideal * ideal : 1) / 2;
+            double lateral = axial * (1 - ideal / actual);
+            double difference = axial - lateral;
+            int i = walk * 3;
+            double ux = a.unit[i], uy = a.unit[i + 1], uz = a.unit[i + 2];
+            intervalStiffness[s] = lateral + difference * ux * ux;
+            intervalStiffness[s + 1] = difference * ux * uy;
+            intervalStiffness[s + 2] = difference * ux * uz;
+            intervalStiffness[s + 3] = lateral + difference * uy * uy;
+            intervalStiffness[s + 4] = difference * uy * uz;
+            intervalStiffness[s + 5] = lateral + difference * uz * uz;
+            int alpha = a.alpha[walk] * 3;
+            int omega = a.omega[walk] * 3;
+            for (int d = 0; d < 3; d++) {
+                double entry = intervalStiffness[s + DIAGONAL[d]];
+                diagonal[alpha + d] += entry;
+                diagonal[omega + d] += entry;
+            }
+        }
+        for (int walk = 0; walk < a.jointCount; walk++) {
+            int j = walk * 3;
+            int s = walk * 6;
+            if (!a.free[walk]) {
+                for (int e = 0; e < 6; e++) {
+                    jointStiffness[s + e] = 0;
+                }
+                continue;
+            }
+            double mass = a.mass[walk];
+            for (int d = 0; d < 3; d++) {
+                double original = a.location[j + d];
+                a.location[j + d] = original + NUDGE;
+                exert(fabric, a, walk);
+                System.arraycopy(a.velocity, j, nudged, 0, 3);
+                a.location[j + d] = original - NUDGE;
+                exert(fabric, a, walk);
+                a.location[j + d] = original;
+                for (int e = 0; e < 3; e++) {
+                    column[d * 3 + e] = -mass * (nudged[e] - a.velocity[j + e]) / (2 * NUDGE);
+                }
+            }
+            a.velocity[j] = a.velocity[j + 1] = a.velocity[j + 2] = 0;
+            jointStiffness[s] = column[0];
+            jointStiffness[s + 1] = (column[1] + column[3]) / 2;
+            jointStiffness[s + 2] = (column[2] + column[6]) / 2;
+            jointStiffness[s + 3] = column[4];
+            jointStiffness[s + 4] = (column[5] + column[7]) / 2;
+            jointStiffness[s + 5] = column[8];
+            for (int d = 0; d < 3; d++) {
+                diagonal[j + d] += jointStiffness[s + DIAGONAL[d]];
+            }
+        }
+    }
+
+    /**
+     * Solve (K + damping * M) step = residual where K is the assembled stiffness and M the joint
+     * masses.  This is an implicit tick with a time step of one over the square root of the damping,
+     * so with little damping it is a plain Newton step, while with a lot it creeps along like the
+     * physics would.  Stops early when a direction of negative stiffness turns up, since then the
+     * damping will have to grow anyway.
+     *
+     * @param a the packed fabric
+     * @param damping how much to hold back
+     */
+
+    private void conjugateGradient(FabricArrays a, double damping) {
+        int length = a.jointCount * 3;
+        double rz = 0;
+        double target = 0;
+        for (int walk = 0; walk < length; walk++) {
+            step[walk] = 0;
+            r[walk] = residual[walk];
+            z[walk] = r[walk] / precondition(a, walk, damping);
+            p[walk] = z[walk];
+            rz += r[walk] * z[walk];
+            target += r[walk] * r[walk];
+        }
+        target *= CG_PRECISION * CG_PRECISION;
+        int limit = Math.min(length, 1000);
+        for (int count = 0; count < limit; count++) {
+            multiply(a, p, q, damping);
+            double pq = 0;
+            for (int walk = 0; walk < length; walk++) {
+                pq += p[walk] * q[walk];
+            }
+            if (pq <= 0) {
+                if (count == 0) {
+                    System.arraycopy(z, 0, step, 0, length);
+                }
+                return;
+            }
+            double alpha = rz / pq;
+            double rr = 0;
+            double nextRz = 0;
+            for (int walk = 0; walk < length; walk++) {
+                step[walk] += alpha * p[walk];
+                r[walk] -= alpha * q[walk];
+                z[walk] = r[walk] / precondition(a, walk, damping);
+                rr += r[walk] * r[walk];
+                nextRz += r[walk] * z[walk];
+            }
+            if (rr <= target) {
+                return;
+            }
+            double beta = nextRz / rz;
+            rz = nextRz;
+            for (int walk = 0; walk < length; walk++) {
+                p[walk] = z[walk] + beta * p[walk];
+            }
+        }
+    }
+
+    private double precondition(FabricArrays a, int walk, double damping) {
+        return Math.abs(diagonal[walk]) + a.mass[walk / 3] * damping;
+    }
+
+    private void multiply(FabricArrays a, double[] in, double[] out, double damping) {
+        int length = a.jointCount * 3;
+        for (int walk = 0; walk < length; walk++) {
+            out[walk] = a.mass[walk / 3] * damping * in[walk];
+        }
+        for (int walk = 0; walk < a.intervalCount; walk++) {
+            int alpha = a.alpha[walk] * 3;
+            int omega = a.omega[walk] * 3;
+            double dx = in[omega] - in[alpha];
+            double dy = in[omega + 1] - in[alpha + 1];
+            double dz = in[omega + 2] - in[alpha + 2];
+            int s = walk * 6;
+            double tx = intervalStiffness[s] * dx + intervalStiffness[s + 1] * dy + intervalStiffness[s + 2] * dz;
+            double ty = intervalStiffness[s + 1] * dx + intervalStiffness[s + 3] * dy + intervalStiffness[s + 4] * dz;
+            double tz = intervalStiffness[s + 2] * dx + intervalStiffness[s + 4] * dy + intervalStiffness[s + 5] * dz;
+            out[alpha] -= tx;
+            out[alpha + 1] -= ty;
+            out[alpha + 2] -= tz;
+            out[omega] += tx;
+            out[omega + 1] += ty;
+            out[omega + 2] += tz;
+        }
+        for (int walk = 0; walk < a.jointCount; walk++) {
+            int j = walk * 3;
+            int s = walk * 6;
+            double x = in[j], y = in[j + 1], zz = in[j + 2];
+            out[j] += jointStiffness[s] * x + jointStiffness[s + 1] * y + jointStiffness[s + 2] * zz;
+            out[j + 1] += jointStiffness[s + 1] * x + jointStiffness[s + 3] * y + jointStiffness[s + 4] * zz;
+            out[j + 2] += jointStiffness[s + 2] * x + jointStiffness[s + 4] * y + jointStiffness[s + 5] * zz;
+            if (!a.free[walk]) {
+                out[j] = out[j + 1] = out[j + 2] = 0;
+            }
+        }
+    }
+}
@@ -134,6 +134,8 @@ public class Tetra {
         if (intervals.isEmpty()) {
             Interval interval = fabric.createInterval(alpha, omega, Interval.Role.CABLE);
             fabric.intervals.add(interval);
+            fabric.index.add(interval);
+            fabric.structureChanged();
             return interval;
         }
         else if (intervals.size() == 1) {
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Find the fabric at any moment of a trajectory written by a TrajectoryWriter, by loading the
+ * keyframe before it and moving the joints along from there.  Frames between keyframes carry only
+ * the locations of the joints and the stresses of the spans, so everything else, velocities
+ * included, is as it was at the keyframe.  Quantized frames are only as precise as the bounds they
+ * were recorded with.
+ *
+ * If recording was resumed from an earlier moment, the frames which were written later take the
+ * place of the ones they overlap.  A frame cut short at the end of the file is ignored.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class TrajectoryReader {
+    private RandomAccessFile file;
+    private int frameCount;
+    private long[] ages = new long[64];
+    private long[] offsets = new long[64];
+    private int[] lengths = new int[64];
+    private byte[] tags = new byte[64];
+
+    public TrajectoryReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        if (this.file.length() < 4 || this.file.readInt() != TrajectoryWriter.MAGIC) {
+            this.file.close();
+            throw new IOException("Not a trajectory: " + file);
+        }
+        scan();
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public long getAge(int frame) {
+        if (frame < 0 || frame >= frameCount) {
+            throw new IndexOutOfBoundsException("No frame " + frame);
+        }
+        return ages[frame];
+    }
+
+    /**
+     * Reconstruct the fabric as it was recorded at an age, or at the last frame before it.
+     *
+     * @param age of the fabric wanted
+     * @param thingFactory for the things in the keyframe, or null if there are none
+     * @return a fresh fabric
+     * @throws IOException from the file
+     */
+
+    public Fabric seek(long age, Thing.Factory thingFactory) throws IOException {
+        int frame = Arrays.binarySearch(ages, 0, frameCount, age);
+        if (frame < 0) {
+            frame = -frame - 2;
+        }
+        if (frame < 0) {
+            throw new IllegalArgumentException("Nothing was recorded before age " + age);
+        }
+        int keyframe = frame;
+        while (tags[keyframe] != TrajectoryWriter.KEYFRAME) {
+            keyframe--;
+        }
+        Fabric fabric = new Fablob(read(keyframe)).createFabric(thingFactory);
+        Quanta quanta = null;
+        try {
+            for (int walk = keyframe + 1; walk <= frame; walk++) {
+                ByteBuffer delta = ByteBuffer.wrap(read(walk));
+                if (delta.getInt() != fabric.joints.size() || delta.getInt() != fabric.intervals.size()) {
+                    throw new IOException("Frame does not fit its keyframe");
+                }
+                if (tags[walk] == TrajectoryWriter.QUANTIZED) {
+                    if (quanta == null) {
+                        quanta = new Quanta(fabric, delta.duplicate());
+                    }
+                    quanta.move(fabric, delta);
+                }
+                else {
+                    move(fabric, delta);
+                }
+                fabric.age = ages[walk];
+            }
+        }
+        finally {
+            if (quanta != null) {
+                quanta.inflater.end();
+            }
+        }
+        return fabric;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    // === the rest is private
+
+    private void scan() throws IOException {
+        long length = file.length();
+        long position = 4;
+        while (position + TrajectoryWriter.HEADER_SIZE <= length) {
+            file.seek(position);
+            byte tag = file.readByte();
+            long age = file.readLong();
+            int size = file.readInt();
+            long payload = position + TrajectoryWriter.HEADER_SIZE;
+            if (size < 0 || payload + size > length) {
+                break;
+            }
+            if (tag != TrajectoryWriter.KEYFRAME && tag != TrajectoryWriter.DELTA && tag != TrajectoryWriter.QUANTIZED) {
+                throw new IOException("Unknown frame at " + position);
+            }
+            while (frameCount > 0 && ages[frameCount - 1] >= age) {
+                frameCount--;
+            }
+            if (frameCount == 0 && tag != TrajectoryWriter.KEYFRAME) {
+                throw new IOException("No keyframe before frame at " + position);
+            }
+            add(tag, age, payload, size);
+            position = payload + size;
+        }
+    }
+
+    private void add(byte tag, long age, long offset, int length) {
+        if (frameCount == ages.length) {
+            ages = Arrays.copyOf(ages, frameCount * 2);
+            offsets = Arrays.copyOf(offsets, frameCount * 2);
+            lengths = Arrays.copyOf(lengths, frameCount * 2);
+            tags = Arrays.copyOf(tags, frameCount * 2);
+        }
+        ages[frameCount] = age;
+        offsets[frameCount] = offset;
+        lengths[frameCount] = length;
+        tags[frameCount] = tag;
+        frameCount++;
+    }
+
+    private byte[] read(int frame) throws IOException {
+        byte[] bytes = new byte[lengths[frame]];
+        file.seek(offsets[frame]);
+        file.readFully(bytes);
+        return bytes;
+    }
+
+    private static void move(Fabric fabric, ByteBuffer delta) {
+        for (Joint joint : fabric.joints) {
+            joint.location.x += delta.getFloat();
+            joint.location.y += delta.getFloat();
+            joint.location.z += delta.getFloat();
+        }
+        for (Interval interval : fabric.intervals) {
+            interval.span.stress = delta.getFloat();
+            interval.span.actual = interval.alpha.location.distanceTo(interval.omega.location);
+        }
+    }
+
+    /**
+     * The grid positions of the frames before, which quantized frames are predicted from.
+     */
+
+    private static class Quanta {
+        private double x, y, z, step, stressStep;
+        private int frames;
+        private long[] previous, beforePrevious;
+        private long[] previousStress;
+        private Inflater inflater = new Inflater();
+
+        private Quanta(Fabric fabric, ByteBuffer delta) {
+            readGrid(delta);
+            previous = new long[fabric.joints.size() * 3];
+            beforePrevious = new long[previous.length];
+            previousStress = new long[fabric.intervals.size()];
+            for (int walk = 0; walk < fabric.joints.size(); walk++) {
+                Joint joint = fabric.joints.get(walk);
+                previous[walk * 3] = TrajectoryWriter.quantize(joint.location.x, x, step);
+                previous[walk * 3 + 1] = TrajectoryWriter.quantize(joint.location.y, y, step);
+                previous[walk * 3 + 2] = TrajectoryWriter.quantize(joint.location.z, z, step);
+            }
+            for (int walk = 0; walk < previousStress.length; walk++) {
+                previousStress[walk] = TrajectoryWriter.quantize(fabric.intervals.get(walk).span.stress, 0, stressStep);
+            }
+        }
+
+        private void move(Fabric fabric, ByteBuffer delta) throws IOException {
+            readGrid(delta);
+            ByteBuffer residuals = inflate(delta);
+            for (int walk = 0; walk < previous.length; walk++) {
+                long predicted = frames == 0 ? previous[walk] : 2 * previous[walk] - beforePrevious[walk];
+                beforePrevious[walk] = previous[walk];
+                previous[walk] = predicted + unpackResidual(residuals);
+            }
+            for (int walk = 0; walk < fabric.joints.size(); walk++) {
+                Joint joint = fabric.joints.get(walk);
+                joint.location.x = x + previous[walk * 3] * step;
+                joint.location.y = y + previous[walk * 3 + 1] * step;
+                joint.location.z = z + previous[walk * 3 + 2] * step;
+            }
+            for (int walk = 0; walk < previousStress.length; walk++) {
+                previousStress[walk] += unpackResidual(residuals);
+                Interval interval = fabric.intervals.get(walk);
+                interval.span.stress = previousStress[walk] * stressStep;
+                interval.span.actual = interval.alpha.location.distanceTo(interval.omega.location);
+            }
+            frames++;
+        }
+
+        private void readGrid(ByteBuffer delta) {
+            x = delta.getDouble();
+            y = delta.getDouble();
+            z = delta.getDouble();
+            step = delta.getDouble();
+            stressStep = delta.getDouble();
+        }
+
+        private ByteBuffer inflate(ByteBuffer delta) throws IOException {
+            byte[] bytes = new byte[delta.getInt()];
+            inflater.reset();
+            inflater.setInput(delta.array(), delta.arrayOffset() + delta.position(), delta.remaining());
+            try {
+                int length = 0;
+                while (length < bytes.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(bytes, length, bytes.length - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += inflated;
+                }
+                if (length != bytes.length) {
+                    throw new IOException("Quantized frame is cut short");
+                }
+            }
+            catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+            return ByteBuffer.wrap(bytes);
+        }
+
+        private static long unpackResidual(ByteBuffer in) {
+            long zigzag = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.get() & 0xFF;
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+    }
+}
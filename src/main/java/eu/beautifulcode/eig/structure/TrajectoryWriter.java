@@ -0,0 +1,294 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import eu.beautifulcode.eig.math.Arrow;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Record the history of a fabric in a file which only ever grows.  Every so often, and whenever
+ * the structure of the fabric has changed, a whole fablob is written as a keyframe, and in between
+ * only how far each joint has moved and what the stress of each span is.
+ *
+ * The movements are written as floats, but they are measured from where the reader will have put
+ * the joints rather than from where they really were, so the little errors do not add up between
+ * keyframes.
+ *
+ * With quantization switched on, the joints are instead placed on a grid around the center of the
+ * fabric at the keyframe, whose spacing is a fraction of its radius, and the stresses on a grid of
+ * their own.  Each joint is expected to carry on moving as it did between the two frames before,
+ * and only how far it missed is written, deflated.  This loses precision up to the given bounds
+ * and in return the frames are a small fraction of the size.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class TrajectoryWriter {
+    static final int MAGIC = 0xFAB07A1E;
+    static final byte KEYFRAME = 1;
+    static final byte DELTA = 2;
+    static final byte QUANTIZED = 3;
+    static final int HEADER_SIZE = 13;
+    private static final long MAX_QUANTUM = 1L << 40;
+    private DataOutputStream out;
+    private int keyframeInterval;
+    private int sinceKeyframe;
+    private long revision = -1;
+    private int jointCount = -1, intervalCount = -1;
+    private long lastAge = -1;
+    private double[] location = new double[0];
+    private ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+    private DataOutputStream frame = new DataOutputStream(frameBytes);
+    private double positionError, stressError;
+    private Arrow center = new Arrow();
+    private double step, stressStep;
+    private int quantizedFrames;
+    private long[] previous, beforePrevious, quantized;
+    private long[] previousStress, quantizedStress;
+    private ByteArrayOutputStream residualBytes = new ByteArrayOutputStream();
+    private Deflater deflater = new Deflater();
+
+    /**
+     * Start recording, either in a new file or at the end of an existing trajectory.
+     *
+     * @param file where to record
+     * @param keyframeInterval every how many frames to write a whole fablob
+     * @throws IOException if the file is there but is not a trajectory
+     */
+
+    public TrajectoryWriter(File file, int keyframeInterval) throws IOException {
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("Keyframe interval must be at least one");
+        }
+        this.keyframeInterval = keyframeInterval;
+        boolean fresh = file.length() == 0;
+        if (!fresh) {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a trajectory: " + file);
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (fresh) {
+            out.writeInt(MAGIC);
+        }
+    }
+
+    /**
+     * Switch to quantized frames from the next keyframe on.
+     *
+     * @param positionError how far a joint may be off, as a fraction of the radius of the fabric
+     * @param stressError how far a stress may be off
+     */
+
+    public void setQuantization(double positionError, double stressError) {
+        if (positionError <= 0 || stressError <= 0) {
+            throw new IllegalArgumentException("Quantization errors must be positive");
+        }
+        this.positionError = positionError;
+        this.stressError = stressError;
+        revision = -1;
+    }
+
+    /**
+     * Record a frame, unless the fabric has not aged since the last one.
+     *
+     * @param fabric the same fabric every time
+     * @throws IOException from the file
+     */
+
+    public void record(Fabric fabric) throws IOException {
+        if (fabric.age == lastAge) {
+            return;
+        }
+        lastAge = fabric.age;
+        boolean changed = revision != fabric.revision || jointCount != fabric.joints.size() || intervalCount != fabric.intervals.size();
+        if (changed || sinceKeyframe >= keyframeInterval) {
+            writeKeyframe(fabric);
+        }
+        else if (positionError == 0) {
+            writeDelta(fabric);
+        }
+        else if (!writeQuantized(fabric)) {
+            writeKeyframe(fabric);
+        }
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+        deflater.end();
+    }
+
+    static long quantize(double value, double origin, double step) {
+        return Math.round((value - origin) / step);
+    }
+
+    // === the rest is private
+
+    private void writeKeyframe(Fabric fabric) throws IOException {
+        byte[] bytes = Fablob.pack(fabric);
+        out.writeByte(KEYFRAME);
+        out.writeLong(fabric.age);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        revision = fabric.revision;
+        jointCount = fabric.joints.size();
+        intervalCount = fabric.intervals.size();
+        if (location.length != jointCount * 3) {
+            location = new double[jointCount * 3];
+        }
+        for (int walk = 0; walk < jointCount; walk++) {
+            Joint joint = fabric.joints.get(walk);
+            location[walk * 3] = joint.location.x;
+            location[walk * 3 + 1] = joint.location.y;
+            location[walk * 3 + 2] = joint.location.z;
+        }
+        sinceKeyframe = 1;
+        if (positionError > 0) {
+            startQuantizing(fabric);
+        }
+    }
+
+    private void writeDelta(Fabric fabric) throws IOException {
+        frameBytes.reset();
+        frame.writeInt(jointCount);
+        frame.writeInt(intervalCount);
+        for (int walk = 0; walk < jointCount; walk++) {
+            Joint joint = fabric.joints.get(walk);
+            frame.writeFloat(move(walk * 3, joint.location.x));
+            frame.writeFloat(move(walk * 3 + 1, joint.location.y));
+            frame.writeFloat(move(walk * 3 + 2, joint.location.z));
+        }
+        for (Interval interval : fabric.intervals) {
+            frame.writeFloat((float) interval.span.stress);
+        }
+        out.writeByte(DELTA);
+        out.writeLong(fabric.age);
+        out.writeInt(frameBytes.size());
+        frameBytes.writeTo(out);
+        sinceKeyframe++;
+    }
+
+    private void startQuantizing(Fabric fabric) {
+        fabric.getCenter(center);
+        double radius = fabric.getRadiusFrom(center);
+        step = 2 * positionError * (radius > 0 ? radius : 1);
+        stressStep = 2 * stressError;
+        if (previous == null || previous.length != jointCount * 3) {
+            previous = new long[jointCount * 3];
+            beforePrevious = new long[jointCount * 3];
+            quantized = new long[jointCount * 3];
+        }
+        if (previousStress == null || previousStress.length != intervalCount) {
+            previousStress = new long[intervalCount];
+            quantizedStress = new long[intervalCount];
+        }
+        quantize(fabric, previous, previousStress);
+        quantizedFrames = 0;
+    }
+
+    private boolean writeQuantized(Fabric fabric) throws IOException {
+        if (!quantize(fabric, quantized, quantizedStress)) {
+            return false;
+        }
+        residualBytes.reset();
+        for (int walk = 0; walk < quantized.length; walk++) {
+            long predicted = quantizedFrames == 0 ? previous[walk] : 2 * previous[walk] - beforePrevious[walk];
+            packResidual(quantized[walk] - predicted, residualBytes);
+        }
+        for (int walk = 0; walk < quantizedStress.length; walk++) {
+            packResidual(quantizedStress[walk] - previousStress[walk], residualBytes);
+        }
+        frameBytes.reset();
+        frame.writeInt(jointCount);
+        frame.writeInt(intervalCount);
+        frame.writeDouble(center.x);
+        frame.writeDouble(center.y);
+        frame.writeDouble(center.z);
+        frame.writeDouble(step);
+        frame.writeDouble(stressStep);
+        frame.writeInt(residualBytes.size());
+        deflater.reset();
+        DeflaterOutputStream deflated = new DeflaterOutputStream(frameBytes, deflater);
+        residualBytes.writeTo(deflated);
+        deflated.finish();
+        out.writeByte(QUANTIZED);
+        out.writeLong(fabric.age);
+        out.writeInt(frameBytes.size());
+        frameBytes.writeTo(out);
+        long[] recycle = beforePrevious;
+        beforePrevious = previous;
+        previous = quantized;
+        quantized = recycle;
+        long[] recycleStress = previousStress;
+        previousStress = quantizedStress;
+        quantizedStress = recycleStress;
+        quantizedFrames++;
+        sinceKeyframe++;
+        return true;
+    }
+
+    /**
+     * @return false if something has gone so far off the grid that it needs a new keyframe
+     */
+
+    private boolean quantize(Fabric fabric, long[] locations, long[] stresses) {
+        for (int walk = 0; walk < jointCount; walk++) {
+            Arrow location = fabric.joints.get(walk).location;
+            locations[walk * 3] = quantize(location.x, center.x, step);
+            locations[walk * 3 + 1] = quantize(location.y, center.y, step);
+            locations[walk * 3 + 2] = quantize(location.z, center.z, step);
+        }
+        for (int walk = 0; walk < intervalCount; walk++) {
+            stresses[walk] = quantize(fabric.intervals.get(walk).span.stress, 0, stressStep);
+        }
+        for (long value : locations) {
+            if (Math.abs(value) > MAX_QUANTUM) {
+                return false;
+            }
+        }
+        for (long value : stresses) {
+            if (Math.abs(value) > MAX_QUANTUM) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void packResidual(long residual, ByteArrayOutputStream out) {
+        long zigzag = (residual << 1) ^ (residual >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.write((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.write((int) zigzag);
+    }
+
+    private float move(int index, double to) {
+        float delta = (float) (to - location[index]);
+        location[index] += delta;
+        return delta;
+    }
+}
@@ -9,7 +9,7 @@ import java.util.List;
  * @author Gerald de Jong, Beautiful Code BV, <geralddejong@gmail.com>
  */
 
-public class VerticalPhysicsConstraints implements Physics.Constraints {
+public class VerticalPhysicsConstraints implements Physics.PackedConstraints {
     private static final double JOINT_RADIUS = 0.01;
     private PhysicsValue airDrag = new PhysicsValue("airDrag", 0.002);
     private PhysicsValue airGravity = new PhysicsValue("airGravity", 0.000001);
@@ -52,20 +52,39 @@ public class VerticalPhysicsConstraints implements Physics.Constraints {
 
     public void exertJointPhysics(Joint joint, Fabric fabric) {
         double altitude = joint.location.z;
+        exertGravity(joint, gravity(altitude));
+        joint.getVelocity().scale(1 - drag(altitude));
+    }
+
+    public void exertJointPhysics(FabricArrays arrays, int joint) {
+        double altitude = arrays.location[joint * 3 + 2];
+        arrays.velocity[joint * 3 + 2] -= gravity(altitude);
+        arrays.scaleVelocity(joint, 1 - drag(altitude));
+    }
+
+    private double gravity(double altitude) {
         if (altitude > JOINT_RADIUS) {
-            exertGravity(joint, airGravity.get());
-            joint.getVelocity().scale(1 - airDrag.get());
+            return airGravity.get();
         }
         else if (altitude < -JOINT_RADIUS) {
-            exertGravity(joint, -airGravity.get() * landGravity.get());
-            joint.getVelocity().scale(1 - airDrag.get() * landDrag.get());
+            return -airGravity.get() * landGravity.get();
         }
         else {
             double degree = (altitude + JOINT_RADIUS) / (JOINT_RADIUS * 2);
-            double gravityValue = airGravity.get() * degree + -airGravity.get() * landGravity.get() * (1 - degree);
-            exertGravity(joint, gravityValue);
-            double drag = airDrag.get() * degree + airDrag.get() * landDrag.get() * (1 - degree);
-            joint.getVelocity().scale(1 - drag);
+            return airGravity.get() * degree + -airGravity.get() * landGravity.get() * (1 - degree);
+        }
+    }
+
+    private double drag(double altitude) {
+        if (altitude > JOINT_RADIUS) {
+            return airDrag.get();
+        }
+        else if (altitude < -JOINT_RADIUS) {
+            return airDrag.get() * landDrag.get();
+        }
+        else {
+            double degree = (altitude + JOINT_RADIUS) / (JOINT_RADIUS * 2);
+            return airDrag.get() * degree + airDrag.get() * landDrag.get() * (1 - degree);
         }
     }
 
@@ -75,4 +94,7 @@ public class VerticalPhysicsConstraints implements Physics.Constraints {
 
     public void postIterate(Fabric fabric) {
     }
+
+    public void postIterate(FabricArrays arrays) {
+    }
 }
@@ -13,7 +13,7 @@ import eu.beautifulcode.eig.structure.Joint;
  */
 
 public class AboveFloor implements Fabric.Transformation {
-    private double height = 0;
+    double height = 0;
 
     public AboveFloor() {
     }
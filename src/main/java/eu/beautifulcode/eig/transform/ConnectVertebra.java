@@ -21,8 +21,8 @@ import java.util.List;
  */
 
 public class ConnectVertebra implements Fabric.Transformation {
-    private List<Joint> alphaRing;
-    private List<Joint> omegaRing;
+    List<Joint> alphaRing;
+    List<Joint> omegaRing;
 
     /**
      * Connect the omega ring of the alpha vertebra to the alpha ring of the omega vertebra
@@ -43,6 +43,11 @@ public class ConnectVertebra implements Fabric.Transformation {
         }
     }
 
+    ConnectVertebra(List<Joint> alphaRing, List<Joint> omegaRing) {
+        this.alphaRing = alphaRing;
+        this.omegaRing = omegaRing;
+    }
+
     public void transform(Fabric fabric) {
         for (int walk = 0; walk < alphaRing.size(); walk++) {
             Interval connect = fabric.createInterval(alphaRing.get(walk), omegaRing.get(walk), Interval.Role.TEMP);
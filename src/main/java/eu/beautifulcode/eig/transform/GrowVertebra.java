@@ -26,12 +26,12 @@ import java.util.TreeMap;
 
 public class GrowVertebra implements Fabric.Transformation {
     private static final int TICKS_TO_IDEAL = 500;
-    private Map<Interval.Role, Physics.Value> spanMap;
+    Map<Interval.Role, Physics.Value> spanMap;
     private Vertebra vertebra;
-    private boolean rightHanded;
-    private List<Joint> joints;
+    boolean rightHanded;
+    List<Joint> joints;
     private List<Joint> otherJoints;
-    private int ringSize = 10;
+    int ringSize = 10;
     private boolean connecting;
 
     public GrowVertebra(int barCount) {
@@ -43,6 +43,11 @@ public class GrowVertebra implements Fabric.Transformation {
         this.joints = vertebra.getJoints(alpha);
     }
 
+    GrowVertebra(List<Joint> joints, boolean rightHanded) {
+        this.joints = joints;
+        this.rightHanded = rightHanded;
+    }
+
     public void setSpanMap(Map<Interval.Role, Physics.Value> spanMap) {
         this.spanMap = spanMap;
     }
@@ -23,7 +23,7 @@ import java.util.TreeSet;
 
 public class JointMerge implements Fabric.Transformation {
     private static final Logger LOG = Logger.getLogger(JointMerge.class);
-    private Joint jointA, jointB;
+    Joint jointA, jointB;
     private Joint middle;
 
     public JointMerge(Joint jointA, Joint jointB) {
@@ -0,0 +1,26 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.transform;
+
+import eu.beautifulcode.eig.structure.Fabric;
+import eu.beautifulcode.eig.structure.Interval;
+
+/**
+ * Remove the scaffolding which holds the rings of a tube open
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class RingRemover implements Fabric.Transformation {
+
+    public void transform(Fabric fabric) {
+        for (Interval interval : fabric.getIntervals()) {
+            if (interval.getRole() == Interval.Role.SCAFFOLD) {
+                fabric.getMods().getIntervalMod().remove(interval);
+            }
+        }
+    }
+}
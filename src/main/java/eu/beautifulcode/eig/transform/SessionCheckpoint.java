@@ -0,0 +1,330 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.transform;
+
+import eu.beautifulcode.eig.structure.Fablob;
+import eu.beautifulcode.eig.structure.Fabric;
+import eu.beautifulcode.eig.structure.Interval;
+import eu.beautifulcode.eig.structure.Joint;
+import eu.beautifulcode.eig.structure.Physics;
+import eu.beautifulcode.eig.structure.PhysicsValue;
+import eu.beautifulcode.eig.structure.Tetra;
+import eu.beautifulcode.eig.structure.VerticalPhysicsConstraints;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Everything needed to carry on with a session later: the fabric with its pending transformations,
+ * the values of the physics, the ideal spans of the roles and how far the tube has grown.
+ *
+ * Capturing only copies the state into memory, which is quick enough to do between two batches of
+ * physics, and writing it to a file can then be left to another thread while the simulation goes
+ * on.  Only the transformations of this package which a growing session queues can be saved.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class SessionCheckpoint {
+    private static final int MAGIC = 0xFAB05E55;
+    private byte[] bytes;
+    private Fabric fabric;
+    private TubeGrower tubeGrower;
+    private Map<String, Double> physicsValues = new TreeMap<String, Double>();
+
+    /**
+     * Copy the session, which must not be changing while this happens, so call it from the
+     * simulation thread between executions of the transformations.
+     *
+     * @param fabric the fabric, perhaps with transformations pending
+     * @param constraints whose values to keep
+     * @param tubeGrower the growth in progress, or null
+     * @return a checkpoint ready to be written
+     */
+
+    public static SessionCheckpoint capture(Fabric fabric, VerticalPhysicsConstraints constraints, TubeGrower tubeGrower) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(MAGIC);
+            byte[] fablob = Fablob.createIgnoringTransformations(fabric).getBytes();
+            out.writeInt(fablob.length);
+            out.write(fablob);
+            List<PhysicsValue> values = constraints.getPhysicsValues();
+            out.writeInt(values.size());
+            for (PhysicsValue value : values) {
+                out.writeUTF(value.getName());
+                out.writeDouble(value.get());
+            }
+            Map<Interval.Role, Physics.Value> spanMap = tubeGrower != null ? tubeGrower.spanMap : null;
+            for (Fabric.Transformation transformation : fabric.getTransformations()) {
+                if (spanMap == null && transformation instanceof GrowVertebra) {
+                    spanMap = ((GrowVertebra) transformation).spanMap;
+                }
+            }
+            saveSpanMap(spanMap, out);
+            out.writeBoolean(tubeGrower != null);
+            if (tubeGrower != null) {
+                out.writeInt(tubeGrower.girth);
+                out.writeInt(tubeGrower.length);
+                out.writeBoolean(tubeGrower.zigzag);
+                out.writeBoolean(tubeGrower.kleinify);
+                out.writeBoolean(tubeGrower.kleinified);
+            }
+            saveTransformations(fabric, out);
+            out.close();
+            SessionCheckpoint checkpoint = new SessionCheckpoint();
+            checkpoint.bytes = bos.toByteArray();
+            return checkpoint;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static SessionCheckpoint read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        }
+        finally {
+            in.close();
+        }
+        SessionCheckpoint checkpoint = new SessionCheckpoint();
+        checkpoint.bytes = bytes;
+        checkpoint.restore();
+        return checkpoint;
+    }
+
+    /**
+     * Write to a file next to the given one and then rename it, so that the previous checkpoint
+     * survives if this one is interrupted.  Safe to call from any thread.
+     *
+     * @param file where the checkpoint should end up
+     * @throws IOException if it couldn't be written
+     */
+
+    public void write(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            out.write(bytes);
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Couldn't replace " + file);
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Couldn't rename " + temporary + " to " + file);
+        }
+    }
+
+    /**
+     * @return the restored fabric, with its pending transformations queued again
+     */
+
+    public Fabric getFabric() {
+        return fabric;
+    }
+
+    /**
+     * @return the restored growth, or null if there was none
+     */
+
+    public TubeGrower getTubeGrower() {
+        return tubeGrower;
+    }
+
+    /**
+     * Set the physics values that were saved onto the constraints which carry on.
+     *
+     * @param constraints to set
+     */
+
+    public void applyPhysicsValues(VerticalPhysicsConstraints constraints) {
+        for (PhysicsValue value : constraints.getPhysicsValues()) {
+            Double saved = physicsValues.get(value.getName());
+            if (saved != null) {
+                value.set(saved);
+            }
+        }
+    }
+
+    // === the rest is private
+
+    private void restore() throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("This is not a session checkpoint!");
+        }
+        byte[] fablob = new byte[in.readInt()];
+        in.readFully(fablob);
+        fabric = new Fablob(fablob).createFabric(null);
+        int valueCount = in.readInt();
+        while (valueCount-- > 0) {
+            physicsValues.put(in.readUTF(), in.readDouble());
+        }
+        Map<Interval.Role, Physics.Value> spanMap = restoreSpanMap(in);
+        if (in.readBoolean()) {
+            tubeGrower = new TubeGrower(in.readInt(), in.readInt(), in.readBoolean());
+            tubeGrower.kleinify = in.readBoolean();
+            tubeGrower.kleinified = in.readBoolean();
+            tubeGrower.spanMap = spanMap;
+        }
+        restoreTransformations(in, spanMap);
+    }
+
+    private static void saveSpanMap(Map<Interval.Role, Physics.Value> spanMap, DataOutputStream out) throws IOException {
+        out.writeBoolean(spanMap != null);
+        if (spanMap != null) {
+            out.writeInt(spanMap.size());
+            for (Map.Entry<Interval.Role, Physics.Value> entry : spanMap.entrySet()) {
+                out.writeByte(entry.getKey().ordinal());
+                out.writeDouble(entry.getValue().get());
+            }
+        }
+    }
+
+    private static Map<Interval.Role, Physics.Value> restoreSpanMap(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        Map<Interval.Role, Physics.Value> spanMap = new TreeMap<Interval.Role, Physics.Value>();
+        int count = in.readInt();
+        while (count-- > 0) {
+            Interval.Role role = Interval.Role.values()[in.readByte()];
+            spanMap.put(role, new PhysicsValue(role.toString(), in.readDouble()));
+        }
+        return spanMap;
+    }
+
+    private static void saveTransformations(Fabric fabric, DataOutputStream out) throws IOException {
+        Map<Joint, Integer> jointIndex = new IdentityHashMap<Joint, Integer>();
+        for (Joint joint : fabric.getJoints()) {
+            jointIndex.put(joint, jointIndex.size());
+        }
+        Map<Tetra, Integer> tetraIndex = new IdentityHashMap<Tetra, Integer>();
+        for (Tetra tetra : fabric.getTetras()) {
+            tetraIndex.put(tetra, tetraIndex.size());
+        }
+        List<Fabric.Transformation> transformations = fabric.getTransformations();
+        out.writeInt(transformations.size());
+        for (Fabric.Transformation transformation : transformations) {
+            out.writeUTF(transformation.getClass().getSimpleName());
+            if (transformation instanceof GrowVertebra) {
+                GrowVertebra growVertebra = (GrowVertebra) transformation;
+                out.writeBoolean(growVertebra.joints != null);
+                if (growVertebra.joints != null) {
+                    saveJoints(growVertebra.joints, jointIndex, out);
+                    out.writeBoolean(growVertebra.rightHanded);
+                }
+                else {
+                    out.writeInt(growVertebra.ringSize);
+                }
+            }
+            else if (transformation instanceof AboveFloor) {
+                out.writeDouble(((AboveFloor) transformation).height);
+            }
+            else if (transformation instanceof RingRemover) {
+                // nothing to it
+            }
+            else if (transformation instanceof ConnectVertebra) {
+                saveJoints(((ConnectVertebra) transformation).alphaRing, jointIndex, out);
+                saveJoints(((ConnectVertebra) transformation).omegaRing, jointIndex, out);
+            }
+            else if (transformation instanceof JointMerge) {
+                out.writeInt(index(((JointMerge) transformation).jointA, jointIndex));
+                out.writeInt(index(((JointMerge) transformation).jointB, jointIndex));
+            }
+            else if (transformation instanceof TetraAnnihilation) {
+                out.writeInt(index(((TetraAnnihilation) transformation).tetraA, tetraIndex));
+                out.writeInt(index(((TetraAnnihilation) transformation).tetraB, tetraIndex));
+            }
+            else {
+                throw new RuntimeException("Cannot checkpoint a pending " + transformation.getClass().getName());
+            }
+        }
+    }
+
+    private void restoreTransformations(DataInputStream in, Map<Interval.Role, Physics.Value> spanMap) throws IOException {
+        List<Joint> joints = fabric.getJoints();
+        int count = in.readInt();
+        while (count-- > 0) {
+            String type = in.readUTF();
+            Fabric.Transformation transformation;
+            if (type.equals("GrowVertebra")) {
+                GrowVertebra growVertebra;
+                if (in.readBoolean()) {
+                    growVertebra = new GrowVertebra(restoreJoints(joints, in), in.readBoolean());
+                }
+                else {
+                    growVertebra = new GrowVertebra(in.readInt() / 2);
+                }
+                growVertebra.setSpanMap(spanMap);
+                transformation = growVertebra;
+            }
+            else if (type.equals("AboveFloor")) {
+                transformation = new AboveFloor(in.readDouble());
+            }
+            else if (type.equals("RingRemover")) {
+                transformation = new RingRemover();
+            }
+            else if (type.equals("ConnectVertebra")) {
+                transformation = new ConnectVertebra(restoreJoints(joints, in), restoreJoints(joints, in));
+            }
+            else if (type.equals("JointMerge")) {
+                transformation = new JointMerge(joints.get(in.readInt()), joints.get(in.readInt()));
+            }
+            else if (type.equals("TetraAnnihilation")) {
+                List<Tetra> tetras = fabric.getTetras();
+                transformation = new TetraAnnihilation(tetras.get(in.readInt()), tetras.get(in.readInt()));
+            }
+            else {
+                throw new IOException("Unknown transformation " + type);
+            }
+            fabric.addTransformation(transformation);
+        }
+    }
+
+    private static void saveJoints(List<Joint> joints, Map<Joint, Integer> jointIndex, DataOutputStream out) throws IOException {
+        out.writeInt(joints.size());
+        for (Joint joint : joints) {
+            out.writeInt(index(joint, jointIndex));
+        }
+    }
+
+    private static List<Joint> restoreJoints(List<Joint> joints, DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Joint> list = new ArrayList<Joint>(count);
+        while (count-- > 0) {
+            list.add(joints.get(in.readInt()));
+        }
+        return list;
+    }
+
+    private static <T> int index(T t, Map<T, Integer> index) {
+        Integer position = index.get(t);
+        if (position == null) {
+            throw new RuntimeException("A pending transformation refers to something not in the fabric: " + t);
+        }
+        return position;
+    }
+}
@@ -21,7 +21,8 @@ import java.util.List;
 
 public class TetraAnnihilation implements Fabric.Transformation {
     private Logger log = Logger.getLogger(getClass());
-    private Tetra tetraA, tetraB, newTetra;
+    Tetra tetraA, tetraB;
+    private Tetra newTetra;
 
     public TetraAnnihilation(Tetra tetraA, Tetra tetraB) {
         this.tetraA = tetraA;
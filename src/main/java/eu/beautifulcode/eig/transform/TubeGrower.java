@@ -0,0 +1,99 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.transform;
+
+import eu.beautifulcode.eig.structure.Fabric;
+import eu.beautifulcode.eig.structure.Interval;
+import eu.beautifulcode.eig.structure.Physics;
+import eu.beautifulcode.eig.structure.Vertebra;
+
+import java.util.Map;
+
+/**
+ * Build a tube one vertebra at a time, each time waiting for the spans of the last one
+ * to settle, and optionally join the ends together into a klein bottle.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class TubeGrower {
+    int girth;
+    int length;
+    boolean zigzag;
+    boolean kleinify;
+    boolean kleinified;
+    Map<Interval.Role, Physics.Value> spanMap;
+
+    public TubeGrower(int girth, int length, boolean zigzag) {
+        this.girth = girth;
+        this.length = length;
+        this.zigzag = zigzag;
+    }
+
+    public void setSpanMap(Map<Interval.Role, Physics.Value> spanMap) {
+        this.spanMap = spanMap;
+    }
+
+    public void setKleinify(boolean kleinify) {
+        this.kleinify = kleinify;
+    }
+
+    public int getRemaining() {
+        return length;
+    }
+
+    public boolean isFinished() {
+        return length <= 0 && (kleinified || !kleinify);
+    }
+
+    /**
+     * Create the first vertebra, standing on the floor.
+     *
+     * @return a fresh fabric with the transformations queued
+     */
+
+    public Fabric createFabric() {
+        Fabric fabric = new Fabric(null);
+        GrowVertebra growVertebra = new GrowVertebra(girth);
+        growVertebra.setSpanMap(spanMap);
+        fabric.addTransformation(growVertebra);
+        fabric.addTransformation(new AboveFloor(0));
+        length--;
+        return fabric;
+    }
+
+    /**
+     * Add the next vertebra, or finally join the ends, if the fabric has settled from the previous step.
+     *
+     * @param fabric the tube
+     * @return true if the growth is finished
+     */
+
+    public boolean grow(Fabric fabric) {
+        if (isFinished() || fabric.isAnySpanActive() || fabric.hasTransformations()) {
+            return isFinished();
+        }
+        if (length > 0) {
+            Vertebra vertebra = fabric.getVertebras().get(fabric.getVertebras().size() - 1);
+            GrowVertebra growVertebra = new GrowVertebra(vertebra, false, zigzag); // false => omega
+            growVertebra.setSpanMap(spanMap);
+            fabric.addTransformation(growVertebra);
+            length--;
+        }
+        else {
+            kleinify(fabric);
+            kleinified = true;
+        }
+        return isFinished();
+    }
+
+    public static void kleinify(Fabric fabric) {
+        fabric.addTransformation(new RingRemover());
+        Vertebra vertebraA = fabric.getVertebras().get(fabric.getVertebras().size() - 1);
+        Vertebra vertebraB = fabric.getVertebras().get(0);
+        fabric.addTransformation(new ConnectVertebra(vertebraA, vertebraB, true));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.povray;
+
+import eu.beautifulcode.eig.jogl.PointOfView;
+import eu.beautifulcode.eig.structure.Fabric;
+import eu.beautifulcode.eig.structure.FabricSnapshot;
+import eu.beautifulcode.eig.structure.Interval;
+import eu.beautifulcode.eig.structure.Physics;
+import eu.beautifulcode.eig.structure.TensegritySphereFactory;
+import eu.beautifulcode.eig.structure.VerticalPhysicsConstraints;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+/**
+ * Formatting in pieces on other threads must write what formatting in one go would have
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class POVBodyTest {
+
+    @Test
+    public void numbers() {
+        DecimalFormat decimal = new DecimalFormat("#0.0#####");
+        Random random = new Random(7);
+        for (int walk = 0; walk < 10000; walk++) {
+            double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(10) - 3);
+            String expected = decimal.format(value);
+            if (expected.equals("-0.0")) {
+                expected = "0.0";
+            }
+            Assert.assertEquals(expected, FixedFormat.append(value, new StringBuilder()).toString());
+        }
+        Assert.assertEquals("0.000001", FixedFormat.append(0.000001, new StringBuilder()).toString());
+        Assert.assertEquals("-12.05", FixedFormat.append(-12.05, new StringBuilder()).toString());
+        Assert.assertEquals("3.0", FixedFormat.append(3, new StringBuilder()).toString());
+    }
+
+    @Test
+    public void inOrder() throws Exception {
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(8, 1);
+        Physics physics = new Physics(new VerticalPhysicsConstraints());
+        File file = File.createTempFile("body", ".pov");
+        file.deleteOnExit();
+        POVBody body = new POVBody(file);
+        StringBuilder expected = new StringBuilder();
+        for (int frame = 0; frame < 10; frame++) {
+            final FabricSnapshot snapshot = fabric.createSnapshot();
+            String before = "#if(frame_number=" + frame + ")\n";
+            body.write(before);
+            body.write(snapshot.getIntervalCount(), new POVBody.Pieces() {
+                public void append(int from, int to, StringBuilder out) {
+                    POVScriptGenerator.appendIntervals(snapshot, from, to, out);
+                }
+            });
+            body.write("#end\n");
+            body.flush();
+            expected.append(before);
+            POVScriptGenerator.appendIntervals(snapshot, 0, snapshot.getIntervalCount(), expected);
+            expected.append("#end\n");
+            fabric.executeTransformations(physics);
+        }
+        body.close();
+        body.awaitClosed();
+        Assert.assertEquals(expected.toString(), read(file));
+    }
+
+    @Test
+    public void compact() throws Exception {
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(4, 1);
+        FabricSnapshot snapshot = fabric.createSnapshot();
+        POVScriptGenerator generator = new POVScriptGenerator(new File("POV"), new PointOfView(10));
+        generator.setCompact(true);
+        StringWriter written = new StringWriter();
+        PrintWriter out = new PrintWriter(written);
+        generator.write(snapshot, out);
+        out.close();
+        String script = written.toString();
+        Assert.assertTrue(script.contains("#declare J = array[" + snapshot.getJointCount() + "] {\n"));
+        int calls = 0;
+        for (String line : script.split("\n")) {
+            if (line.matches("[A-Z]+\\(J\\[\\d+\\], J\\[\\d+\\]\\)")) {
+                calls++;
+            }
+        }
+        int expected = 0;
+        for (int walk = 0; walk < snapshot.getIntervalCount(); walk++) {
+            if (snapshot.getRole(walk) != Interval.Role.TEMP && snapshot.getRole(walk) != Interval.Role.CROSS) {
+                expected++;
+            }
+        }
+        Assert.assertEquals(expected, calls);
+    }
+
+    @Test
+    public void imageWritten() throws Exception {
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(4, 1);
+        FabricSnapshot snapshot = fabric.createSnapshot();
+        File root = File.createTempFile("pov", "");
+        Assert.assertTrue(root.delete() && root.mkdir());
+        POVScriptGenerator generator = new POVScriptGenerator(root, new PointOfView(10));
+        generator.recordImage();
+        generator.visit(snapshot);
+        generator.endFrame();
+        generator.awaitWritten();
+        StringWriter written = new StringWriter();
+        PrintWriter out = new PrintWriter(written);
+        generator.write(snapshot, out);
+        out.close();
+        File[] images = root.listFiles();
+        Assert.assertEquals(1, images.length);
+        Assert.assertEquals(written.toString(), read(new File(images[0], POVFiles.Script.BODY.getFileName())));
+        for (File image : images) {
+            for (File file : image.listFiles()) {
+                Assert.assertTrue(file.delete());
+            }
+            Assert.assertTrue(image.delete());
+        }
+        Assert.assertTrue(root.delete());
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int length = 0;
+            while (length < bytes.length) {
+                length += in.read(bytes, length, bytes.length - length);
+            }
+        }
+        finally {
+            in.close();
+        }
+        return new String(bytes, "US-ASCII");
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A sphere three times as stiff as usual blows up with plain ticks, but should settle when the
+ * ticks are divided where necessary.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class AdaptiveIntegratorTest {
+
+    @Test
+    public void stiffSphere() throws Exception {
+        Assert.assertFalse(settles(new EulerIntegrator()));
+        Assert.assertTrue(settles(new AdaptiveIntegrator(new EulerIntegrator())));
+    }
+
+    private static boolean settles(ArrayPhysics.Integrator integrator) {
+        VerticalPhysicsConstraints constraints = new VerticalPhysicsConstraints();
+        constraints.getElasticFactor().set(3);
+        ArrayPhysics physics = new ArrayPhysics(constraints);
+        physics.setIntegrator(integrator);
+        physics.setIterations(100);
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(4, 1);
+        try {
+            while (!physics.isAsleep(fabric) && fabric.getAge() < 20000) {
+                fabric.executeTransformations(physics);
+            }
+        }
+        catch (IllegalStateException e) {
+            return false; // blew up
+        }
+        return physics.isAsleep(fabric);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import eu.beautifulcode.eig.transform.GrowVertebra;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The packed physics must move joints exactly like the object physics does
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class ArrayPhysicsTest {
+    private static final double ACCURACY = 1e-9;
+
+    @Test
+    public void sphere() throws Exception {
+        Fabric objectFabric = new TensegritySphereFactory(null).createSphere(2, 1);
+        Fabric arrayFabric = new TensegritySphereFactory(null).createSphere(2, 1);
+        compare(objectFabric, arrayFabric, 200);
+    }
+
+    @Test
+    public void tube() throws Exception {
+        compare(createTube(), createTube(), 300);
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        Fabric serialFabric = new TensegritySphereFactory(null).createSphere(6, 1);
+        Fabric parallelFabric = new TensegritySphereFactory(null).createSphere(6, 1);
+        ArrayPhysics serial = new ArrayPhysics(new VerticalPhysicsConstraints());
+        ArrayPhysics parallel = new ArrayPhysics(new VerticalPhysicsConstraints());
+        parallel.setThreads(4);
+        serial.setIterations(10);
+        parallel.setIterations(10);
+        for (int walk = 0; walk < 10; walk++) {
+            serialFabric.executeTransformations(serial);
+            parallelFabric.executeTransformations(parallel);
+        }
+        parallel.setThreads(1);
+        for (int walk = 0; walk < serialFabric.getJoints().size(); walk++) {
+            Joint expected = serialFabric.getJoints().get(walk);
+            Joint actual = parallelFabric.getJoints().get(walk);
+            Assert.assertEquals(expected.location.x, actual.location.x, 1e-6);
+            Assert.assertEquals(expected.location.y, actual.location.y, 1e-6);
+            Assert.assertEquals(expected.location.z, actual.location.z, 1e-6);
+        }
+    }
+
+    private static Fabric createTube() {
+        Fabric fabric = new Fabric(null);
+        GrowVertebra grow = new GrowVertebra(6);
+        fabric.addTransformation(grow);
+        fabric.executeTransformations(null);
+        fabric.addTransformation(new GrowVertebra(grow.getVertebra(), false, true));
+        fabric.executeTransformations(null);
+        return fabric;
+    }
+
+    private static void compare(Fabric objectFabric, Fabric arrayFabric, int ticks) {
+        Physics physics = new Physics(new VerticalPhysicsConstraints());
+        Physics arrayPhysics = new ArrayPhysics(new VerticalPhysicsConstraints());
+        physics.setIterations(10);
+        arrayPhysics.setIterations(10);
+        for (int walk = 0; walk < ticks / 10; walk++) {
+            objectFabric.executeTransformations(physics);
+            arrayFabric.executeTransformations(arrayPhysics);
+        }
+        Assert.assertEquals(objectFabric.getAge(), arrayFabric.getAge());
+        Assert.assertEquals(objectFabric.getJoints().size(), arrayFabric.getJoints().size());
+        for (int walk = 0; walk < objectFabric.getJoints().size(); walk++) {
+            Joint expected = objectFabric.getJoints().get(walk);
+            Joint actual = arrayFabric.getJoints().get(walk);
+            Assert.assertEquals(expected.location.x, actual.location.x, ACCURACY);
+            Assert.assertEquals(expected.location.y, actual.location.y, ACCURACY);
+            Assert.assertEquals(expected.location.z, actual.location.z, ACCURACY);
+            Assert.assertEquals(expected.velocity.z, actual.velocity.z, ACCURACY);
+        }
+        for (int walk = 0; walk < objectFabric.getIntervals().size(); walk++) {
+            Span expected = objectFabric.getIntervals().get(walk).span;
+            Span actual = arrayFabric.getIntervals().get(walk).span;
+            Assert.assertEquals(expected.stress, actual.stress, ACCURACY);
+        }
+    }
+}
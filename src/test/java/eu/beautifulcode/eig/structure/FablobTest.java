@@ -0,0 +1,152 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+
+/**
+ * A fabric too big for shorts must come back from a fablob just as it went in, and one saved in the
+ * first version of the format must still come back, also after being saved again in the second
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class FablobTest {
+
+    @Test
+    public void bigRoundTrip() throws Exception {
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(16, 1);
+        Assert.assertTrue(fabric.getIntervals().size() > Short.MAX_VALUE);
+        fabric.getIntervals().get(7).span.setIdeal(1.5, 100);
+        fabric.getIntervals().get(7).span.setIdeal(0.5, 300);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        new Fablob(fabric).write(out);
+        out.close();
+        Fabric copy = Fablob.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray()))).createFabric(null);
+        Assert.assertEquals(fabric.getAge(), copy.getAge());
+        Assert.assertEquals(fabric.getJoints().size(), copy.getJoints().size());
+        for (int walk = 0; walk < fabric.getJoints().size(); walk++) {
+            Joint joint = fabric.getJoints().get(walk);
+            Joint copyJoint = copy.getJoints().get(walk);
+            Assert.assertEquals(joint.who, copyJoint.who);
+            Assert.assertEquals(joint.location.x, copyJoint.location.x, 0);
+            Assert.assertEquals(joint.location.y, copyJoint.location.y, 0);
+            Assert.assertEquals(joint.location.z, copyJoint.location.z, 0);
+        }
+        Assert.assertEquals(fabric.getIntervals().size(), copy.getIntervals().size());
+        for (int walk = 0; walk < fabric.getIntervals().size(); walk++) {
+            Interval interval = fabric.getIntervals().get(walk);
+            Interval copyInterval = copy.getIntervals().get(walk);
+            Assert.assertEquals(interval.role, copyInterval.role);
+            Assert.assertEquals(interval.alpha.who, copyInterval.alpha.who);
+            Assert.assertEquals(interval.omega.who, copyInterval.omega.who);
+            Assert.assertEquals(interval.span.ideal, copyInterval.span.ideal, 0);
+            Assert.assertEquals(interval.span.getUltimateIdeal(), copyInterval.span.getUltimateIdeal(), 0);
+            Assert.assertEquals(interval.span.getChainSize(), copyInterval.span.getChainSize());
+        }
+        Assert.assertEquals(fabric.getFaces().size(), copy.getFaces().size());
+    }
+
+    @Test
+    public void mapped() throws Exception {
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(3, 1);
+        File file = File.createTempFile("fablob", ".fab");
+        file.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            new Fablob(fabric).write(out);
+        }
+        finally {
+            out.close();
+        }
+        Fablob fablob = Fablob.map(file);
+        Assert.assertArrayEquals(new Fablob(fabric).getBytes(), fablob.getBytes());
+        Fabric copy = fablob.createFabric(null);
+        Assert.assertEquals(fabric.getIntervals().size(), copy.getIntervals().size());
+        Joint last = fabric.getJoints().get(fabric.getJoints().size() - 1);
+        Joint copyLast = copy.getJoints().get(copy.getJoints().size() - 1);
+        Assert.assertEquals(last.location.z, copyLast.location.z, 0);
+        Assert.assertEquals(last.intervalMass, copyLast.intervalMass, 0);
+    }
+
+    @Test
+    public void version1() throws Exception {
+        InputStream in = FablobTest.class.getResourceAsStream("octahedron-v1.fab");
+        Fabric fabric;
+        try {
+            fabric = Fablob.read(new DataInputStream(in)).createFabric(null);
+        }
+        finally {
+            in.close();
+        }
+        Assert.assertEquals(30, fabric.getAge());
+        Assert.assertEquals(6, fabric.getJoints().size());
+        Assert.assertEquals(12, fabric.getIntervals().size());
+        Assert.assertEquals(8, fabric.getFaces().size());
+        Assert.assertEquals(2, fabric.getIntervals().get(0).span.getChainSize());
+        Assert.assertEquals(0.9, fabric.getIntervals().get(0).span.getUltimateIdeal(), 0);
+        Assert.assertEquals(1, fabric.getIntervals().get(5).span.getChainSize());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        new Fablob(fabric).write(out);
+        out.close();
+        Fabric copy = Fablob.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray()))).createFabric(null);
+        Assert.assertEquals(fabric.getAge(), copy.getAge());
+        Assert.assertEquals(fabric.getJoints().size(), copy.getJoints().size());
+        for (int walk = 0; walk < fabric.getJoints().size(); walk++) {
+            Joint joint = fabric.getJoints().get(walk);
+            Joint copyJoint = copy.getJoints().get(walk);
+            Assert.assertEquals(joint.who, copyJoint.who);
+            Assert.assertEquals(0, joint.location.distanceTo(copyJoint.location), 0);
+            Assert.assertEquals(0, joint.velocity.distanceTo(copyJoint.velocity), 0);
+            Assert.assertEquals(joint.intervalMass, copyJoint.intervalMass, 0);
+        }
+        Assert.assertEquals(fabric.getIntervals().size(), copy.getIntervals().size());
+        for (int walk = 0; walk < fabric.getIntervals().size(); walk++) {
+            Interval interval = fabric.getIntervals().get(walk);
+            Interval copyInterval = copy.getIntervals().get(walk);
+            Assert.assertEquals(interval.role, copyInterval.role);
+            Assert.assertEquals(interval.alpha.who, copyInterval.alpha.who);
+            Assert.assertEquals(interval.omega.who, copyInterval.omega.who);
+            Span span = interval.span;
+            Span copySpan = copyInterval.span;
+            Assert.assertEquals(span.actual, copySpan.actual, 0);
+            Assert.assertEquals(span.ideal, copySpan.ideal, 0);
+            Assert.assertEquals(span.stress, copySpan.stress, 0);
+            Assert.assertEquals(span.rampCount, copySpan.rampCount);
+            if (span.rampCount > 0) {
+                Assert.assertEquals(span.rampInitial, copySpan.rampInitial, 0);
+                Assert.assertEquals(span.rampEnd, copySpan.rampEnd);
+            }
+            for (int ramp = 0; ramp < span.rampCount; ramp++) {
+                Assert.assertEquals(span.rampValue[span.rampHead + ramp], copySpan.rampValue[copySpan.rampHead + ramp], 0);
+                Assert.assertEquals(span.rampTicks[span.rampHead + ramp], copySpan.rampTicks[copySpan.rampHead + ramp]);
+            }
+        }
+        Assert.assertEquals(fabric.getFaces().size(), copy.getFaces().size());
+        for (int walk = 0; walk < fabric.getFaces().size(); walk++) {
+            Face face = fabric.getFaces().get(walk);
+            Face copyFace = copy.getFaces().get(walk);
+            Assert.assertEquals(face.order, copyFace.order);
+            Assert.assertEquals(face.chirality, copyFace.chirality);
+            Assert.assertEquals(face.joints.size(), copyFace.joints.size());
+            for (int joint = 0; joint < face.joints.size(); joint++) {
+                Assert.assertEquals(face.joints.get(joint).who, copyFace.joints.get(joint).who);
+            }
+            Assert.assertEquals(face.stressInterval == null, copyFace.stressInterval == null);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import eu.beautifulcode.eig.transform.TubeGrower;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fabric's neighborhood answers must match what a full scan would find, even after joints
+ * have been merged away while making a klein bottle.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class FabricIndexTest {
+
+    @Test
+    public void klein() throws Exception {
+        TubeGrower tubeGrower = new TubeGrower(6, 4, true);
+        tubeGrower.setKleinify(true);
+        Fabric fabric = tubeGrower.createFabric();
+        Physics physics = new Physics(new VerticalPhysicsConstraints());
+        physics.setIterations(10);
+        int ticks = 0;
+        while (!tubeGrower.isFinished() || fabric.hasTransformations() || fabric.isAnySpanActive()) {
+            fabric.executeTransformations(physics);
+            tubeGrower.grow(fabric);
+            if (ticks++ > 20000) {
+                Assert.fail("Never finished");
+            }
+        }
+        Assert.assertEquals(48, fabric.getJoints().size());
+        for (Joint joint : fabric.getJoints()) {
+            List<Interval> scanned = new ArrayList<Interval>();
+            for (Interval interval : fabric.getIntervals()) {
+                if (interval.contains(joint) && interval.isReal()) {
+                    scanned.add(interval);
+                }
+            }
+            List<Interval> indexed = fabric.getIntervals(joint);
+            Assert.assertEquals(scanned.size(), indexed.size());
+            Assert.assertTrue(indexed.containsAll(scanned));
+            for (Interval interval : scanned) {
+                Assert.assertSame(interval, fabric.getInterval(interval.alpha, interval.omega));
+            }
+            int faceCount = 0;
+            for (Face face : fabric.getFaces()) {
+                if (face.contains(joint)) {
+                    faceCount++;
+                }
+            }
+            Assert.assertEquals(faceCount, fabric.getFaces(joint).size());
+        }
+    }
+}
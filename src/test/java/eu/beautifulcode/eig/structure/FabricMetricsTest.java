@@ -0,0 +1,37 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The metrics of a fabric should account for every execution of its transformations
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class FabricMetricsTest {
+
+    @Test
+    public void sampleEveryExecution() throws Exception {
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(3, 1);
+        FabricMetrics metrics = new FabricMetrics();
+        fabric.setMetrics(metrics);
+        ArrayPhysics physics = new ArrayPhysics(new VerticalPhysicsConstraints());
+        physics.setIterations(10);
+        for (int walk = 0; walk < 5; walk++) {
+            fabric.executeTransformations(physics);
+        }
+        Assert.assertEquals(5, metrics.getSampleCount());
+        FabricMetrics.Sample sample = metrics.getLast();
+        Assert.assertEquals(fabric.getAge(), sample.getAge());
+        Assert.assertEquals(10, sample.getIterations());
+        Assert.assertTrue(sample.getMillis(FabricMetrics.Pass.PHYSICS) >= sample.getMillis(FabricMetrics.Pass.INTERVALS));
+        Assert.assertEquals(sample.getMillis(FabricMetrics.Pass.PHYSICS) / 10, sample.getMillisPerTick(FabricMetrics.Pass.PHYSICS), 1e-12);
+        Assert.assertTrue(sample.getKineticEnergy() > 0);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A published snapshot must describe the fabric at that moment and then never change
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class FabricSnapshotTest {
+
+    @Test
+    public void publish() throws Exception {
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(2, 1);
+        Physics physics = new Physics(new VerticalPhysicsConstraints());
+        Assert.assertNull(fabric.getSnapshot());
+        fabric.setPublishSnapshots(true);
+        fabric.executeTransformations(physics);
+        FabricSnapshot snapshot = fabric.getSnapshot();
+        Assert.assertNotNull(snapshot);
+        Assert.assertEquals(fabric.getAge(), snapshot.getAge());
+        Assert.assertEquals(fabric.getJoints().size(), snapshot.getJointCount());
+        Assert.assertEquals(fabric.getIntervals().size(), snapshot.getIntervalCount());
+        double x = snapshot.getX(0);
+        Assert.assertEquals(fabric.getJoints().get(0).location.x, x, 0);
+        for (int walk = 0; walk < snapshot.getIntervalCount(); walk++) {
+            Interval interval = fabric.getIntervals().get(walk);
+            Assert.assertSame(interval.alpha, fabric.getJoints().get(snapshot.getAlpha(walk)));
+            Assert.assertSame(interval.omega, fabric.getJoints().get(snapshot.getOmega(walk)));
+            Assert.assertEquals(interval.role, snapshot.getRole(walk));
+            Assert.assertEquals(interval.span.stress, snapshot.getStress(walk), 0);
+        }
+        for (int walk = 0; walk < 10; walk++) {
+            fabric.executeTransformations(physics);
+        }
+        Assert.assertNotSame(snapshot, fabric.getSnapshot());
+        Assert.assertEquals(x, snapshot.getX(0), 0);
+        Assert.assertEquals(fabric.getAge(), fabric.getSnapshot().getAge());
+    }
+}
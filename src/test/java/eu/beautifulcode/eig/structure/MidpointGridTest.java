@@ -0,0 +1,89 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import eu.beautifulcode.eig.math.Arrow;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The grid must find exactly the intervals that looking at all of them would, also after moving
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class MidpointGridTest {
+
+    @Test
+    public void sameAsLookingEverywhere() throws Exception {
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(4, 1);
+        Physics physics = new Physics(new VerticalPhysicsConstraints());
+        physics.setIterations(50);
+        Arrow gaze = new Arrow(1, 1, 0);
+        gaze.normalize();
+        for (int walk = 0; walk < 5; walk++) {
+            FabricSnapshot snapshot = fabric.createSnapshot();
+            MidpointGrid grid = new MidpointGrid(snapshot, 0.2);
+            Assert.assertEquals(snapshot.getIntervalCount(), grid.getIntervalCount());
+            Arrow eye = new Arrow();
+            snapshot.getLocation(walk, eye);
+            for (double radius = 0.1; radius < 3; radius *= 2) {
+                Assert.assertEquals(everywhere(snapshot, eye, null, 0, radius), found(grid, eye, null, 0, radius));
+                Assert.assertEquals(everywhere(snapshot, eye, gaze, 0.5, radius), found(grid, eye, gaze, 0.5, radius));
+            }
+            fabric.executeTransformations(physics);
+        }
+    }
+
+    @Test
+    public void publishedWithSnapshot() throws Exception {
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(4, 1);
+        fabric.setPublishSnapshots(true);
+        fabric.setMidpointCellSize(0.2);
+        fabric.executeTransformations(new Physics(new VerticalPhysicsConstraints()));
+        FabricSnapshot snapshot = fabric.getSnapshot();
+        MidpointGrid grid = snapshot.getMidpointGrid();
+        Assert.assertNotNull(grid);
+        Assert.assertEquals(snapshot.getIntervalCount(), grid.getIntervalCount());
+        Arrow eye = new Arrow();
+        snapshot.getLocation(0, eye);
+        Assert.assertEquals(everywhere(snapshot, eye, null, 0, 0.8), found(grid, eye, null, 0, 0.8));
+        Assert.assertNull(fabric.createSnapshot().getMidpointGrid());
+    }
+
+    private static Set<Integer> found(MidpointGrid grid, Arrow eye, Arrow gaze, double halfAngle, double radius) {
+        final Set<Integer> found = new TreeSet<Integer>();
+        MidpointGrid.Visitor visitor = new MidpointGrid.Visitor() {
+            public void visit(int interval) {
+                Assert.assertTrue(found.add(interval));
+            }
+        };
+        if (gaze == null) {
+            grid.visitNear(eye, radius, visitor);
+        }
+        else {
+            grid.visitInView(eye, gaze, halfAngle, radius, visitor);
+        }
+        return found;
+    }
+
+    private static Set<Integer> everywhere(FabricSnapshot snapshot, Arrow eye, Arrow gaze, double halfAngle, double radius) {
+        Set<Integer> found = new TreeSet<Integer>();
+        Arrow midpoint = new Arrow();
+        for (int walk = 0; walk < snapshot.getIntervalCount(); walk++) {
+            snapshot.getMidpoint(walk, midpoint);
+            midpoint.sub(eye);
+            double distance = midpoint.span();
+            if (distance <= radius && (gaze == null || distance == 0 || midpoint.dot(gaze) >= Math.cos(halfAngle) * distance)) {
+                found.add(walk);
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A fabric that stops moving should go to sleep, and wake up again when disturbed
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class PhysicsSleepTest {
+
+    @Test
+    public void sleepAndWake() throws Exception {
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(2, 1);
+        VerticalPhysicsConstraints constraints = new VerticalPhysicsConstraints();
+        Physics physics = new ArrayPhysics(constraints);
+        physics.setIterations(100);
+        for (int walk = 0; walk < 1000 && !physics.isAsleep(fabric); walk++) {
+            fabric.executeTransformations(physics);
+        }
+        Assert.assertTrue("Never settled", fabric.isSettled());
+        long age = fabric.getAge();
+        fabric.executeTransformations(physics);
+        Assert.assertEquals(age, fabric.getAge());
+        constraints.getPhysicsValues().get(0).set(0.0001);
+        Assert.assertFalse(physics.isAsleep(fabric));
+        fabric.executeTransformations(physics);
+        Assert.assertTrue(fabric.getAge() > age);
+        while (!physics.isAsleep(fabric)) {
+            fabric.executeTransformations(physics);
+        }
+        age = fabric.getAge();
+        fabric.addTransformation(new Fabric.Transformation() {
+            public void transform(Fabric fabric) {
+            }
+        });
+        Assert.assertFalse(fabric.isSettled());
+        fabric.executeTransformations(physics);
+        Assert.assertTrue(fabric.getAge() > age);
+    }
+}
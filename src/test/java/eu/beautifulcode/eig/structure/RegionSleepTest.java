@@ -0,0 +1,102 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import eu.beautifulcode.eig.math.Arrow;
+import eu.beautifulcode.eig.transform.GrowVertebra;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A small disturbance in a settled fabric should only wake the regions around it, also when
+ * removing something moves everything after it to another place in the arrays
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class RegionSleepTest {
+
+    @Test
+    public void localDisturbance() throws Exception {
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(4, 1);
+        ArrayPhysics physics = new ArrayPhysics(new VerticalPhysicsConstraints());
+        physics.setRegionSleep(true);
+        physics.setIterations(100);
+        settle(fabric, physics);
+        Assert.assertTrue(physics.getRegionCount() > 1);
+        Assert.assertEquals(physics.getRegionCount(), physics.getSleepingRegionCount());
+        Arrow[] before = new Arrow[fabric.getJoints().size()];
+        for (int walk = 0; walk < before.length; walk++) {
+            before[walk] = new Arrow(fabric.getJoints().get(walk).getLocation());
+        }
+        Span span = fabric.getIntervals().get(0).getSpan();
+        span.setIdeal(span.getUltimateIdeal() * 1.00001, 0);
+        fabric.wake();
+        physics.setIterations(1);
+        fabric.executeTransformations(physics);
+        Assert.assertTrue(physics.getSleepingRegionCount() > 0);
+        Assert.assertTrue(physics.getSleepingRegionCount() < physics.getRegionCount());
+        physics.setIterations(100);
+        settle(fabric, physics);
+        int moved = 0;
+        for (int walk = 0; walk < before.length; walk++) {
+            if (!before[walk].equals(fabric.getJoints().get(walk).getLocation())) {
+                moved++;
+            }
+        }
+        Assert.assertTrue(moved > 0);
+        Assert.assertTrue(moved < before.length / 2);
+    }
+
+    @Test
+    public void removalWhileAsleep() throws Exception {
+        Fabric fabric = new Fabric(null);
+        GrowVertebra grow = new GrowVertebra(6);
+        fabric.addTransformation(grow);
+        fabric.executeTransformations(null);
+        for (int walk = 1; walk < 12; walk++) {
+            grow = new GrowVertebra(grow.getVertebra(), false, true);
+            fabric.addTransformation(grow);
+            fabric.executeTransformations(null);
+        }
+        ArrayPhysics physics = new ArrayPhysics(new VerticalPhysicsConstraints());
+        physics.setRegionSleep(true);
+        physics.setIterations(100);
+        settle(fabric, physics);
+        Assert.assertEquals(physics.getRegionCount(), physics.getSleepingRegionCount());
+        final Interval first = fabric.getIntervals().get(0);
+        fabric.addTransformation(new Fabric.Transformation() {
+            public void transform(Fabric fabric) {
+                fabric.getMods().getIntervalMod().remove(first);
+            }
+        });
+        physics.setIterations(1);
+        fabric.executeTransformations(physics);
+        int woken = firstVertebra(fabric, first.alpha) == firstVertebra(fabric, first.omega) ? 1 : 2;
+        Assert.assertEquals(physics.getRegionCount() - woken, physics.getSleepingRegionCount());
+        physics.setIterations(100);
+        settle(fabric, physics);
+        for (Joint joint : fabric.getJoints()) {
+            Assert.assertFalse(Double.isNaN(joint.getLocation().x));
+        }
+    }
+
+    private static Vertebra firstVertebra(Fabric fabric, Joint joint) {
+        for (Vertebra vertebra : fabric.getVertebras()) {
+            if (vertebra.getJoints().contains(joint)) {
+                return vertebra;
+            }
+        }
+        return null;
+    }
+
+    private static void settle(Fabric fabric, ArrayPhysics physics) {
+        while (!physics.isAsleep(fabric)) {
+            Assert.assertTrue("Never settled", fabric.getAge() < 50000);
+            fabric.executeTransformations(physics);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Ramps should run one after the other, and the schedule should only know about spans that ramp
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class SpanScheduleTest {
+
+    @Test
+    public void ultimateIsTheLastRamp() throws Exception {
+        Span span = new Span(1, 1, 0);
+        span.setIdeal(2, 10);
+        span.setIdeal(3, 10);
+        Assert.assertEquals(3, span.getUltimateIdeal(), 0);
+        span.adjustIdeal(2);
+        Assert.assertEquals(6, span.getUltimateIdeal(), 0);
+        Assert.assertEquals(2, span.getChainSize());
+    }
+
+    @Test
+    public void onlyRampingSpans() throws Exception {
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(2, 1);
+        SpanSchedule schedule = fabric.schedule;
+        fabric.age++;
+        Assert.assertEquals(0, schedule.experienceTime(fabric));
+        Span span = fabric.getIntervals().get(0).getSpan();
+        double start = span.getCurrentIdeal();
+        span.setIdeal(start * 2, 10);
+        span.setIdeal(start, 10);
+        for (int walk = 0; walk < 11; walk++) {
+            fabric.age++;
+            Assert.assertEquals(1, schedule.experienceTime(fabric));
+        }
+        Assert.assertEquals(start * 2, span.getCurrentIdeal(), 1e-12);
+        int ticks = 0;
+        do {
+            fabric.age++;
+            ticks++;
+        }
+        while (schedule.experienceTime(fabric) > 0);
+        Assert.assertEquals(13, ticks); // the ramp itself, starting it, and moving on to the next
+        Assert.assertEquals(1, schedule.getFinished().size());
+        Assert.assertEquals(start, span.getCurrentIdeal(), 0);
+        Assert.assertFalse(span.isActive());
+    }
+}
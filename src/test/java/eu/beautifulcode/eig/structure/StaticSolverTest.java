@@ -0,0 +1,31 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The shape found by the static solver should be one where the physics has nothing left to do.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class StaticSolverTest {
+
+    @Test
+    public void sphereAtRest() throws Exception {
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(3, 1);
+        VerticalPhysicsConstraints constraints = new VerticalPhysicsConstraints();
+        StaticSolver solver = new StaticSolver(constraints);
+        Assert.assertTrue(solver.solve(fabric));
+        ArrayPhysics physics = new ArrayPhysics(constraints);
+        for (int walk = 0; walk <= Physics.SETTLE_TICKS; walk++) {
+            fabric.executeTransformations(physics);
+        }
+        Assert.assertTrue(physics.isAsleep(fabric));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.structure;
+
+import eu.beautifulcode.eig.math.Arrow;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Seeking in a recorded trajectory must find the fabric as it was
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class TrajectoryTest {
+    private List<FabricSnapshot> snapshots = new ArrayList<FabricSnapshot>();
+
+    @Test
+    public void seek() throws Exception {
+        File file = record(0, 0);
+        TrajectoryReader reader = new TrajectoryReader(file);
+        Assert.assertEquals(snapshots.size(), reader.getFrameCount());
+        for (int frame = 0; frame < snapshots.size(); frame++) {
+            double tolerance = frame % 4 == 0 ? 0 : 1e-6;
+            check(reader, snapshots.get(frame), tolerance, 1e-6);
+        }
+        Assert.assertEquals(snapshots.get(5).getAge(), reader.seek(snapshots.get(6).getAge() - 1, null).getAge());
+        reader.close();
+    }
+
+    @Test
+    public void quantized() throws Exception {
+        long plain = record(0, 0).length();
+        snapshots.clear();
+        File file = record(1e-4, 1e-3);
+        Assert.assertTrue(file.length() < plain);
+        TrajectoryReader reader = new TrajectoryReader(file);
+        Assert.assertEquals(snapshots.size(), reader.getFrameCount());
+        for (int frame = 0; frame < snapshots.size(); frame++) {
+            double tolerance = 0;
+            if (frame % 4 != 0) {
+                Fabric keyframe = reader.seek(snapshots.get(frame - frame % 4).getAge(), null);
+                Arrow center = new Arrow();
+                keyframe.getCenter(center);
+                tolerance = 1.0001e-4 * keyframe.getRadiusFrom(center);
+            }
+            check(reader, snapshots.get(frame), tolerance, frame % 4 == 0 ? 0 : 1.0001e-3);
+        }
+        reader.close();
+    }
+
+    private File record(double positionError, double stressError) throws Exception {
+        File file = File.createTempFile("trajectory", ".traj");
+        file.deleteOnExit();
+        Fabric fabric = new TensegritySphereFactory(null).createSphere(2, 1);
+        Physics physics = new Physics(new VerticalPhysicsConstraints());
+        physics.setIterations(3);
+        TrajectoryWriter writer = new TrajectoryWriter(file, 4);
+        if (positionError > 0) {
+            writer.setQuantization(positionError, stressError);
+        }
+        for (int walk = 0; walk < 30; walk++) {
+            fabric.executeTransformations(physics);
+            writer.record(fabric);
+            snapshots.add(fabric.createSnapshot());
+        }
+        writer.close();
+        return file;
+    }
+
+    private void check(TrajectoryReader reader, FabricSnapshot snapshot, double tolerance, double stressTolerance) throws Exception {
+        Fabric copy = reader.seek(snapshot.getAge(), null);
+        Assert.assertEquals(snapshot.getAge(), copy.getAge());
+        for (int joint = 0; joint < snapshot.getJointCount(); joint++) {
+            Assert.assertEquals(snapshot.getX(joint), copy.getJoints().get(joint).location.x, tolerance);
+            Assert.assertEquals(snapshot.getY(joint), copy.getJoints().get(joint).location.y, tolerance);
+            Assert.assertEquals(snapshot.getZ(joint), copy.getJoints().get(joint).location.z, tolerance);
+        }
+        for (int interval = 0; interval < snapshot.getIntervalCount(); interval++) {
+            Assert.assertEquals(snapshot.getStress(interval), copy.getIntervals().get(interval).span.stress, stressTolerance);
+        }
+    }
+}
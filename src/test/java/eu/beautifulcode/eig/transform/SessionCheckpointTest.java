@@ -0,0 +1,70 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package eu.beautifulcode.eig.transform;
+
+import eu.beautifulcode.eig.structure.Fabric;
+import eu.beautifulcode.eig.structure.Physics;
+import eu.beautifulcode.eig.structure.VerticalPhysicsConstraints;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * A growth restored from a checkpoint taken with transformations pending must carry on exactly
+ * as the original does
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class SessionCheckpointTest {
+
+    @Test
+    public void carryOn() throws Exception {
+        VerticalPhysicsConstraints constraints = new VerticalPhysicsConstraints();
+        constraints.getAirDrag().set(0.003);
+        TubeGrower tubeGrower = new TubeGrower(4, 4, true);
+        tubeGrower.setKleinify(true);
+        Fabric fabric = tubeGrower.createFabric();
+        Physics physics = new Physics(constraints);
+        physics.setIterations(20);
+        while (true) {
+            tubeGrower.grow(fabric);
+            if (tubeGrower.getRemaining() <= 1 && fabric.hasTransformations()) {
+                break;
+            }
+            fabric.executeTransformations(physics);
+        }
+        SessionCheckpoint checkpoint = SessionCheckpoint.capture(fabric, constraints, tubeGrower);
+        File file = File.createTempFile("session", ".checkpoint");
+        file.deleteOnExit();
+        checkpoint.write(file);
+        SessionCheckpoint restored = SessionCheckpoint.read(file);
+        VerticalPhysicsConstraints restoredConstraints = new VerticalPhysicsConstraints();
+        restored.applyPhysicsValues(restoredConstraints);
+        Assert.assertEquals(0.003, restoredConstraints.getAirDrag().get(), 0);
+        Fabric copy = restored.getFabric();
+        TubeGrower copyGrower = restored.getTubeGrower();
+        Assert.assertEquals(fabric.getTransformations().size(), copy.getTransformations().size());
+        Assert.assertEquals(tubeGrower.getRemaining(), copyGrower.getRemaining());
+        Physics copyPhysics = new Physics(restoredConstraints);
+        copyPhysics.setIterations(20);
+        for (int walk = 0; walk < 300; walk++) {
+            tubeGrower.grow(fabric);
+            fabric.executeTransformations(physics);
+            copyGrower.grow(copy);
+            copy.executeTransformations(copyPhysics);
+        }
+        Assert.assertTrue(tubeGrower.isFinished());
+        Assert.assertTrue(copyGrower.isFinished());
+        Assert.assertEquals(fabric.getAge(), copy.getAge());
+        Assert.assertEquals(fabric.getJoints().size(), copy.getJoints().size());
+        Assert.assertEquals(fabric.getIntervals().size(), copy.getIntervals().size());
+        for (int walk = 0; walk < fabric.getJoints().size(); walk++) {
+            Assert.assertEquals(0, fabric.getJoints().get(walk).getLocation().distanceTo(copy.getJoints().get(walk).getLocation()), 1e-9);
+        }
+    }
+}
@@ -110,6 +110,9 @@ public class ConwayLifeSphere extends Frame {
             painter.prepareForVisit(gl);
             SPHERE.admitVisitor(painter);
         }
+
+        public void dispose(GL2 gl) {
+        }
     }
 
     public void step() {
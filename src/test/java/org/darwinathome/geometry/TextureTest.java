@@ -41,6 +41,9 @@ public class TextureTest extends Frame {
         public void init(GL2 gl) {
         }
 
+        public void dispose(GL2 gl) {
+        }
+
         public void display(GL2 gl, int width, int height) {
             painter.prePaint(gl, 0);
             painter.paint(a, b, c);
@@ -115,6 +115,10 @@ public class ViewTest extends Frame {
             ellipsoidPainter.setWidth(0.02);
         }
 
+        public void dispose(GL2 gl) {
+            ellipsoidPainter.dispose(gl);
+        }
+
         public void display(GL2 gl, int width, int height) {
             gl.glLightfv(GL_LIGHT0, GL_POSITION, LIGHT_POSITION, 0);
             Fabric fabric = ViewTest.this.fabric;